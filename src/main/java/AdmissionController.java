@@ -0,0 +1,123 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many requests of one kind run at once, so that a spike of expensive requests
+ * is turned away early instead of slowing every request down until the server falls over.
+ * The limit adapts AIMD style: every request that finishes within the target latency
+ * raises it by 1 / limit, about one per limit's worth of requests, and every slower one
+ * cuts it by a fixed factor. Requests over the limit wait in a bounded queue for at most
+ * a deadline; when the queue is full or the deadline passes they are rejected, and the
+ * caller should answer 503 right away.
+ * Waiting uses a lock and condition rather than a monitor, so a waiting virtual thread
+ * does not pin its carrier.
+ */
+public class AdmissionController {
+    /** Factor the limit is multiplied by after a request slower than the target. */
+    private static final double BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+    private final long targetNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int waiting;
+
+    /**
+     * @param initialLimit Requests allowed to run at once to begin with.
+     * @param minLimit The limit never drops below this.
+     * @param maxLimit The limit never grows above this.
+     * @param maxQueue Requests allowed to wait for a slot.
+     * @param maxWaitMillis How long a request may wait for a slot.
+     * @param targetMillis Requests slower than this shrink the limit.
+     */
+    public AdmissionController(int initialLimit, int minLimit, int maxLimit, int maxQueue,
+                               long maxWaitMillis, long targetMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Waits for a slot. Every successful call must be followed by a call to release.
+     * @return Whether the request was admitted.
+     */
+    boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (waiting == 0 && inFlight < (int) limit) {
+                inFlight += 1;
+                return true;
+            }
+            if (waiting >= maxQueue) {
+                return false;
+            }
+            waiting += 1;
+            try {
+                long left = maxWaitNanos;
+                while (inFlight >= (int) limit) {
+                    if (left <= 0) {
+                        return false;
+                    }
+                    left = released.awaitNanos(left);
+                }
+                inFlight += 1;
+                return true;
+            } finally {
+                waiting -= 1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the slot of an admitted request and adapts the limit to how long the
+     * request took.
+     * @param elapsedNanos Time from admission to the end of the response.
+     */
+    void release(long elapsedNanos) {
+        lock.lock();
+        try {
+            inFlight -= 1;
+            if (elapsedNanos > targetNanos) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+            } else if (inFlight + 1 >= (int) limit) {
+                /* Only grow while the limit is actually what holds requests back. */
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the current concurrency limit. */
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of admitted requests still running. */
+    int inFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
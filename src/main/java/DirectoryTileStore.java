@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Reads tiles from a directory of d{depth}_x{x}_y{y}.png files, one file per tile.
+ */
+public class DirectoryTileStore implements TileStore {
+    private final Path root;
+    /** Tiles are assumed not to change while the server runs. */
+    private final long openedAt;
+
+    public DirectoryTileStore(String imgRoot) {
+        this.root = Paths.get(imgRoot);
+        this.openedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public ByteBuffer tile(int depth, int x, int y) {
+        try {
+            byte[] png = Files.readAllBytes(root.resolve(TileStore.fileName(depth, x, y)));
+            return ByteBuffer.wrap(png).asReadOnlyBuffer();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /** Looks the file up without reading it. */
+    @Override
+    public boolean has(int depth, int x, int y) {
+        return Files.exists(root.resolve(TileStore.fileName(depth, x, y)));
+    }
+
+    @Override
+    public long lastModified() {
+        return openedAt;
+    }
+
+    @Override
+    public void close() {
+    }
+}
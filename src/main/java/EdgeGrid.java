@@ -0,0 +1,373 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+/**
+ * A uniform grid over the road segments of a GraphDB, for finding the segments near a
+ * bounding box without looking at all of them. Segment endpoints are copied into flat
+ * arrays and every cell lists the segments whose bounding boxes overlap it, so a query only
+ * touches the cells under its box. The grid never changes once built, and any number of
+ * threads may query it at once.
+ *
+ * A grid for a changed graph shares the arrays of the grid it was made from and keeps the
+ * change on top, in OverlayMaps: the built segments taken out, and the segments put in with
+ * the cells they overlap. It costs in proportion to the change, until the changes on top
+ * add up to a good part of the built grid, which is then built again from the graph.
+ */
+public class EdgeGrid {
+    /** Aim for about this many segments per cell on average. */
+    private static final int SEGMENTS_PER_CELL = 4;
+    /** Build again once the changes on top exceed this share of the built segments... */
+    private static final int REBUILD_DIVISOR = 4;
+    /** ...or this many, whichever is more. */
+    private static final int MIN_REBUILD_CHANGES = 1024;
+
+    /** Receives the segments found by a query. */
+    interface SegmentVisitor {
+        void visit(double lon1, double lat1, double lon2, double lat2);
+    }
+
+    /**
+     * The segments one graph has and another does not, with their endpoints where each
+     * graph has them: lon1, lat1, lon2, lat2.
+     */
+    static final class Change {
+        final List<double[]> removed = new ArrayList<>();
+        final List<double[]> added = new ArrayList<>();
+
+        /**
+         * Finds the segments that withChange took out of before and put into after, or
+         * moved, by looking only at the edges of the vertices the change touched.
+         */
+        static Change between(GraphDB before, GraphDB after) {
+            Change change = new Change();
+            Set<Long> vertices = after.changedVertices();
+            Set<GraphDB.edge> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+            kept.addAll(after.edgesAt(vertices));
+            Set<GraphDB.edge> unchanged = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (GraphDB.edge e : before.edgesAt(vertices)) {
+                double[] segment = segment(before, e);
+                if (kept.contains(e) && Arrays.equals(segment, segment(after, e))) {
+                    unchanged.add(e);
+                } else {
+                    change.removed.add(segment);
+                }
+            }
+            for (GraphDB.edge e : kept) {
+                if (!unchanged.contains(e)) {
+                    change.added.add(segment(after, e));
+                }
+            }
+            return change;
+        }
+
+        private static double[] segment(GraphDB g, GraphDB.edge e) {
+            return new double[]{g.lon(e.v1), g.lat(e.v1), g.lon(e.v2), g.lat(e.v2)};
+        }
+
+        /** Returns the number of segments removed and added. */
+        int size() {
+            return removed.size() + added.size();
+        }
+
+        /** Returns whether a segment removed or added has a bounding box overlapping a box. */
+        boolean touches(double minLon, double minLat, double maxLon, double maxLat) {
+            return touches(removed, minLon, minLat, maxLon, maxLat)
+                    || touches(added, minLon, minLat, maxLon, maxLat);
+        }
+
+        private static boolean touches(List<double[]> segments, double minLon, double minLat,
+                                       double maxLon, double maxLat) {
+            for (double[] s : segments) {
+                if (overlaps(s, minLon, minLat, maxLon, maxLat)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Endpoints of segment i are at 4i to 4i + 3: lon1, lat1, lon2, lat2. */
+    private final double[] coords;
+    private final int segments;
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int side;
+    /** The segments of cell c are at cellStart[c] up to cellStart[c + 1] in cellSegments. */
+    private final int[] cellStart;
+    private final int[] cellSegments;
+    /** The built segments taken out since, by index. */
+    private final OverlayMap<Boolean> removed;
+    /** The segments put in since, by an id past the built ones, as lon1, lat1, lon2, lat2. */
+    private final OverlayMap<double[]> added;
+    /** The ids of the segments put in whose bounding boxes overlap each cell, by cell. */
+    private final OverlayMap<long[]> addedCells;
+    private final long nextId;
+
+    public EdgeGrid(GraphDB g) {
+        List<GraphDB.edge> edges = g.edges();
+        segments = edges.size();
+        coords = new double[4 * segments];
+        double loLon = Double.POSITIVE_INFINITY;
+        double loLat = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY;
+        double hiLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < segments; i += 1) {
+            GraphDB.edge e = edges.get(i);
+            coords[4 * i] = g.lon(e.v1);
+            coords[4 * i + 1] = g.lat(e.v1);
+            coords[4 * i + 2] = g.lon(e.v2);
+            coords[4 * i + 3] = g.lat(e.v2);
+            loLon = Math.min(loLon, Math.min(coords[4 * i], coords[4 * i + 2]));
+            hiLon = Math.max(hiLon, Math.max(coords[4 * i], coords[4 * i + 2]));
+            loLat = Math.min(loLat, Math.min(coords[4 * i + 1], coords[4 * i + 3]));
+            hiLat = Math.max(hiLat, Math.max(coords[4 * i + 1], coords[4 * i + 3]));
+        }
+        if (segments == 0) {
+            loLon = 0;
+            loLat = 0;
+            hiLon = 0;
+            hiLat = 0;
+        }
+        side = (int) Math.max(1, Math.ceil(Math.sqrt((double) segments / SEGMENTS_PER_CELL)));
+        minLon = loLon;
+        minLat = loLat;
+        /* A degenerate extent still gets cells of some size, so cell indices stay finite. */
+        cellLon = Math.max(hiLon - loLon, Double.MIN_NORMAL) / side;
+        cellLat = Math.max(hiLat - loLat, Double.MIN_NORMAL) / side;
+
+        /* Count the segments of every cell, then fill the cells in a second pass. */
+        cellStart = new int[side * side + 1];
+        for (int i = 0; i < segments; i += 1) {
+            for (int cy = minCellY(i); cy <= maxCellY(i); cy += 1) {
+                for (int cx = minCellX(i); cx <= maxCellX(i); cx += 1) {
+                    cellStart[cy * side + cx + 1] += 1;
+                }
+            }
+        }
+        for (int c = 0; c < side * side; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellSegments = new int[cellStart[side * side]];
+        int[] fill = Arrays.copyOf(cellStart, side * side);
+        for (int i = 0; i < segments; i += 1) {
+            for (int cy = minCellY(i); cy <= maxCellY(i); cy += 1) {
+                for (int cx = minCellX(i); cx <= maxCellX(i); cx += 1) {
+                    cellSegments[fill[cy * side + cx]++] = i;
+                }
+            }
+        }
+        removed = OverlayMap.over(Collections.emptyMap());
+        added = OverlayMap.over(Collections.emptyMap());
+        addedCells = OverlayMap.over(Collections.emptyMap());
+        nextId = segments;
+    }
+
+    /**
+     * Makes a grid with the built segments of from, and copies of its changes to change.
+     * @param nextId The id past those of the segments to be put in.
+     */
+    private EdgeGrid(EdgeGrid from, long nextId) {
+        coords = from.coords;
+        segments = from.segments;
+        minLon = from.minLon;
+        minLat = from.minLat;
+        cellLon = from.cellLon;
+        cellLat = from.cellLat;
+        side = from.side;
+        cellStart = from.cellStart;
+        cellSegments = from.cellSegments;
+        removed = OverlayMap.over(from.removed);
+        added = OverlayMap.over(from.added);
+        addedCells = OverlayMap.over(from.addedCells);
+        this.nextId = nextId;
+    }
+
+    /**
+     * Returns a grid of the segments of after, given that this grid is of the graph
+     * withChange made after from and change is what it changed. This grid is left as it was.
+     * @param change The segments the change removed and added.
+     * @param after The changed graph, to build the grid from if the changes add up.
+     */
+    EdgeGrid withChange(Change change, GraphDB after) {
+        int changes = removed.size() + added.size() + change.size();
+        if (changes > Math.max(MIN_REBUILD_CHANGES, segments / REBUILD_DIVISOR)) {
+            return new EdgeGrid(after);
+        }
+        EdgeGrid next = new EdgeGrid(this, nextId + change.added.size());
+        for (double[] s : change.removed) {
+            next.remove(s);
+        }
+        long id = nextId;
+        for (double[] s : change.added) {
+            next.add(id, s);
+            id += 1;
+        }
+        return next;
+    }
+
+    /**
+     * Takes out one segment with exactly the endpoints of s, a put in one if there is any.
+     * Segments with the same endpoints draw the same, so it does not matter which.
+     */
+    private void remove(double[] s) {
+        int cx = cellX(Math.min(s[0], s[2]));
+        int cy = cellY(Math.min(s[1], s[3]));
+        long cell = (long) cy * side + cx;
+        long[] ids = addedCells.get(cell);
+        if (ids != null) {
+            for (long id : ids) {
+                double[] a = added.get(id);
+                if (Arrays.equals(a, s)) {
+                    added.remove(id);
+                    forCells(a, c -> addedCells.put(c, without(addedCells.get(c), id)));
+                    return;
+                }
+            }
+        }
+        int c = (int) cell;
+        for (int k = cellStart[c]; k < cellStart[c + 1]; k += 1) {
+            int i = cellSegments[k];
+            if (coords[4 * i] == s[0] && coords[4 * i + 1] == s[1]
+                    && coords[4 * i + 2] == s[2] && coords[4 * i + 3] == s[3]
+                    && !removed.containsKey((long) i)) {
+                removed.put((long) i, Boolean.TRUE);
+                return;
+            }
+        }
+    }
+
+    private void add(long id, double[] s) {
+        added.put(id, s);
+        forCells(s, c -> {
+            long[] ids = addedCells.get(c);
+            long[] more = ids == null ? new long[1] : Arrays.copyOf(ids, ids.length + 1);
+            more[more.length - 1] = id;
+            addedCells.put(c, more);
+        });
+    }
+
+    /** Returns ids without id, or null if that leaves none. */
+    private static long[] without(long[] ids, long id) {
+        if (ids.length == 1) {
+            return null;
+        }
+        long[] fewer = new long[ids.length - 1];
+        int n = 0;
+        for (long other : ids) {
+            if (other != id) {
+                fewer[n++] = other;
+            }
+        }
+        return fewer;
+    }
+
+    /** Passes every cell that the bounding box of segment s overlaps to visit. */
+    private void forCells(double[] s, LongConsumer visit) {
+        for (int cy = cellY(Math.min(s[1], s[3])); cy <= cellY(Math.max(s[1], s[3])); cy += 1) {
+            for (int cx = cellX(Math.min(s[0], s[2])); cx <= cellX(Math.max(s[0], s[2]));
+                 cx += 1) {
+                visit.accept((long) cy * side + cx);
+            }
+        }
+    }
+
+    /** Returns the number of segments in the grid. */
+    int size() {
+        return segments - removed.size() + added.size();
+    }
+
+    /** Returns whether segment s has a bounding box overlapping the given box. */
+    private static boolean overlaps(double[] s, double minLon, double minLat, double maxLon,
+                                    double maxLat) {
+        return Math.max(s[0], s[2]) >= minLon && Math.min(s[0], s[2]) <= maxLon
+                && Math.max(s[1], s[3]) >= minLat && Math.min(s[1], s[3]) <= maxLat;
+    }
+
+    /**
+     * Visits every segment whose bounding box overlaps the given box, exactly once each.
+     * A segment spanning several cells under the box is reported only from the first of
+     * them, the cell at its own lowest cell indices clamped to the box's, so queries need no
+     * memory of what they have already visited.
+     */
+    void query(double qMinLon, double qMinLat, double qMaxLon, double qMaxLat,
+               SegmentVisitor visitor) {
+        boolean anyRemoved = !removed.isEmpty();
+        boolean anyAdded = !added.isEmpty();
+        if (segments == 0 && !anyAdded) {
+            return;
+        }
+        int x0 = cellX(qMinLon);
+        int x1 = cellX(qMaxLon);
+        int y0 = cellY(qMinLat);
+        int y1 = cellY(qMaxLat);
+        for (int cy = y0; cy <= y1; cy += 1) {
+            for (int cx = x0; cx <= x1; cx += 1) {
+                int c = cy * side + cx;
+                for (int k = cellStart[c]; k < cellStart[c + 1]; k += 1) {
+                    int i = cellSegments[k];
+                    if (Math.max(minCellX(i), x0) != cx || Math.max(minCellY(i), y0) != cy
+                            || anyRemoved && removed.containsKey((long) i)) {
+                        continue;
+                    }
+                    double lon1 = coords[4 * i];
+                    double lat1 = coords[4 * i + 1];
+                    double lon2 = coords[4 * i + 2];
+                    double lat2 = coords[4 * i + 3];
+                    if (Math.max(lon1, lon2) < qMinLon || Math.min(lon1, lon2) > qMaxLon
+                            || Math.max(lat1, lat2) < qMinLat
+                            || Math.min(lat1, lat2) > qMaxLat) {
+                        continue;
+                    }
+                    visitor.visit(lon1, lat1, lon2, lat2);
+                }
+                long[] ids = anyAdded ? addedCells.get((long) c) : null;
+                if (ids == null) {
+                    continue;
+                }
+                for (long id : ids) {
+                    double[] s = added.get(id);
+                    if (Math.max(cellX(Math.min(s[0], s[2])), x0) == cx
+                            && Math.max(cellY(Math.min(s[1], s[3])), y0) == cy
+                            && overlaps(s, qMinLon, qMinLat, qMaxLon, qMaxLat)) {
+                        visitor.visit(s[0], s[1], s[2], s[3]);
+                    }
+                }
+            }
+        }
+    }
+
+    private int cellX(double lon) {
+        return clamp((int) Math.floor((lon - minLon) / cellLon));
+    }
+
+    private int cellY(double lat) {
+        return clamp((int) Math.floor((lat - minLat) / cellLat));
+    }
+
+    private int clamp(int cell) {
+        return Math.max(0, Math.min(side - 1, cell));
+    }
+
+    private int minCellX(int i) {
+        return cellX(Math.min(coords[4 * i], coords[4 * i + 2]));
+    }
+
+    private int maxCellX(int i) {
+        return cellX(Math.max(coords[4 * i], coords[4 * i + 2]));
+    }
+
+    private int minCellY(int i) {
+        return cellY(Math.min(coords[4 * i + 1], coords[4 * i + 3]));
+    }
+
+    private int maxCellY(int i) {
+        return cellY(Math.max(coords[4 * i + 1], coords[4 * i + 3]));
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Typo tolerant search of location names, through an inverted index of letter trigrams.
+ * Every cleaned name is padded with a space on each side and broken into its distinct
+ * trigrams; cleaned names hold only letters and spaces, so a trigram fits in a small int,
+ * and the posting lists of all trigrams are slices of one array. A query counts, per name,
+ * the trigrams it shares with the name, by walking only the posting lists of its own
+ * trigrams, and scores names by the Dice coefficient of the two trigram sets. The best k
+ * are kept in a bounded heap, so ranking never sorts all the candidates.
+ */
+public class FuzzyIndex {
+    /** Letters, plus the space; cleaned names contain nothing else. */
+    private static final int ALPHABET = 27;
+    private static final int GRAMS = ALPHABET * ALPHABET * ALPHABET;
+    /** Names scoring below this are not returned, however few the results. */
+    static final double MIN_SIMILARITY = 0.3;
+
+    /** Cleaned names, the full names cleaning to each, and the number of their locations. */
+    private final String[] keys;
+    private final String[][] names;
+    private final int[] weights;
+    /** Number of distinct trigrams of each key. */
+    private final int[] gramCounts;
+    /** The keys containing trigram g are at postingStart[g] up to postingStart[g + 1]. */
+    private final int[] postingStart;
+    private final int[] postings;
+    private final int k;
+
+    /**
+     * @param locationNames Names of locations, by node id.
+     * @param k Most names returned for a query.
+     */
+    public FuzzyIndex(Map<Long, String> locationNames, int k) {
+        this.k = k;
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : locationNames.values()) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        TreeMap<String, List<String>> byKey = new TreeMap<>();
+        for (String name : counts.keySet()) {
+            byKey.computeIfAbsent(GraphDB.cleanString(name), c -> new ArrayList<>()).add(name);
+        }
+        int n = byKey.size();
+        keys = new String[n];
+        names = new String[n][];
+        weights = new int[n];
+        gramCounts = new int[n];
+        int[][] grams = new int[n][];
+        postingStart = new int[GRAMS + 1];
+        int i = 0;
+        for (Map.Entry<String, List<String>> e : byKey.entrySet()) {
+            keys[i] = e.getKey();
+            names[i] = e.getValue().toArray(new String[0]);
+            Arrays.sort(names[i]);
+            for (String name : names[i]) {
+                weights[i] += counts.get(name);
+            }
+            grams[i] = grams(keys[i]);
+            gramCounts[i] = grams[i].length;
+            for (int g : grams[i]) {
+                postingStart[g + 1] += 1;
+            }
+            i += 1;
+        }
+        for (int g = 0; g < GRAMS; g += 1) {
+            postingStart[g + 1] += postingStart[g];
+        }
+        postings = new int[postingStart[GRAMS]];
+        int[] fill = Arrays.copyOf(postingStart, GRAMS);
+        for (int j = 0; j < n; j += 1) {
+            for (int g : grams[j]) {
+                postings[fill[g]++] = j;
+            }
+        }
+    }
+
+    /** Returns the distinct trigrams of a cleaned string padded with spaces, sorted. */
+    static int[] grams(String key) {
+        String padded = " " + key + " ";
+        int[] out = new int[Math.max(0, padded.length() - 2)];
+        for (int i = 0; i < out.length; i += 1) {
+            out[i] = (code(padded.charAt(i)) * ALPHABET + code(padded.charAt(i + 1))) * ALPHABET
+                    + code(padded.charAt(i + 2));
+        }
+        return Arrays.stream(out).sorted().distinct().toArray();
+    }
+
+    private static int code(char c) {
+        return c >= 'a' && c <= 'z' ? c - 'a' + 1 : 0;
+    }
+
+    private static double dice(int common, int a, int b) {
+        return a + b == 0 ? 0 : 2.0 * common / (a + b);
+    }
+
+    /**
+     * Returns the full names most similar to the query, at most k of them, best first.
+     * @param query Any case, with or without punctuation.
+     */
+    List<String> search(String query) {
+        String q = GraphDB.cleanString(query == null ? "" : query).trim();
+        List<String> out = new ArrayList<>();
+        if (q.isEmpty() || keys.length == 0) {
+            return out;
+        }
+        int[] qGrams = grams(q);
+        int[] common = new int[keys.length];
+        int[] touched = new int[keys.length];
+        int candidates = 0;
+        for (int g : qGrams) {
+            for (int p = postingStart[g]; p < postingStart[g + 1]; p += 1) {
+                int j = postings[p];
+                if (common[j]++ == 0) {
+                    touched[candidates++] = j;
+                }
+            }
+        }
+
+        /* A min-heap of the best k so far; its head is the first to go. */
+        PriorityQueue<double[]> best = new PriorityQueue<>(k + 1, (a, b) -> a[0] != b[0]
+                ? Double.compare(a[0], b[0]) : better((int) b[1], (int) a[1]));
+        for (int c = 0; c < candidates; c += 1) {
+            int j = touched[c];
+            double score = dice(common[j], qGrams.length, gramCounts[j]);
+            if (score < MIN_SIMILARITY) {
+                continue;
+            }
+            best.add(new double[]{score, j});
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+        int[] ranked = new int[best.size()];
+        for (int r = ranked.length - 1; r >= 0; r -= 1) {
+            ranked[r] = (int) best.poll()[1];
+        }
+        for (int j : ranked) {
+            for (String name : names[j]) {
+                if (out.size() < k) {
+                    out.add(name);
+                }
+            }
+        }
+        return out;
+    }
+
+    /** Orders equally similar keys: more locations first, then alphabetically. */
+    private int better(int a, int b) {
+        if (weights[a] != weights[b]) {
+            return Integer.compare(weights[b], weights[a]);
+        }
+        return Integer.compare(a, b);
+    }
+}
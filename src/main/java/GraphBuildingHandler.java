@@ -25,6 +25,9 @@ import java.util.ArrayList;
  *  element in the file. This is a very common but strange-when-you-first-see it pattern.
  *  It is similar to the Visitor pattern we discussed for graphs.
  *
+ *  GraphDB now loads with OsmXmlReader and OsmLoader, which build the same graph on several
+ *  threads; this handler remains as the simple single-threaded reference.
+ *
  *  @author Jinchao Yin, Alan Yao, Maurice Lee
  */
 public class GraphBuildingHandler extends DefaultHandler {
@@ -34,7 +37,7 @@ public class GraphBuildingHandler extends DefaultHandler {
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
@@ -44,6 +47,8 @@ public class GraphBuildingHandler extends DefaultHandler {
     private boolean flag;
     private List<Long> nodes = new ArrayList<>();
     private String wayName = GraphDB.ur;
+    /** Id of the node being parsed; a node's tags come after it, so they belong to it. */
+    private long nodeId = -1;
 
     /**
      * Create a new GraphBuildingHandler.
@@ -71,7 +76,6 @@ public class GraphBuildingHandler extends DefaultHandler {
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
         /* Some example code on how you might begin to parse XML files. */
-        long id = -1;
         if (qName.equals("node")) {
             /* We encountered a new <node...> tag. */
             activeState = "node";
@@ -81,7 +85,7 @@ public class GraphBuildingHandler extends DefaultHandler {
 
             /* TODO Use the above information to save a "node" to somewhere. */
             long v = Long.parseLong(attributes.getValue("id"));
-            id = v;
+            nodeId = v;
             double lon = Double.parseDouble(attributes.getValue("lon"));
             double lat = Double.parseDouble(attributes.getValue("lat"));
             g.addNode(v, lon, lat);
@@ -139,7 +143,7 @@ public class GraphBuildingHandler extends DefaultHandler {
             node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
             last node that you looked at (check the first if-case). */
 //            System.out.println("Node's name: " + attributes.getValue("v"));
-            g.addNodeName(id, attributes.getValue("v"));
+            g.addNodeName(nodeId, attributes.getValue("v"));
         }
     }
 
@@ -172,11 +176,12 @@ public class GraphBuildingHandler extends DefaultHandler {
 //                        System.out.println("edge:" + e.v1 + " " + e.v2 + " " + wayName);
 //                    }
                     g.addWay(g.nodesToEdge(nodes), wayName);
-                    wayName = GraphDB.ur;
                 }
                 flag = false;
-                activeState = "";
             }
+            /* A name belongs to its own way only, whether or not that was a road. */
+            wayName = GraphDB.ur;
+            activeState = "";
             nodes.clear();
         }
     }
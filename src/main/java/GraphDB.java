@@ -1,16 +1,13 @@
-import org.xml.sax.SAXException;
-
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import java.io.InputStream;
+import javax.xml.stream.XMLStreamException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
- * Uses your GraphBuildingHandler to convert the XML files into a graph. Your
+ * Uses OsmXmlReader or OsmPbfReader, and OsmLoader, to convert OSM files into a graph. Your
  * code must include the vertices, adjacent, distance, closest, lat, and lon
  * methods. You'll also need to include instance variables and methods for
  * modifying the graph (e.g. addNode and addEdge).
@@ -24,14 +21,24 @@ public class GraphDB {
     /**
      * Example constructor shows how to create and start an XML parser.
      * You do not need to modify this constructor, but you're welcome to do so.
-     * @param dbPath Path to the XML file to be parsed.
+     * @param dbPath Path to the OSM file to be parsed, XML or PBF, possibly compressed.
      */
     //private Set<Long> verticesID = new HashSet<>();
 //    private Set<vertex> vertices = new HashSet<>();
 //    private Set<edge> edges;
-    private Map<Long, Set<edge>> adj = new HashMap<>();
-    private Map<Long, double[]> vertexMap = new HashMap<>();
+    /** Concurrent, so that OsmLoader's workers can fill them at the same time. */
+    private Map<Long, Set<edge>> adj = new ConcurrentHashMap<>();
+    private Map<Long, double[]> vertexMap = new ConcurrentHashMap<>();
     private Map<Long, String> nodeName = new HashMap<>();  //names of location
+    /** Coordinates of named locations, which clean() leaves alone even off the roads. */
+    private Map<Long, double[]> locationMap = new HashMap<>();
+    /** The edges of each road, by way id, so that a change can take the road out again. */
+    private Map<Long, edge[]> wayEdges = new ConcurrentHashMap<>();
+    /**
+     * Coordinates of the nodes clean() took off the graph for being on no road, so that a
+     * change can put a road through them.
+     */
+    private Map<Long, double[]> offRoad = Collections.emptyMap();
 
     //static final String ur = "unknown road";
     static final String ur = "";        //to be modified
@@ -62,22 +69,86 @@ public class GraphDB {
         }
     }
 
+    /** Threads that build the graph; override with -Dbearmaps.loadThreads=... */
+    private static final int LOAD_THREADS = Integer.getInteger("bearmaps.loadThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Whether to read the file twice, first for the nodes that roads use and then for those
+     * nodes only, instead of loading every node and cleaning up after. It takes longer but
+     * needs much less memory on a large extract. Turn on with -Dbearmaps.twoPassLoad=true.
+     */
+    private static final boolean TWO_PASS_LOAD = Boolean.getBoolean("bearmaps.twoPassLoad");
+
+    /**
+     * The last generation handed out. Counting starts from the clock, with room for a
+     * thousand graphs a millisecond, so a restarted server does not hand out old numbers.
+     */
+    private static final AtomicLong GENERATIONS =
+            new AtomicLong(System.currentTimeMillis() * 1000);
+    private final long generation = GENERATIONS.incrementAndGet();
+    /** The generation of the graph withChange made this one from, or 0 if it was loaded. */
+    private long parent;
+    /** The vertices whose edges, or where they are, may differ from the parent graph's. */
+    private Set<Long> changed = Collections.emptySet();
+
     public GraphDB(String dbPath) {
         try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-            // GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            load(dbPath);
+        } catch (XMLStreamException | IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             e.printStackTrace();
         }
         clean();
     }
 
+    /** Creates an empty graph, to be filled by hand. */
+    GraphDB() {
+    }
+
+    /**
+     * Loads a graph like the constructor does, but fails rather than give a graph of what
+     * could be read before something went wrong; for replacing a graph that works.
+     * @param dbPath Path to the OSM file to be parsed, XML or PBF, possibly compressed.
+     * @return The graph, cleaned.
+     */
+    static GraphDB read(String dbPath)
+            throws IOException, XMLStreamException, InterruptedException {
+        GraphDB g = new GraphDB();
+        g.load(dbPath);
+        g.clean();
+        return g;
+    }
+
+    private void load(String dbPath)
+            throws IOException, XMLStreamException, InterruptedException {
+        boolean pbf = OsmInput.isPbf(dbPath);
+        NodeIdSet roadNodes = null;
+        if (TWO_PASS_LOAD) {
+            try (InputStream inputStream = OsmInput.open(dbPath)) {
+                roadNodes = pbf ? OsmPbfReader.roadNodes(inputStream, LOAD_THREADS)
+                        : OsmXmlReader.roadNodes(inputStream);
+            }
+        }
+        try (InputStream inputStream = OsmInput.open(dbPath)) {
+            OsmLoader loader = new OsmLoader(this, LOAD_THREADS, roadNodes);
+            try {
+                if (pbf) {
+                    OsmPbfReader.read(inputStream, loader, LOAD_THREADS);
+                } else {
+                    OsmXmlReader.read(inputStream, loader);
+                }
+            } catch (Throwable e) {
+                /* Raise the reader's failure rather than any of the workers'. */
+                loader.abandon();
+                throw e;
+            }
+            loader.finish();
+        }
+    }
+
     /**
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
      * @param s Input string.
@@ -92,15 +163,18 @@ public class GraphDB {
      *  While this does not guarantee that any two nodes in the remaining graph are connected,
      *  we can reasonably assume this since typically roads are connected.
      */
-    private void clean() {
+    void clean() {
         // TODO: Your code here.
         // Hint: look at the adjacency list
         //Set<Long> toRemove = new HashSet<>();
+        Map<Long, double[]> removed = new HashMap<>(offRoad);
         for (long v : vertices()) {
             if (!adj.containsKey(v)) {
+                removed.put(v, vertexMap.get(v));
                 removeNode(v);
             }
         }
+        offRoad = new NodeLocations(removed);
     }
 
     /**
@@ -239,6 +313,173 @@ public class GraphDB {
         edge e = new edge(v1, v2);
         addEdge(e);
     }
+
+    /** Adds edge e to the adjacency list of v only, leaving its other endpoint alone. */
+    void addEdgeAt(long v, edge e) {
+        adj.computeIfAbsent(v, k -> new HashSet<>()).add(e);
+    }
+
+    edge newEdge(long v1, long v2, String name) {
+        return new edge(v1, v2, name);
+    }
+
+    /** Records the edges that way was split into, in order. */
+    void addWayEdges(long way, edge[] edges) {
+        wayEdges.put(way, edges);
+    }
+
+    /**
+     * Returns a new graph that is this one with an OSM change applied. This graph is left as
+     * it was, so whoever is still using it keeps a consistent snapshot. The new graph's maps
+     * are OverlayMaps over this one's, so it costs in proportion to the change, not to the
+     * graph: only the adjacency sets of the vertices whose roads changed are copied, and the
+     * locations only if a named node changed. Changed roads are built from their node refs,
+     * including nodes that were off the roads until now; only with a two-pass load, which
+     * never reads the nodes no road or name needs, can a changed road meet a node the graph
+     * does not know, and it then gets no edges there.
+     * @param change The nodes and ways created, modified and deleted.
+     * @return The changed graph.
+     */
+    GraphDB withChange(OsmChange change) {
+        GraphDB next = new GraphDB();
+        next.adj = OverlayMap.over(adj);
+        next.vertexMap = OverlayMap.over(vertexMap);
+        next.wayEdges = OverlayMap.over(wayEdges);
+        next.offRoad = OverlayMap.over(offRoad);
+        next.nodeName = nodeName;
+        next.locationMap = locationMap;
+        next.parent = generation;
+        Set<Long> copied = new HashSet<>();
+        Set<Long> touched = new LinkedHashSet<>();
+        for (Map.Entry<Long, OsmChange.Node> e : change.nodes.entrySet()) {
+            long v = e.getKey();
+            OsmChange.Node node = e.getValue();
+            double[] coord = node == null ? null : new double[]{node.lon, node.lat};
+            String name = node == null ? null : node.name;
+            touched.add(v);
+            if (coord == null) {
+                next.vertexMap.remove(v);
+                next.offRoad.remove(v);
+            } else if (next.vertexMap.containsKey(v)) {
+                next.vertexMap.put(v, coord);
+            } else {
+                next.offRoad.put(v, coord);
+            }
+            if (Objects.equals(name, nodeName.get(v))
+                    && (name == null || Arrays.equals(coord, locationMap.get(v)))) {
+                continue;
+            }
+            if (next.nodeName == nodeName) {
+                next.nodeName = new HashMap<>(nodeName);
+                next.locationMap = new HashMap<>(locationMap);
+            }
+            if (name == null) {
+                next.nodeName.remove(v);
+                next.locationMap.remove(v);
+            } else {
+                next.nodeName.put(v, name);
+                next.locationMap.put(v, coord);
+            }
+        }
+        for (Map.Entry<Long, OsmChange.Way> e : change.ways.entrySet()) {
+            edge[] old = next.wayEdges.remove(e.getKey());
+            if (old != null) {
+                for (edge ed : old) {
+                    next.edgesAt(ed.v1, copied).remove(ed);
+                    next.edgesAt(ed.v2, copied).remove(ed);
+                    touched.add(ed.v1);
+                    touched.add(ed.v2);
+                }
+            }
+            OsmChange.Way way = e.getValue();
+            if (way == null || !way.isRoad()) {
+                continue;
+            }
+            String name = way.name == null ? ur : way.name;
+            edge[] edges = new edge[way.refs.length - 1];
+            for (int i = 1; i < way.refs.length; i += 1) {
+                edge ed = new edge(way.refs[i - 1], way.refs[i], name);
+                next.edgesAt(ed.v1, copied).add(ed);
+                next.edgesAt(ed.v2, copied).add(ed);
+                touched.add(ed.v1);
+                touched.add(ed.v2);
+                edges[i - 1] = ed;
+            }
+            next.wayEdges.put(e.getKey(), edges);
+        }
+        /* As clean() does, take vertices left with no edges off the graph, keeping their
+         * coordinates; put vertices that gained edges on it, or drop their edges if where
+         * they are is unknown, which may leave their neighbors with none. */
+        next.changed = new HashSet<>(touched);
+        Deque<Long> unchecked = new ArrayDeque<>(touched);
+        while (!unchecked.isEmpty()) {
+            long v = unchecked.pop();
+            Set<edge> edges = next.adj.get(v);
+            if (edges == null || edges.isEmpty()) {
+                next.adj.remove(v);
+                double[] coord = next.vertexMap.remove(v);
+                if (coord != null) {
+                    next.offRoad.put(v, coord);
+                }
+            } else if (!next.vertexMap.containsKey(v)) {
+                double[] coord = next.offRoad.remove(v);
+                if (coord == null) {
+                    coord = next.locationMap.get(v);
+                }
+                if (coord != null) {
+                    next.vertexMap.put(v, coord);
+                    continue;
+                }
+                next.adj.remove(v);
+                for (edge ed : edges) {
+                    long w = ed.v1 == v ? ed.v2 : ed.v1;
+                    next.edgesAt(w, copied).remove(ed);
+                    next.changed.add(w);
+                    unchecked.push(w);
+                }
+            }
+        }
+        return next;
+    }
+
+    /** Returns the adjacency set of v for changing, copying it first if it is shared. */
+    private Set<edge> edgesAt(long v, Set<Long> copied) {
+        if (copied.add(v)) {
+            Set<edge> shared = adj.get(v);
+            adj.put(v, shared == null ? new HashSet<>() : new HashSet<>(shared));
+        }
+        return adj.get(v);
+    }
+
+    /**
+     * Returns the generation of the graph: a number no other graph gets, larger for graphs
+     * made later. Anything derived from the graph alone can be told apart by it.
+     */
+    long generation() {
+        return generation;
+    }
+
+    /** Returns whether withChange made this graph from g. */
+    boolean isChangeOf(GraphDB g) {
+        return parent == g.generation;
+    }
+
+    /**
+     * Returns the vertices whose edges, or where they are, may differ from those of the
+     * graph withChange made this one from: every edge either graph has that the other does
+     * not, or has elsewhere, ends at one of them. Empty for a loaded graph.
+     */
+    Set<Long> changedVertices() {
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * Returns whether this graph has the very same named locations as another, as a graph
+     * from withChange does when the change leaves the named nodes alone.
+     */
+    boolean sameLocations(GraphDB other) {
+        return nodeName == other.nodeName && locationMap == other.locationMap;
+    }
     //remove a vertex but not yet all the edges that contains it
     long removeNode(long v) {
         vertexMap.remove(v);
@@ -269,6 +510,33 @@ public class GraphDB {
 
     void addNodeName (long v, String name) {
         nodeName.put(v, name);
+        locationMap.put(v, vertexMap.get(v));
+    }
+
+    /**
+     * Returns the names of all named locations, by node id.
+     * @return A read-only view of the names.
+     */
+    Map<Long, String> locationNames() {
+        return Collections.unmodifiableMap(nodeName);
+    }
+
+    /**
+     * Gets the longitude of a named location, whether or not it is on a road.
+     * @param v The id of the location's node.
+     * @return The longitude of the location.
+     */
+    double locationLon(long v) {
+        return locationMap.get(v)[0];
+    }
+
+    /**
+     * Gets the latitude of a named location, whether or not it is on a road.
+     * @param v The id of the location's node.
+     * @return The latitude of the location.
+     */
+    double locationLat(long v) {
+        return locationMap.get(v)[1];
     }
 
     Iterable<edge> nodesToEdge (List<Long> way) {
@@ -292,6 +560,45 @@ public class GraphDB {
         return adj.get(v);
     }
 
+    /**
+     * Returns every edge of the graph once, skipping any whose endpoints have no location.
+     * @return A list of the edges, in no particular order.
+     */
+    List<edge> edges() {
+        List<edge> edges = new ArrayList<>();
+        for (Map.Entry<Long, Set<edge>> e : adj.entrySet()) {
+            for (edge ed : e.getValue()) {
+                /* Each edge is in the sets of both its endpoints; keep it at v1's. */
+                if (ed.v1 == e.getKey() && vertexMap.containsKey(ed.v1)
+                        && vertexMap.containsKey(ed.v2)) {
+                    edges.add(ed);
+                }
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * Returns the edges that edges() returns with an endpoint in vertices, each once.
+     * @param vertices Vertices of the graph or not.
+     * @return A list of the edges, in no particular order.
+     */
+    List<edge> edgesAt(Collection<Long> vertices) {
+        Set<edge> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (long v : vertices) {
+            Set<edge> edges = adj.get(v);
+            if (edges == null) {
+                continue;
+            }
+            for (edge ed : edges) {
+                if (vertexMap.containsKey(ed.v1) && vertexMap.containsKey(ed.v2)) {
+                    found.add(ed);
+                }
+            }
+        }
+        return new ArrayList<>(found);
+    }
+
     edge edgeBetween (long va, long vb) {
         for (edge e : adj.get(va)) {
             long v = (e.v1 == va ? e.v2 : e.v1);
@@ -0,0 +1,265 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Writes JSON straight to an output stream, without building the document in memory.
+ * Binary values are base64 encoded on the fly as they are written, so a multi-megabyte
+ * image never exists as a String. Strings are escaped the way Gson escapes them by default,
+ * so clients see the same text as before.
+ * <pre>
+ *   json.beginObject().name("depth").value(3).name("b64_image").base64Value(png).endObject();
+ * </pre>
+ */
+public class JsonStreamWriter implements Closeable {
+    /** Produces binary content, such as an encoded image, onto a stream. */
+    interface BinaryContent {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    /** For each open object or array, whether it has no elements yet. */
+    private final Deque<Boolean> empty = new ArrayDeque<>();
+    /** Whether a name was just written, so the next value needs no separator. */
+    private boolean afterName;
+
+    public JsonStreamWriter(OutputStream os) {
+        this.out = new BufferedOutputStream(os, BUFFER_SIZE);
+    }
+
+    JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        out.write('{');
+        empty.push(true);
+        return this;
+    }
+
+    JsonStreamWriter endObject() throws IOException {
+        empty.pop();
+        out.write('}');
+        return this;
+    }
+
+    JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        out.write('[');
+        empty.push(true);
+        return this;
+    }
+
+    JsonStreamWriter endArray() throws IOException {
+        empty.pop();
+        out.write(']');
+        return this;
+    }
+
+    /** Writes the name of the next member of the current object. */
+    JsonStreamWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonStreamWriter value(String s) throws IOException {
+        beforeValue();
+        if (s == null) {
+            writeAscii("null");
+        } else {
+            writeString(s);
+        }
+        return this;
+    }
+
+    JsonStreamWriter value(boolean b) throws IOException {
+        beforeValue();
+        writeAscii(b ? "true" : "false");
+        return this;
+    }
+
+    JsonStreamWriter value(long n) throws IOException {
+        beforeValue();
+        writeAscii(Long.toString(n));
+        return this;
+    }
+
+    JsonStreamWriter value(double d) throws IOException {
+        if (Double.isNaN(d) || Double.isInfinite(d)) {
+            throw new IllegalArgumentException("JSON forbids NaN and infinities: " + d);
+        }
+        beforeValue();
+        writeAscii(Double.toString(d));
+        return this;
+    }
+
+    /**
+     * Writes any value made of maps, iterables, arrays, strings, numbers and booleans,
+     * such as the result maps of the Rasterer.
+     */
+    JsonStreamWriter value(Object o) throws IOException {
+        if (o == null) {
+            return value((String) null);
+        } else if (o instanceof String) {
+            return value((String) o);
+        } else if (o instanceof Boolean) {
+            return value(((Boolean) o).booleanValue());
+        } else if (o instanceof Double || o instanceof Float) {
+            return value(((Number) o).doubleValue());
+        } else if (o instanceof Number) {
+            return value(((Number) o).longValue());
+        } else if (o instanceof Map) {
+            beginObject();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) o).entrySet()) {
+                name(String.valueOf(e.getKey()));
+                value(e.getValue());
+            }
+            return endObject();
+        } else if (o instanceof Iterable) {
+            beginArray();
+            for (Object element : (Iterable<?>) o) {
+                value(element);
+            }
+            return endArray();
+        } else if (o instanceof Object[]) {
+            beginArray();
+            for (Object element : (Object[]) o) {
+                value(element);
+            }
+            return endArray();
+        }
+        throw new IllegalArgumentException("Cannot write " + o.getClass() + " as JSON");
+    }
+
+    /** Writes bytes as a base64 string. */
+    JsonStreamWriter base64Value(byte[] bytes) throws IOException {
+        return base64Value(os -> os.write(bytes));
+    }
+
+    /** Writes whatever content produces as a base64 string, encoding as it is produced. */
+    JsonStreamWriter base64Value(BinaryContent content) throws IOException {
+        beforeValue();
+        out.write('"');
+        OutputStream b64 = Base64.getEncoder().wrap(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                /* Closing the encoder writes its padding; the response stays open. */
+            }
+        });
+        content.writeTo(b64);
+        b64.close();
+        out.write('"');
+        return this;
+    }
+
+    /** Writes out anything still buffered. */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Writes out anything still buffered and closes the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+        } else {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException {
+        if (empty.isEmpty()) {
+            return;
+        }
+        if (empty.peek()) {
+            empty.pop();
+            empty.push(false);
+        } else {
+            out.write(',');
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i += 1) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    /** Writes a quoted string, escaping quotes, control characters and HTML specials. */
+    private void writeString(String s) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            boolean plain = c >= 0x80 ? c != '\u2028' && c != '\u2029'
+                    : c >= 0x20 && c != '"' && c != '\\' && c != '<' && c != '>'
+                    && c != '&' && c != '=' && c != '\'';
+            if (plain) {
+                continue;
+            }
+            writeUtf8(s, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    writeAscii("\\\"");
+                    break;
+                case '\\':
+                    writeAscii("\\\\");
+                    break;
+                case '\n':
+                    writeAscii("\\n");
+                    break;
+                case '\r':
+                    writeAscii("\\r");
+                    break;
+                case '\t':
+                    writeAscii("\\t");
+                    break;
+                case '\b':
+                    writeAscii("\\b");
+                    break;
+                case '\f':
+                    writeAscii("\\f");
+                    break;
+                default:
+                    writeAscii("\\u");
+                    out.write(HEX[(c >> 12) & 0xf]);
+                    out.write(HEX[(c >> 8) & 0xf]);
+                    out.write(HEX[(c >> 4) & 0xf]);
+                    out.write(HEX[c & 0xf]);
+                    break;
+            }
+        }
+        writeUtf8(s, start, s.length());
+        out.write('"');
+    }
+
+    private void writeUtf8(String s, int start, int end) throws IOException {
+        if (start < end) {
+            out.write(s.substring(start, end).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, bucketed the way HdrHistogram does it:
+ * every power of two is split into SUB_BUCKETS linear sub-buckets, so any recorded value is
+ * known to within 1 / SUB_BUCKETS of itself, from a nanosecond up to over an hour, in a
+ * fixed array of a few hundred counters. Recording is one array increment and one add, and
+ * never blocks or allocates, so it can stay on in production.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Values are clamped to 2^42 ns, about 73 minutes. */
+    private static final int MAX_VALUE_BITS = 42;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final AtomicLongArray counts =
+            new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+    private final LongAdder sum = new LongAdder();
+
+    /** Records one duration. Negative durations count as zero. */
+    void record(long nanos) {
+        long v = Math.max(0, Math.min(nanos, MAX_VALUE));
+        counts.incrementAndGet(bucketIndex(v));
+        sum.add(v);
+    }
+
+    /** Records the time elapsed since start, a value of System.nanoTime(). */
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    /** Returns the total of all recorded durations, in nanoseconds. */
+    long sum() {
+        return sum.sum();
+    }
+
+    /** Returns the number of recorded durations. */
+    long count() {
+        long n = 0;
+        for (int i = 0; i < counts.length(); i += 1) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    /** Returns a copy of the bucket counts, indexed as by {@link #bucketIndex}. */
+    long[] snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i += 1) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /** Values below SUB_BUCKETS have a bucket each; above, a power of two spans SUB_BUCKETS. */
+    static int bucketIndex(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) | (int) ((v >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long lowestValue(int index) {
+        int group = index >>> SUB_BUCKET_BITS;
+        if (group == 0) {
+            return index;
+        }
+        int shift = group - 1;
+        return (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    }
+
+    static long highestValue(int index) {
+        int group = index >>> SUB_BUCKET_BITS;
+        if (group == 0) {
+            return index;
+        }
+        return lowestValue(index) + (1L << (group - 1)) - 1;
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A uniform grid over the named locations, for ranking search results by how well they
+ * match and how close they are to the map the user is looking at. A search walks rings of
+ * cells outwards from the view's center, nearest first, and scores each location it meets
+ * as its text score times 1 / (1 + distance / scale). Text scores are at most 1, so once
+ * the k-th best score found beats anything a location in the next ring could score, the
+ * search stops: near the view it looks at a few cells, not at every match. A search for a
+ * prefix that few locations have scores just those instead, as the walk would have to go
+ * far to meet enough of them.
+ */
+public class LocationGrid {
+    /** Aim for about this many locations per cell on average. */
+    private static final int LOCATIONS_PER_CELL = 4;
+    /** Miles per degree of latitude, and of longitude at the equator. */
+    private static final double MILES_PER_DEGREE = 69.05;
+
+    private final double[] lons;
+    private final double[] lats;
+    private final String[] names;
+    private final String[] keys;
+    private final double minLon;
+    private final double minLat;
+    private final double cellLon;
+    private final double cellLat;
+    private final int side;
+    /** The locations of cell c are at cellStart[c] up to cellStart[c + 1] in cellLocations. */
+    private final int[] cellStart;
+    private final int[] cellLocations;
+    /** Locations in order of their cleaned names, so those with a prefix are one range. */
+    private final int[] byKey;
+
+    public LocationGrid(GraphDB g) {
+        Map<Long, String> locations = g.locationNames();
+        int n = locations.size();
+        lons = new double[n];
+        lats = new double[n];
+        names = new String[n];
+        keys = new String[n];
+        double loLon = Double.POSITIVE_INFINITY;
+        double loLat = Double.POSITIVE_INFINITY;
+        double hiLon = Double.NEGATIVE_INFINITY;
+        double hiLat = Double.NEGATIVE_INFINITY;
+        int i = 0;
+        for (Map.Entry<Long, String> e : locations.entrySet()) {
+            lons[i] = g.locationLon(e.getKey());
+            lats[i] = g.locationLat(e.getKey());
+            names[i] = e.getValue();
+            keys[i] = GraphDB.cleanString(e.getValue());
+            loLon = Math.min(loLon, lons[i]);
+            hiLon = Math.max(hiLon, lons[i]);
+            loLat = Math.min(loLat, lats[i]);
+            hiLat = Math.max(hiLat, lats[i]);
+            i += 1;
+        }
+        if (n == 0) {
+            loLon = 0;
+            loLat = 0;
+            hiLon = 0;
+            hiLat = 0;
+        }
+        side = (int) Math.max(1, Math.ceil(Math.sqrt((double) n / LOCATIONS_PER_CELL)));
+        minLon = loLon;
+        minLat = loLat;
+        cellLon = Math.max(hiLon - loLon, Double.MIN_NORMAL) / side;
+        cellLat = Math.max(hiLat - loLat, Double.MIN_NORMAL) / side;
+
+        cellStart = new int[side * side + 1];
+        int[] cellOf = new int[n];
+        for (int j = 0; j < n; j += 1) {
+            cellOf[j] = cellY(lats[j]) * side + cellX(lons[j]);
+            cellStart[cellOf[j] + 1] += 1;
+        }
+        for (int c = 0; c < side * side; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellLocations = new int[n];
+        int[] fill = new int[side * side];
+        for (int j = 0; j < n; j += 1) {
+            cellLocations[cellStart[cellOf[j]] + fill[cellOf[j]]++] = j;
+        }
+        byKey = IntStream.range(0, n).boxed()
+                .sorted(Comparator.comparing(j -> keys[j]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    private int cellX(double lon) {
+        return Math.max(0, Math.min(side - 1, (int) Math.floor((lon - minLon) / cellLon)));
+    }
+
+    private int cellY(double lat) {
+        return Math.max(0, Math.min(side - 1, (int) Math.floor((lat - minLat) / cellLat)));
+    }
+
+    /**
+     * Returns the best names near a point, at most k of them, best first. A name scores as
+     * its best scoring location.
+     * @param lon Longitude of the center of the view.
+     * @param lat Latitude of the center of the view.
+     * @param scaleMiles Distance at which proximity halves a score.
+     * @param k Most names returned.
+     * @param textScore Scores a cleaned name from 0 to 1; 0 means it does not match.
+     */
+    List<String> best(double lon, double lat, double scaleMiles, int k,
+                      ToDoubleFunction<String> textScore) {
+        return best(lon, lat, scaleMiles, k, "", textScore);
+    }
+
+    /**
+     * Returns the best names near a point, like best without a prefix, for a textScore that
+     * only matches names starting with prefix. With m such locations out of n, scoring them
+     * all costs m, while the walk, if they are spread evenly, meets about k n / m locations
+     * before it has found k; so when m * m is at most k n, they are scored directly.
+     * @param prefix A cleaned prefix of every name textScore matches.
+     */
+    List<String> best(double lon, double lat, double scaleMiles, int k, String prefix,
+                      ToDoubleFunction<String> textScore) {
+        Map<String, Double> scores = new HashMap<>();
+        Map<String, Double> textScores = new HashMap<>();
+        int lo = lowerBound(prefix);
+        /* Cleaned names are letters and spaces only, all below this character. */
+        int hi = lowerBound(prefix + Character.MAX_VALUE);
+        if ((long) (hi - lo) * (hi - lo) <= (long) k * keys.length) {
+            for (int p = lo; p < hi; p += 1) {
+                score(byKey[p], lon, lat, scaleMiles, textScore, textScores, scores);
+            }
+        } else {
+            walk(lon, lat, scaleMiles, k, textScore, textScores, scores);
+        }
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder())
+                .thenComparing(Map.Entry.comparingByKey()));
+        List<String> out = new ArrayList<>();
+        for (int j = 0; j < ranked.size() && j < k; j += 1) {
+            out.add(ranked.get(j).getKey());
+        }
+        return out;
+    }
+
+    /** Scores rings of cells outwards from the center until no farther location can rank. */
+    private void walk(double lon, double lat, double scaleMiles, int k,
+                      ToDoubleFunction<String> textScore, Map<String, Double> textScores,
+                      Map<String, Double> scores) {
+        int cx = cellX(lon);
+        int cy = cellY(lat);
+        /* Every point past ring r is at least r whole cells from the center. */
+        double cellMiles = Math.min(cellLat, cellLon * Math.cos(Math.toRadians(lat)))
+                * MILES_PER_DEGREE;
+        int rings = Math.max(Math.max(cx, side - 1 - cx), Math.max(cy, side - 1 - cy));
+        for (int r = 0; r <= rings; r += 1) {
+            for (int y = Math.max(0, cy - r); y <= Math.min(side - 1, cy + r); y += 1) {
+                /* Inner rows of the ring have only their two ends on it. */
+                int step = y == cy - r || y == cy + r ? 1 : 2 * r;
+                for (int x = cx - r; x <= cx + r; x += step) {
+                    if (x >= 0 && x < side) {
+                        int c = y * side + x;
+                        for (int p = cellStart[c]; p < cellStart[c + 1]; p += 1) {
+                            score(cellLocations[p], lon, lat, scaleMiles, textScore,
+                                    textScores, scores);
+                        }
+                    }
+                }
+            }
+            double reach = r * cellMiles * 0.99;
+            if (scores.size() >= k && kthBest(scores, k) >= 1 / (1 + reach / scaleMiles)) {
+                return;
+            }
+        }
+    }
+
+    /** Scores location j, keeping the best score of every name. */
+    private void score(int j, double lon, double lat, double scaleMiles,
+                       ToDoubleFunction<String> textScore, Map<String, Double> textScores,
+                       Map<String, Double> scores) {
+        double text = textScores.computeIfAbsent(keys[j], textScore::applyAsDouble);
+        if (text <= 0) {
+            return;
+        }
+        double miles = GraphDB.distance(lon, lat, lons[j], lats[j]);
+        scores.merge(names[j], text / (1 + miles / scaleMiles), Math::max);
+    }
+
+    /** Returns the position in byKey of the first location whose key is not less than key. */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = byKey.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[byKey[mid]].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the k-th highest score, by way of a heap of the k highest. */
+    private static double kthBest(Map<String, Double> scores, int k) {
+        PriorityQueue<Double> top = new PriorityQueue<>(k + 1);
+        for (double s : scores.values()) {
+            top.add(s);
+            if (top.size() > k) {
+                top.poll();
+            }
+        }
+        return top.peek();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Looks locations up by their full cleaned name. Built once when the graph is loaded: the
+ * locations are laid out in flat arrays of ids, coordinates and names, grouped by cleaned
+ * name, and a hash map takes a cleaned name to its group. A lookup is one hash probe and a
+ * walk over adjacent array slots, with no per-location lookups in the graph.
+ */
+public class LocationIndex {
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    private final String[] names;
+    /** The locations of group i are at groupStart[i] up to groupStart[i + 1]. */
+    private final int[] groupStart;
+    private final Map<String, Integer> groups = new HashMap<>();
+
+    public LocationIndex(GraphDB g) {
+        Map<String, List<Long>> byName = new LinkedHashMap<>();
+        for (Map.Entry<Long, String> e : g.locationNames().entrySet()) {
+            byName.computeIfAbsent(GraphDB.cleanString(e.getValue()), c -> new ArrayList<>())
+                    .add(e.getKey());
+        }
+        int n = g.locationNames().size();
+        ids = new long[n];
+        lons = new double[n];
+        lats = new double[n];
+        names = new String[n];
+        groupStart = new int[byName.size() + 1];
+        int i = 0;
+        for (Map.Entry<String, List<Long>> e : byName.entrySet()) {
+            groupStart[groups.size()] = i;
+            groups.put(e.getKey(), groups.size());
+            for (long v : e.getValue()) {
+                ids[i] = v;
+                lons[i] = g.locationLon(v);
+                lats[i] = g.locationLat(v);
+                names[i] = g.locationNames().get(v);
+                i += 1;
+            }
+        }
+        groupStart[groups.size()] = i;
+    }
+
+    /** Returns the number of locations. */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns every location whose cleaned name is the cleaned name given.
+     * @param name Any case, with or without punctuation.
+     * @return The locations, each a map of "lat", "lon", "name" and "id".
+     */
+    List<Map<String, Object>> lookup(String name) {
+        Integer group = groups.get(GraphDB.cleanString(name == null ? "" : name));
+        if (group == null) {
+            return new ArrayList<>();
+        }
+        List<Map<String, Object>> out = new ArrayList<>(groupStart[group + 1] - groupStart[group]);
+        for (int i = groupStart[group]; i < groupStart[group + 1]; i += 1) {
+            out.add(location(i));
+        }
+        return out;
+    }
+
+    /**
+     * Returns every location whose cleaned name is the cleaned name given, nearest to a
+     * point first.
+     * @param name Any case, with or without punctuation.
+     * @param lon Longitude of the point.
+     * @param lat Latitude of the point.
+     * @return The locations, each a map of "lat", "lon", "name" and "id".
+     */
+    List<Map<String, Object>> lookup(String name, double lon, double lat) {
+        Integer group = groups.get(GraphDB.cleanString(name == null ? "" : name));
+        if (group == null) {
+            return new ArrayList<>();
+        }
+        Integer[] order = new Integer[groupStart[group + 1] - groupStart[group]];
+        for (int i = 0; i < order.length; i += 1) {
+            order[i] = groupStart[group] + i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i ->
+                GraphDB.distance(lon, lat, lons[i], lats[i])));
+        List<Map<String, Object>> out = new ArrayList<>(order.length);
+        for (int i : order) {
+            out.add(location(i));
+        }
+        return out;
+    }
+
+    /** Returns location i as a map of "lat", "lon", "name" and "id". */
+    Map<String, Object> location(int i) {
+        Map<String, Object> loc = new LinkedHashMap<>();
+        loc.put("lat", lats[i]);
+        loc.put("lon", lons[i]);
+        loc.put("name", names[i]);
+        loc.put("id", ids[i]);
+        return loc;
+    }
+}
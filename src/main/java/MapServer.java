@@ -1,22 +1,32 @@
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.util.Base64;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
-import java.io.IOException;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.stream.XMLStreamException;
 
 /* Maven is used to pull in these dependencies. */
-import com.google.gson.Gson;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+
 
 import static spark.Spark.*;
 
@@ -40,17 +50,97 @@ public class MapServer {
     public static final int TILE_SIZE = 256;
     /** HTTP failed response. */
     private static final int HALT_RESPONSE = 403;
+    /** HTTP response for a tile that does not exist. */
+    private static final int NOT_FOUND_RESPONSE = 404;
+    /** HTTP response telling the client its cached copy is still valid. */
+    private static final int NOT_MODIFIED_RESPONSE = 304;
+    /** HTTP response telling the client the server is too busy to take the request. */
+    private static final int SERVICE_UNAVAILABLE_RESPONSE = 503;
+    /** Seconds a client turned away with SERVICE_UNAVAILABLE_RESPONSE should wait. */
+    private static final String RETRY_AFTER_SECONDS = "1";
+    /** Tiles never change while the server runs, so clients may keep them for a day. */
+    private static final String TILE_CACHE_CONTROL = "public, max-age=86400";
     /** Route stroke information: typically roads are not more than 5px wide. */
     public static final float ROUTE_STROKE_WIDTH_PX = 5.0f;
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
+    /** Deflate level of the PNG rasters sent to the client: 1 is fastest, 9 is smallest. */
+    private static final int PNG_DEFLATE_LEVEL = 4;
+    /** Row filter of the PNG rasters. Map tiles have few colors and compress best unfiltered. */
+    private static final PngEncoder.Filter PNG_FILTER = PngEncoder.Filter.NONE;
+    /**
+     * Deflate level of gzipped responses. The rasters are base64 encoded PNGs, which gzip
+     * shrinks by about a quarter already at the fastest level.
+     */
+    private static final int GZIP_LEVEL = 1;
+    /** Responses up to this many bytes are not worth compressing. */
+    private static final int GZIP_THRESHOLD = 1024;
     /** The tile images are in the IMG_ROOT folder. */
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    /**
+     * The same tiles packed into a single file by PackedTileStore. When this file exists it
+     * is used instead of IMG_ROOT.
+     */
+    private static final String TILE_PACK_PATH = "../library-sp18/data/proj3_imgs.bmtp";
+    /** Number of tiles rendered from the graph that are kept in memory. */
+    private static final int RENDERED_TILES_IN_MEMORY = 1024;
+    /**
+     * Rendered tiles pushed out of memory are written here, in a directory for each map
+     * snapshot. Override with -Dbearmaps.renderSpillDir=...
+     */
+    private static final String RENDER_SPILL_DIR = System.getProperty("bearmaps.renderSpillDir",
+            System.getProperty("java.io.tmpdir") + "/bearmaps-rendered-tiles");
+    /** Tile prefetching pauses while more than this many requests are in flight. */
+    private static final int PREFETCH_BUSY_THRESHOLD = 4;
+    /** The API endpoints timed by /metrics; any other path is counted as "other". */
+    private static final Set<String> ENDPOINTS = new HashSet<>(Arrays.asList("/raster",
+        "/tiles", "/route", "/clear_route", "/search", "/metrics", "/"));
+    /** The request metrics of each endpoint and of "other", looked up once, up front. */
+    private static final Map<String, RequestMetrics> REQUEST_METRICS = requestMetrics();
+    /** Request attribute holding the System.nanoTime() at which the request arrived. */
+    private static final String START_TIME_ATTRIBUTE = "bearmaps.start";
+    /** Request attribute holding the System.nanoTime() at which the request was admitted. */
+    private static final String ADMIT_TIME_ATTRIBUTE = "bearmaps.admitted";
+    /** Longest time a request waits for a slot before it is turned away. */
+    private static final long ADMISSION_WAIT_MILLIS = 1000;
+    /**
+     * Latencies each endpoint should stay under; slower requests shrink the endpoint's
+     * concurrency limit.
+     */
+    private static final long RASTER_TARGET_MILLIS = 1000;
+    private static final long ROUTE_TARGET_MILLIS = 500;
+    private static final long SEARCH_TARGET_MILLIS = 100;
+    private static final LatencyHistogram RASTER_PARAMS_TIME = Metrics.phase("raster_params");
+    private static final LatencyHistogram ROUTE_OVERLAY_TIME = Metrics.phase("route_overlay");
+    private static final LatencyHistogram SHORTEST_PATH_TIME = Metrics.phase("shortest_path");
+    private static final LatencyHistogram DIRECTIONS_TIME = Metrics.phase("route_directions");
+    /**
+     * Routes whose search takes longer than this many milliseconds are logged with their
+     * search statistics. Override with -Dbearmaps.slowRouteMillis=...
+     */
+    private static final long SLOW_ROUTE_MILLIS = Long.getLong("bearmaps.slowRouteMillis", 250);
+    private static final LongAdder SLOW_ROUTES = Metrics.counter("bearmaps_slow_routes_total",
+            "Routes slower than the slow route threshold.");
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    /**
+     * A directory of OSM change files (.osc, or .osc.gz, .bz2 or .zst) to apply to the graph
+     * as they turn up, in name order. Off unless set with -Dbearmaps.changeDir=...
+     */
+    private static final String CHANGE_DIR = System.getProperty("bearmaps.changeDir");
+    /**
+     * Seconds between looks for a newer OSM file, which is then loaded again, and for new
+     * change files. Override with -Dbearmaps.mapPollSeconds=...; 0 turns looking off.
+     */
+    private static final long MAP_POLL_SECONDS = Long.getLong("bearmaps.mapPollSeconds", 60);
+    private static final LongAdder CHANGES_APPLIED = Metrics.counter(
+            "bearmaps_osm_changes_applied_total", "OSM change files applied to the graph.");
+    private static final LongAdder MAP_RELOADS = Metrics.counter("bearmaps_map_reloads_total",
+            "Times the OSM file was loaded again while serving.");
+    private static final String SNAPSHOT_ATTRIBUTE = "bearmaps.snapshot";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -69,6 +159,13 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /** Most names /search suggests for a prefix. */
+    private static final int AUTOCOMPLETE_LIMIT = 10;
+    /**
+     * Distance, in miles, at which being farther from a /search center halves a name's
+     * score, when the request gives a center point rather than a view.
+     */
+    private static final double SEARCH_SCALE_MILES = 0.5;
 
     /**
      * The result of rastering must be a map containing all of the
@@ -77,9 +174,45 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    private static TilePyramid pyramid;
     private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /**
+     * The graph, its location indexes and the tile cache, all of one version of the map. A
+     * new version is put in place with a single swap; a request takes a hold on the snapshot
+     * that is current when it first needs one, and works on that one to its end.
+     */
+    private static final AtomicReference<MapSnapshot> currentSnapshot = new AtomicReference<>();
+    /** The shipped tiles, shared by the tile caches of all snapshots. */
+    private static TileStore shippedTiles;
+    /** Number of snapshots with rendered tiles made so far; names their spill directories. */
+    private static int generation;
+    /** When the OSM file was last modified as of the last time it was loaded. */
+    private static long mapModified;
+    /** Names of the change files in CHANGE_DIR applied so far. */
+    private static final Set<String> appliedChanges = new HashSet<>();
+    /**
+     * Looks for map updates and builds new snapshots, off the request threads, and closes
+     * old snapshots once they are let go of.
+     */
+    private static final ScheduledExecutorService mapUpdates =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "map-updates");
+                t.setDaemon(true);
+                return t;
+            });
+    private static PngEncoder pngEncoder;
+    private static TilePrefetcher prefetcher;
+    private static ResponseCompression compression;
+    /** Platform threads for CPU-bound work when serving on virtual threads, or null. */
+    private static ExecutorService cpuPool;
+    /** Identical route searches and overlays in flight at the same time run once. */
+    private static final SingleFlight<String, List<Long>> routeSearches =
+            new SingleFlight<>("route");
+    private static final SingleFlight<String, RouteOverlay> overlayRenders =
+            new SingleFlight<>("route_overlay");
+    /** Admission control of the expensive endpoints, each limited on its own. */
+    private static final Map<String, AdmissionController> admission = new HashMap<>();
+    private static final AtomicInteger activeRequests = new AtomicInteger();
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,12 +222,214 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        pyramid = TilePyramid.fromSystemProperties();
+        rasterer = new Rasterer(pyramid);
+        pngEncoder = new PngEncoder(PNG_DEFLATE_LEVEL, PNG_FILTER);
+        shippedTiles = openTileStore();
+        mapModified = new File(OSM_DB_PATH).lastModified();
+        currentSnapshot.set(newSnapshot(new GraphDB(OSM_DB_PATH), null));
+        prefetcher = new TilePrefetcher(pyramid.maxDepth, PREFETCH_BUSY_THRESHOLD,
+                activeRequests::get);
+        compression = new ResponseCompression(GZIP_LEVEL, GZIP_THRESHOLD,
+                Runtime.getRuntime().availableProcessors());
+        Metrics.gauge("bearmaps_requests_in_flight", "Requests being handled right now.",
+                activeRequests::get);
+        int cores = Runtime.getRuntime().availableProcessors();
+        admit("/raster", new AdmissionController(cores, 1, 4 * cores, 4 * cores,
+                ADMISSION_WAIT_MILLIS, RASTER_TARGET_MILLIS));
+        admit("/route", new AdmissionController(cores, 1, 4 * cores, 4 * cores,
+                ADMISSION_WAIT_MILLIS, ROUTE_TARGET_MILLIS));
+        admit("/search", new AdmissionController(4 * cores, 2, 16 * cores, 16 * cores,
+                ADMISSION_WAIT_MILLIS, SEARCH_TARGET_MILLIS));
+        if (MAP_POLL_SECONDS > 0) {
+            mapUpdates.scheduleWithFixedDelay(MapServer::checkForUpdates, 0, MAP_POLL_SECONDS,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Loads the OSM file again if it was modified since it was last loaded, and applies the
+     * change files that have turned up since the last look. A file that cannot be loaded is
+     * not tried again until it is modified again, as when it was looked at half written.
+     */
+    private static synchronized void checkForUpdates() {
+        long modified = new File(OSM_DB_PATH).lastModified();
+        if (modified != mapModified) {
+            mapModified = modified;
+            try {
+                reload();
+            } catch (IOException | XMLStreamException | RuntimeException e) {
+                System.out.println("Could not reload " + OSM_DB_PATH + ": " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (CHANGE_DIR != null) {
+            applyNewChanges();
+        }
+    }
+
+    /**
+     * Loads the OSM file again, and puts a snapshot of the new graph in place of the current
+     * one once it is complete. Meanwhile requests keep being served from the current one, so
+     * for a while there are two graphs in memory. Change files applied before are not
+     * applied again; the file is taken to be newer than them.
+     */
+    static synchronized void reload()
+            throws IOException, XMLStreamException, InterruptedException {
+        long start = System.nanoTime();
+        GraphDB g = GraphDB.read(OSM_DB_PATH);
+        publish(newSnapshot(g, currentSnapshot.get()));
+        MAP_RELOADS.increment();
+        System.out.println("Reloaded " + OSM_DB_PATH + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Applies the change files in CHANGE_DIR that have not been applied yet, in name order.
+     * Stops at the first that fails, so that none is applied out of order; it is tried again
+     * at the next look.
+     */
+    private static synchronized void applyNewChanges() {
+        File[] files = new File(CHANGE_DIR).listFiles((dir, name) ->
+                name.matches(".*\\.osc(\\.gz|\\.bz2|\\.zst)?"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (appliedChanges.contains(f.getName())) {
+                continue;
+            }
+            try {
+                applyChange(f.getPath());
+            } catch (IOException | XMLStreamException | RuntimeException e) {
+                System.out.println("Could not apply " + f + ": " + e);
+                return;
+            }
+            appliedChanges.add(f.getName());
+        }
+    }
+
+    /**
+     * Applies an OSM change file to the graph. The changed graph is built beside the current
+     * one, sharing all it can with it, and the location indexes are rebuilt only if a named
+     * node changed; then a snapshot of it is put in place. Requests already running finish
+     * on the snapshot they started with.
+     * @param path The change file, possibly compressed.
+     */
+    static synchronized void applyChange(String path) throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        OsmChange change;
+        try (InputStream in = OsmInput.open(path)) {
+            change = OsmChange.read(in);
+        }
+        /* Only this thread lets go of the server's hold, so current stays open meanwhile. */
+        MapSnapshot current = currentSnapshot.get();
+        publish(newSnapshot(current.graph.withChange(change), current));
+        CHANGES_APPLIED.increment();
+        System.out.println("Applied " + path + ": " + change.nodes.size() + " nodes and "
+                + change.ways.size() + " ways in " + (System.nanoTime() - start) / 1000000
+                + " ms");
+    }
+
+    /** Opens the packed tile file if there is one, and the tile directory otherwise. */
+    private static TileStore openTileStore() {
+        if (new File(TILE_PACK_PATH).exists()) {
+            try {
+                return new PackedTileStore(TILE_PACK_PATH);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new DirectoryTileStore(IMG_ROOT);
+    }
+
+    /**
+     * Makes a snapshot of a graph. Its tile cache serves the shipped tiles, with the levels
+     * deeper than they reach rendered from the graph on demand. The shipped tiles are the
+     * same whatever the graph, so what the previous snapshot's cache holds of them is
+     * carried over, and without rendered levels the cache is simply shared. If a change made
+     * g from the previous snapshot's graph, the rendered tiles away from the roads it
+     * changed are carried over as well, and the roads to draw are updated rather than
+     * gathered again.
+     * @param g The graph.
+     * @param previous The snapshot the new one replaces, or null.
+     */
+    private static synchronized MapSnapshot newSnapshot(GraphDB g, MapSnapshot previous) {
+        int fromDepth = TilePyramid.standard().maxDepth + 1;
+        if (pyramid.maxDepth < fromDepth) {
+            TileCache tiles = previous != null ? previous.tileCache
+                    : new TileCache(shippedTiles, pngEncoder);
+            return new MapSnapshot(g, previous, AUTOCOMPLETE_LIMIT, tiles, null);
+        }
+        RenderedTileStore rendered = null;
+        if (previous != null && g.isChangeOf(previous.graph)
+                && previous.tileCache.store() instanceof RenderedTileStore) {
+            rendered = ((RenderedTileStore) previous.tileCache.store())
+                    .withChange(previous.graph, g);
+        }
+        if (rendered == null) {
+            generation += 1;
+            try {
+                rendered = new RenderedTileStore(shippedTiles,
+                        new RoadTileRenderer(pyramid, new EdgeGrid(g)), g.generation(),
+                        pngEncoder, fromDepth, pyramid.maxDepth, RENDERED_TILES_IN_MEMORY,
+                        Paths.get(RENDER_SPILL_DIR, Integer.toString(generation)));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        TileCache tiles = new TileCache(rendered != null ? rendered : shippedTiles, pngEncoder);
+        if (previous != null) {
+            tiles.carryOver(previous.tileCache, fromDepth);
+        }
+        if (rendered == null) {
+            return new MapSnapshot(g, previous, AUTOCOMPLETE_LIMIT, tiles, null);
+        }
+        RenderedTileStore store = rendered;
+        /* Closed off the request thread that happens to let go last. */
+        return new MapSnapshot(g, previous, AUTOCOMPLETE_LIMIT, tiles, () ->
+                mapUpdates.execute(() -> {
+                    try {
+                        store.release();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }));
+    }
+
+    /** Puts a snapshot in place of the current one, and lets go of the server's hold on that. */
+    private static void publish(MapSnapshot next) {
+        MapSnapshot old = currentSnapshot.getAndSet(next);
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    /**
+     * Returns the snapshot a request works on: the one current when the request first asks,
+     * with a hold taken on it that is let go of when the request ends.
+     */
+    private static MapSnapshot snapshot(spark.Request req) {
+        MapSnapshot s = req.attribute(SNAPSHOT_ATTRIBUTE);
+        while (s == null) {
+            /* Fails only if the snapshot was replaced and closed since it was read. */
+            MapSnapshot current = currentSnapshot.get();
+            if (current.acquire()) {
+                s = current;
+                req.attribute(SNAPSHOT_ATTRIBUTE, s);
+            }
+        }
+        return s;
     }
 
     public static void main(String[] args) {
         initialize();
+        if (Boolean.getBoolean("bearmaps.virtualThreads")) {
+            useVirtualThreads();
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -102,6 +437,30 @@ public class MapServer {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
+            activeRequests.incrementAndGet();
+            request.attribute(START_TIME_ATTRIBUTE, System.nanoTime());
+            /* Turn expensive requests away quickly when their endpoint is at capacity. */
+            AdmissionController gate = admission.get(endpointOf(request.pathInfo()));
+            if (gate != null) {
+                if (!gate.acquire()) {
+                    response.header("Retry-After", RETRY_AFTER_SECONDS);
+                    halt(SERVICE_UNAVAILABLE_RESPONSE, "Server busy - try again later.");
+                }
+                request.attribute(ADMIT_TIME_ATTRIBUTE, System.nanoTime());
+            }
+        });
+        afterAfter((request, response) -> {
+            activeRequests.decrementAndGet();
+            Long admitted = request.attribute(ADMIT_TIME_ATTRIBUTE);
+            if (admitted != null) {
+                admission.get(endpointOf(request.pathInfo()))
+                        .release(System.nanoTime() - admitted);
+            }
+            MapSnapshot snapshot = request.attribute(SNAPSHOT_ATTRIBUTE);
+            if (snapshot != null) {
+                snapshot.release();
+            }
+            recordRequest(request, response);
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
@@ -109,37 +468,134 @@ public class MapServer {
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
+            long start = System.nanoTime();
             Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            RASTER_PARAMS_TIME.recordSince(start);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
+            byte[] baseImage = null;
+            RouteOverlay overlay = null;
 
             if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
-                rasteredImgParams.put("b64_encoded_image_data", encodedImage);
+                /* Rasters depend only on the tile window and the route, so the client's
+                 * copy can be validated before anything is drawn. */
+                MapSnapshot s = snapshot(req);
+                TileCache tiles = s.tileCache;
+                /* The validator and the overlay are of the same route. */
+                RouteGeometry route = s.route.get();
+                String etag = rasterETag(tiles, route, rasteredImgParams);
+                res.header("ETag", etag);
+                res.header("Cache-Control", "no-cache");
+                if (etagMatches(req.headers("If-None-Match"), etag)) {
+                    res.status(NOT_MODIFIED_RESPONSE);
+                    return "";
+                }
+                /* The base map is shared by all users; the route is a separate layer. */
+                baseImage = onCpu(() -> getBaseImage(tiles, rasteredImgParams));
+                prefetchAround(tiles, rasteredImgParams);
+                overlay = onCpu(() -> getRouteOverlay(route, rasteredImgParams));
+            }
+
+            /* Stream the response as Json; the images are base64 encoded on the fly. */
+            JsonStreamWriter json = startJson(req, res);
+            json.beginObject();
+            for (Map.Entry<String, Object> e : rasteredImgParams.entrySet()) {
+                json.name(e.getKey()).value(e.getValue());
             }
+            if (baseImage != null) {
+                json.name("b64_encoded_image_data").base64Value(baseImage);
+            }
+            if (overlay != null) {
+                RouteOverlay o = overlay;
+                json.name("b64_encoded_route_data").base64Value(os -> o.writePng(pngEncoder, os));
+                json.name("route_overlay_x").value(o.x);
+                json.name("route_overlay_y").value(o.y);
+            }
+            json.endObject().close();
+            return "";
+        });
 
-            /* Encode response to Json */
-            Gson gson = new Gson();
-            return gson.toJson(rasteredImgParams);
+        /* Define the endpoint for single tiles, e.g. /tiles/3/4/6 for d3_x4_y6.png. */
+        get("/tiles/:depth/:x/:y", (req, res) -> {
+            int depth = 0, x = 0, y = 0;
+            try {
+                depth = Integer.parseInt(req.params("depth"));
+                x = Integer.parseInt(req.params("x"));
+                y = Integer.parseInt(req.params("y"));
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+            /* Out of range coordinates would share cache keys with real tiles. */
+            if (!TileStore.isAddressable(depth, x, y)) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            TileCache tiles = snapshot(req).tileCache;
+            TileStore store = tiles.store();
+            String etag = toETag(tiles.tileHash(depth, x, y));
+            res.header("ETag", etag);
+            res.header("Cache-Control", TILE_CACHE_CONTROL);
+            res.raw().setDateHeader("Last-Modified", store.lastModified());
+            String ifNoneMatch = req.headers("If-None-Match");
+            long ifModifiedSince = req.raw().getDateHeader("If-Modified-Since");
+            if (ifNoneMatch != null ? etagMatches(ifNoneMatch, etag)
+                    : ifModifiedSince >= store.lastModified() / 1000 * 1000) {
+                res.status(NOT_MODIFIED_RESPONSE);
+                return "";
+            }
+            ByteBuffer png = store.tile(depth, x, y);
+            if (png == null) {
+                halt(NOT_FOUND_RESPONSE, "No such tile.");
+            }
+            byte[] bytes = new byte[png.remaining()];
+            png.get(bytes);
+            res.type("image/png");
+            return bytes;
         });
 
         /* Define the routing endpoint for HTTP GET requests. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
-            Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
-            routeParams.put("directions_success", directions.length() > 0);
-            routeParams.put("directions", directions);
-            Gson gson = new Gson();
-            return gson.toJson(routeParams);
+            Router.SearchStats stats = new Router.SearchStats();
+            /* The whole request works on one graph, whatever replaces it meanwhile. */
+            MapSnapshot s = snapshot(req);
+            GraphDB g = s.graph;
+            long[] ends = Router.snap(g, params.get("start_lon"), params.get("start_lat"),
+                    params.get("end_lon"), params.get("end_lat"), stats);
+            long waitStart = System.nanoTime();
+            /* Requests that snap to the same vertices of the same graph, with the same
+             * destination to aim the search at, share one search, and so its path, which
+             * none of them may change. */
+            double destlon = params.get("end_lon");
+            double destlat = params.get("end_lat");
+            List<Long> path = routeSearches.run(g.generation() + ":" + ends[0] + "_" + ends[1]
+                    + "_" + destlon + "_" + destlat, () -> Collections.unmodifiableList(onCpu(() ->
+                    Router.shortestPath(g, ends[0], ends[1], destlon, destlat, stats))));
+            if (stats.totalNanos == 0) {
+                /* Another request ran the search; this one only waited for its result. */
+                stats.shared = true;
+                stats.totalNanos = stats.snapNanos + System.nanoTime() - waitStart;
+            }
+            SHORTEST_PATH_TIME.record(stats.totalNanos);
+            if (stats.totalNanos > SLOW_ROUTE_MILLIS * 1000000) {
+                SLOW_ROUTES.increment();
+                System.out.println("Slow route from " + params.get("start_lon") + ", "
+                        + params.get("start_lat") + " to " + params.get("end_lon") + ", "
+                        + params.get("end_lat") + ": " + stats);
+            }
+            s.route.set(new RouteGeometry(g, path));
+            String directions = onCpu(() -> getDirectionsText(g, path));
+            JsonStreamWriter json = startJson(req, res).beginObject()
+                    .name("routing_success").value(!path.isEmpty())
+                    .name("directions_success").value(directions.length() > 0)
+                    .name("directions").value(directions);
+            /* With debug=1, also report how much work the search did. */
+            if ("1".equals(req.queryParams("debug"))) {
+                json.name("search_stats").value(stats.toMap());
+            }
+            json.endObject().close();
+            return "";
         });
 
         /* Define the API endpoint for clearing the current route. */
@@ -152,16 +608,35 @@ public class MapServer {
         get("/search", (req, res) -> {
             Set<String> reqParams = req.queryParams();
             String term = req.queryParams("term");
-            Gson gson = new Gson();
+            /* An optional center point or view, to rank nearby locations first. */
+            double[] near = getSearchCenter(req);
+            JsonStreamWriter json = startJson(req, res);
             /* Search for actual location data. */
             if (reqParams.contains("full")) {
-                List<Map<String, Object>> data = getLocations(term);
-                return gson.toJson(data);
+                MapSnapshot s = snapshot(req);
+                List<Map<String, Object>> data = near == null ? getLocations(s, term)
+                        : s.locationIndex.lookup(term, near[0], near[1]);
+                json.value(data);
             } else {
-                /* Search for prefix matching strings. */
-                List<String> matches = getLocationsByPrefix(term);
-                return gson.toJson(matches);
+                /* Search for prefix matching strings, or for similar ones if there are none
+                 * or fuzzy matches are asked for. */
+                MapSnapshot s = snapshot(req);
+                List<String> matches = reqParams.contains("fuzzy") ? null
+                        : near == null ? getLocationsByPrefix(s, term)
+                        : getLocationsByPrefixNear(s, term, near[0], near[1], near[2]);
+                if (matches == null || matches.isEmpty()) {
+                    matches = getLocationsBySimilarity(s, term);
+                }
+                json.value(matches);
             }
+            json.close();
+            return "";
+        });
+
+        /* Define the endpoint for server metrics, in the Prometheus text format. */
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4; charset=utf-8");
+            return Metrics.scrape();
         });
 
         /* Define map application redirect */
@@ -198,94 +673,327 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
+     * Reads where a /search is looking from: either a center point, lat and lon, or a view,
+     * ullat, ullon, lrlat and lrlon, whose center is used and whose half diagonal sets how
+     * fast distance lowers a score.
+     * @return The center's longitude and latitude and the distance scale in miles, or null
+     * if the request gives neither.
+     */
+    private static double[] getSearchCenter(spark.Request req) {
+        Set<String> reqParams = req.queryParams();
+        if (reqParams.containsAll(Arrays.asList("ullat", "ullon", "lrlat", "lrlon"))) {
+            Map<String, Double> view = getRequestParams(req,
+                    new String[]{"ullat", "ullon", "lrlat", "lrlon"});
+            double lon = (view.get("ullon") + view.get("lrlon")) / 2;
+            double lat = (view.get("ullat") + view.get("lrlat")) / 2;
+            double scale = GraphDB.distance(lon, lat, view.get("ullon"), view.get("ullat"));
+            return new double[]{lon, lat, scale > 0 ? scale : SEARCH_SCALE_MILES};
+        }
+        if (reqParams.contains("lat") && reqParams.contains("lon")) {
+            Map<String, Double> center = getRequestParams(req, new String[]{"lat", "lon"});
+            return new double[]{center.get("lon"), center.get("lat"), SEARCH_SCALE_MILES};
+        }
+        return null;
+    }
+
+    /**
+     * Returns the PNG of the base map corresponding to rasteredImgParams. The base map
+     * never contains the route, so it comes from the composite cache shared by all users.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+    private static byte[] getBaseImage(TileCache tiles,
+                                       Map<String, Object> rasteredImageParams) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
-
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
+        int rows = renderGrid.length;
+        int cols = renderGrid[0].length;
+        rasteredImageParams.put("raster_width", cols * MapServer.TILE_SIZE);
+        rasteredImageParams.put("raster_height", rows * MapServer.TILE_SIZE);
+        return tiles.composite((int) rasteredImageParams.get("depth"),
+                (int) rasteredImageParams.get("grid_ul_x"),
+                (int) rasteredImageParams.get("grid_ul_y"), cols, rows);
+    }
+
+    /**
+     * Starts loading, in the background, the tiles the client is likely to ask for next
+     * when it pans or zooms away from the raster in rasteredImageParams.
+     */
+    private static void prefetchAround(TileCache tiles,
+                                       Map<String, Object> rasteredImageParams) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        prefetcher.prefetch(tiles, (int) rasteredImageParams.get("depth"),
+                (int) rasteredImageParams.get("grid_ul_x"),
+                (int) rasteredImageParams.get("grid_ul_y"),
+                renderGrid[0].length, renderGrid.length);
+    }
+
+    /**
+     * Starts a Json response that is written straight to the client, compressed if the
+     * client accepts it. The route handler must close the writer and return an empty body.
+     */
+    private static JsonStreamWriter startJson(spark.Request req, spark.Response res)
+            throws IOException {
+        res.type("application/json");
+        return new JsonStreamWriter(compression.open(req.raw(), res.raw()));
+    }
+
+    /**
+     * Draws the part of route visible in the raster described by rasteredImageParams into
+     * a transparent overlay.
+     * @return The overlay, or null if the route is empty or none of it is visible.
+     */
+    private static RouteOverlay getRouteOverlay(RouteGeometry route,
+                                                Map<String, Object> rasteredImageParams)
+            throws Exception {
+        double ullon = (double) rasteredImageParams.get("raster_ul_lon");
+        double ullat = (double) rasteredImageParams.get("raster_ul_lat");
+        double lrlon = (double) rasteredImageParams.get("raster_lr_lon");
+        double lrlat = (double) rasteredImageParams.get("raster_lr_lat");
+        int width = (int) rasteredImageParams.get("raster_width");
+        int height = (int) rasteredImageParams.get("raster_height");
+
+        /* The overlay depends only on the route and the tile window. */
+        String key = route.fingerprint + "_" + rasteredImageParams.get("depth") + "_"
+                + rasteredImageParams.get("grid_ul_x") + "_"
+                + rasteredImageParams.get("grid_ul_y") + "_" + width + "_" + height;
+        return overlayRenders.run(key, () -> {
+            long start = System.nanoTime();
+            RouteOverlay overlay = RouteOverlay.render(route, ullon, ullat, lrlon, lrlat,
+                    width, height);
+            ROUTE_OVERLAY_TIME.recordSince(start);
+            return overlay;
+        });
+    }
+
+    /**
+     * Serves requests on virtual threads, if the runtime has them, and moves CPU-bound work
+     * to a pool of one platform thread per core. Must run before the first route is defined.
+     */
+    private static void useVirtualThreads() {
+        VirtualThreadPool pool = VirtualThreadPool.create();
+        if (pool == null) {
+            System.out.println("Virtual threads need Java 21 or later; "
+                    + "using the default thread pool.");
+            return;
+        }
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                new EmbeddedJettyFactory().withThreadPool(pool));
+        AtomicInteger threads = new AtomicInteger();
+        cpuPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            r -> {
+                Thread t = new Thread(r, "bearmaps-cpu-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    /**
+     * Runs CPU-bound work, such as routing and drawing images. With virtual threads it runs
+     * on cpuPool so that it cannot hold the carriers of the virtual threads for long;
+     * otherwise the request thread runs it itself.
+     */
+    private static <T> T onCpu(Callable<T> work) throws Exception {
+        if (cpuPool == null) {
+            return work.call();
+        }
+        try {
+            return cpuPool.submit(work).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
             }
+            throw (Exception) cause;
         }
+    }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
-            Graphics2D g2d = (Graphics2D) graphic;
-            g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
-            g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
-                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+    /** Puts an endpoint under admission control and exports its concurrency limit. */
+    private static void admit(String endpoint, AdmissionController gate) {
+        admission.put(endpoint, gate);
+        Metrics.gauge("bearmaps_admission_limit", "Concurrency limit of each endpoint.",
+                gate::limit, "endpoint", endpoint);
+    }
+
+    /**
+     * Returns the endpoint a request path belongs to. Paths are reduced to their endpoint
+     * so that, for instance, every tile does not get metrics of its own.
+     */
+    private static String endpointOf(String path) {
+        if (path.startsWith("/tiles/")) {
+            return "/tiles";
+        }
+        return ENDPOINTS.contains(path) ? path : "other";
+    }
+
+    /**
+     * The latency histogram and response counters of one endpoint. The counter of a status
+     * is looked up on its first response and kept, so a request looks nothing up by label.
+     */
+    private static final class RequestMetrics {
+        /** Statuses below this have their counters kept; HTTP statuses are all below 600. */
+        private static final int STATUSES = 600;
+
+        private final String endpoint;
+        private final LatencyHistogram duration;
+        private final AtomicReferenceArray<LongAdder> responses =
+                new AtomicReferenceArray<>(STATUSES);
+
+        RequestMetrics(String endpoint) {
+            this.endpoint = endpoint;
+            this.duration = Metrics.histogram("bearmaps_request_duration_seconds",
+                    "Time from receiving a request to finishing its response, by endpoint.",
+                    "endpoint", endpoint);
         }
 
-        rasteredImageParams.put("raster_width", img.getWidth());
-        rasteredImageParams.put("raster_height", img.getHeight());
+        LongAdder responses(int status) {
+            if (status < 0 || status >= STATUSES) {
+                return lookUp(status);
+            }
+            LongAdder counter = responses.get(status);
+            if (counter == null) {
+                /* Racing first responses look up the same counter. */
+                counter = lookUp(status);
+                responses.set(status, counter);
+            }
+            return counter;
+        }
 
-        try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
-            e.printStackTrace();
+        private LongAdder lookUp(int status) {
+            return Metrics.counter("bearmaps_responses_total",
+                    "Responses by endpoint and status.",
+                    "endpoint", endpoint, "status", Integer.toString(status));
         }
+    }
 
+    private static Map<String, RequestMetrics> requestMetrics() {
+        Map<String, RequestMetrics> metrics = new HashMap<>();
+        for (String endpoint : ENDPOINTS) {
+            metrics.put(endpoint, new RequestMetrics(endpoint));
+        }
+        metrics.put("other", new RequestMetrics("other"));
+        return metrics;
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
-            try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
-            }
+    /** Records the latency and status of a finished request. */
+    private static void recordRequest(spark.Request req, spark.Response res) {
+        Long start = req.attribute(START_TIME_ATTRIBUTE);
+        if (start == null) {
+            return;
         }
-        return tileImg;
+        RequestMetrics metrics = REQUEST_METRICS.get(endpointOf(req.pathInfo()));
+        metrics.duration.recordSince(start);
+        metrics.responses(res.raw().getStatus()).increment();
     }
 
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        MapSnapshot current = currentSnapshot.get();
+        if (current != null) {
+            current.route.set(RouteGeometry.EMPTY);
+        }
+    }
+
+    /**
+     * Returns the ETag of the raster response for rasteredImageParams: a hash of the tiles
+     * in its window, the route drawn over them and the PNG settings, which together
+     * determine every byte of the response.
+     */
+    private static String rasterETag(TileCache tiles, RouteGeometry route,
+                                     Map<String, Object> rasteredImageParams) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        long h = tiles.windowHash((int) rasteredImageParams.get("depth"),
+                (int) rasteredImageParams.get("grid_ul_x"),
+                (int) rasteredImageParams.get("grid_ul_y"),
+                renderGrid[0].length, renderGrid.length);
+        h = TileCache.mix(h, route.fingerprint);
+        h = TileCache.mix(h, PNG_DEFLATE_LEVEL * 31 + PNG_FILTER.ordinal());
+        return toETag(h);
+    }
+
+    private static String toETag(long hash) {
+        return "\"" + Long.toHexString(hash) + "\"";
+    }
+
+    /**
+     * Returns whether an If-None-Match header matches etag. The header may list several
+     * tags, possibly weak or of a compressed body, or be "*". Matching ignores the
+     * encoding: a client holding the gzipped body holds the same representation.
+     */
+    private static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || ResponseCompression.identityETag(tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collects the best names of OSM locations that prefix-match the query string, without
+     * looking at any other names.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
-     * @return A <code>List</code> of the full names of locations whose cleaned name matches the
-     * cleaned <code>prefix</code>.
+     * @return A <code>List</code> of at most AUTOCOMPLETE_LIMIT full names of locations whose
+     * cleaned name matches the cleaned <code>prefix</code>, best first.
      */
     public static List<String> getLocationsByPrefix(String prefix) {
-        return new LinkedList<>();
+        return getLocationsByPrefix(currentSnapshot.get(), prefix);
+    }
+
+    /** Completes prefix from the names of snapshot s, as getLocationsByPrefix(prefix) does. */
+    static List<String> getLocationsByPrefix(MapSnapshot s, String prefix) {
+        return s.prefixIndex.complete(prefix);
+    }
+
+    /**
+     * Collects the best names of OSM locations that prefix-match the query string, ranked by
+     * how much of the name the prefix covers and by how close the name's nearest location
+     * is to a point. Only locations near the point are looked at, until no farther one could
+     * make the cut.
+     * @param prefix Prefix string to be searched for. Could be any case, with our without
+     *               punctuation.
+     * @param lon Longitude of the point.
+     * @param lat Latitude of the point.
+     * @param scaleMiles Distance from the point at which a name's score is halved.
+     * @return A <code>List</code> of at most AUTOCOMPLETE_LIMIT full names, best first.
+     */
+    public static List<String> getLocationsByPrefixNear(String prefix, double lon, double lat,
+                                                        double scaleMiles) {
+        return getLocationsByPrefixNear(currentSnapshot.get(), prefix, lon, lat, scaleMiles);
+    }
+
+    /** Ranks the names of snapshot s, as getLocationsByPrefixNear(prefix, ...) does. */
+    static List<String> getLocationsByPrefixNear(MapSnapshot s, String prefix, double lon,
+                                                 double lat, double scaleMiles) {
+        String p = GraphDB.cleanString(prefix == null ? "" : prefix);
+        return s.locationGrid.best(lon, lat, scaleMiles, AUTOCOMPLETE_LIMIT, p, key ->
+                key.startsWith(p) ? 0.5 + 0.5 * p.length() / Math.max(1, key.length()) : 0);
+    }
+
+    /**
+     * Collects the names of OSM locations most similar to the query string, to suggest
+     * locations despite typos.
+     * @param query String to be searched for. Could be any case, with our without
+     *              punctuation.
+     * @return A <code>List</code> of at most AUTOCOMPLETE_LIMIT full names of locations,
+     * most similar first.
+     */
+    public static List<String> getLocationsBySimilarity(String query) {
+        return getLocationsBySimilarity(currentSnapshot.get(), query);
+    }
+
+    /** Searches the names of snapshot s, as getLocationsBySimilarity(query) does. */
+    static List<String> getLocationsBySimilarity(MapSnapshot s, String query) {
+        return s.fuzzyIndex.search(query);
     }
 
     /**
@@ -301,7 +1009,12 @@ public class MapServer {
      * "id" : Number, The id of the node. <br>
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
-        return new LinkedList<>();
+        return getLocations(currentSnapshot.get(), locationName);
+    }
+
+    /** Looks locationName up in snapshot s, as getLocations(locationName) does. */
+    static List<Map<String, Object>> getLocations(MapSnapshot s, String locationName) {
+        return s.locationIndex.lookup(locationName);
     }
 
     /**
@@ -326,11 +1039,13 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route found in g and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(GraphDB g, List<Long> route) {
+        long start = System.nanoTime();
+        List<Router.NavigationDirection> directions = Router.routeDirections(g, route);
+        DIRECTIONS_TIME.recordSince(start);
         if (directions == null || directions.isEmpty()) {
           return "";
         }
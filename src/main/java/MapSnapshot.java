@@ -0,0 +1,100 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Everything the server derives from one version of the map: the graph, the indexes of its
+ * locations, and the tile cache, whose deeper tiles are drawn from the graph's roads. A
+ * snapshot never changes once made, but for the route last found on its graph. A new
+ * version of the map makes a new snapshot, which MapServer puts in place of the old one in
+ * a single step.
+ *
+ * A snapshot counts its holders: the server while it is the current one, and each request
+ * using it. A request takes its hold at the start and keeps working on the same snapshot
+ * however many new ones appear meanwhile. Once the server has moved on and the last request
+ * lets go, the snapshot is closed, releasing what it alone holds, such as the spilled
+ * tiles of its roads; the rest goes with the last reference to it.
+ */
+public class MapSnapshot {
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    static {
+        Metrics.gauge("bearmaps_map_snapshots_open",
+                "Map snapshots not closed yet, the current one included.", OPEN::get);
+    }
+
+    final GraphDB graph;
+    final PrefixIndex prefixIndex;
+    final LocationIndex locationIndex;
+    final FuzzyIndex fuzzyIndex;
+    final LocationGrid locationGrid;
+    /** The tile cache, or null if there is none. */
+    final TileCache tileCache;
+    /**
+     * The route drawn into rasters of this snapshot, replaced as a whole. A new snapshot
+     * starts out with the route of the one it replaces.
+     */
+    final AtomicReference<RouteGeometry> route;
+    /** Releases what only this snapshot holds, or null if there is nothing to release. */
+    private final Runnable onClose;
+    /** Number of holds on the snapshot; 0 once it is closed, after which it never rises. */
+    private final AtomicInteger holds = new AtomicInteger(1);
+
+    /**
+     * Makes a snapshot, held by its maker until released.
+     * @param graph The graph.
+     * @param previous The snapshot this one replaces, or null. Its location indexes are used
+     *                 again if the graph has the very same locations.
+     * @param completions Most results of a location search.
+     * @param tileCache The tile cache, or null.
+     * @param onClose Run once when the snapshot is closed, or null.
+     */
+    MapSnapshot(GraphDB graph, MapSnapshot previous, int completions, TileCache tileCache,
+                Runnable onClose) {
+        this.graph = graph;
+        this.tileCache = tileCache;
+        this.onClose = onClose;
+        route = new AtomicReference<>(previous != null ? previous.route.get()
+                : RouteGeometry.EMPTY);
+        if (previous != null && graph.sameLocations(previous.graph)) {
+            prefixIndex = previous.prefixIndex;
+            locationIndex = previous.locationIndex;
+            fuzzyIndex = previous.fuzzyIndex;
+            locationGrid = previous.locationGrid;
+        } else {
+            prefixIndex = new PrefixIndex(graph.locationNames(), completions);
+            locationIndex = new LocationIndex(graph);
+            fuzzyIndex = new FuzzyIndex(graph.locationNames(), completions);
+            locationGrid = new LocationGrid(graph);
+        }
+        OPEN.incrementAndGet();
+    }
+
+    /** Takes a hold on the snapshot, unless it has been closed; returns whether it did. */
+    boolean acquire() {
+        for (int n = holds.get(); n > 0; n = holds.get()) {
+            if (holds.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Lets go of a hold. Letting go of the last closes the snapshot. */
+    void release() {
+        int n = holds.decrementAndGet();
+        if (n < 0) {
+            throw new IllegalStateException("Snapshot released more often than held");
+        }
+        if (n == 0) {
+            OPEN.decrementAndGet();
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+
+    /** Returns whether the snapshot has been closed. */
+    boolean isClosed() {
+        return holds.get() == 0;
+    }
+}
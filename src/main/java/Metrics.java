@@ -0,0 +1,172 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * The process-wide registry of counters, gauges and latency histograms, written out in the
+ * Prometheus text exposition format by the /metrics endpoint. Classes look their metrics up
+ * once, into static fields, and then only increment or record; looking a series up by
+ * label values allocates, so hot paths with fixed labels should not do it per call.
+ * <pre>
+ *   private static final LatencyHistogram CLOSEST = Metrics.phase("closest");
+ *   long start = System.nanoTime(); ... CLOSEST.recordSince(start);
+ * </pre>
+ */
+public class Metrics {
+    /** Latency histograms of the internal phases of request handling. */
+    static final String PHASE_FAMILY = "bearmaps_phase_duration_seconds";
+    /** Histogram bucket bounds in seconds, from 100us to 10s. */
+    private static final double[] BUCKET_BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025,
+        0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /** A metric name with its help text, type and one series per set of label values. */
+    private static class Family {
+        final String help;
+        final String type;
+        final Map<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the given name and labels, creating it on first use.
+     * @param labels Alternating label names and values.
+     */
+    static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) series(name, help, "counter", labels, LongAdder::new);
+    }
+
+    /**
+     * Returns the latency histogram with the given name and labels, creating it on first use.
+     * @param labels Alternating label names and values.
+     */
+    static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) series(name, help, "histogram", labels,
+                LatencyHistogram::new);
+    }
+
+    /** Returns the histogram of one internal phase of request handling. */
+    static LatencyHistogram phase(String phase) {
+        return histogram(PHASE_FAMILY, "Time spent in each phase of request handling.",
+                "phase", phase);
+    }
+
+    /**
+     * Registers a gauge whose value is read from value at every scrape.
+     * @param labels Alternating label names and values.
+     */
+    static void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        series(name, help, "gauge", labels, () -> value);
+    }
+
+    private static Object series(String name, String help, String type, String[] labels,
+                                 Supplier<Object> create) {
+        Family family = FAMILIES.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        }
+        return family.series.computeIfAbsent(labelString(labels), l -> create.get());
+    }
+
+    /** Formats label pairs as name="value",... with values escaped. */
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name, value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String v = labels[i + 1];
+            for (int j = 0; j < v.length(); j += 1) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /** Returns every metric in the Prometheus text format, sorted by name and labels. */
+    static String scrape() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> f : new TreeMap<>(FAMILIES).entrySet()) {
+            String name = f.getKey();
+            Family family = f.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> s : new TreeMap<>(family.series).entrySet()) {
+                Object metric = s.getValue();
+                if (metric instanceof LongAdder) {
+                    sample(sb, name, s.getKey(), ((LongAdder) metric).sum());
+                } else if (metric instanceof DoubleSupplier) {
+                    sample(sb, name, s.getKey(), ((DoubleSupplier) metric).getAsDouble());
+                } else {
+                    writeHistogram(sb, name, s.getKey(), (LatencyHistogram) metric);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a histogram as cumulative buckets from one snapshot of its counts, so the
+     * buckets and the count agree even while durations are being recorded. A bucket of the
+     * fine histogram counts towards a bound only when all its values are within the bound,
+     * so no bound ever counts a duration above it.
+     */
+    private static void writeHistogram(StringBuilder sb, String name, String labels,
+                                       LatencyHistogram h) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long[] counts = h.snapshot();
+        long cumulative = 0;
+        int i = 0;
+        for (double bound : BUCKET_BOUNDS) {
+            long limit = (long) (bound * NANOS_PER_SECOND);
+            for (; i < counts.length && LatencyHistogram.highestValue(i) <= limit; i += 1) {
+                cumulative += counts[i];
+            }
+            sample(sb, name + "_bucket", prefix + "le=\"" + bound + "\"", cumulative);
+        }
+        for (; i < counts.length; i += 1) {
+            cumulative += counts[i];
+        }
+        sample(sb, name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        sample(sb, name + "_sum", labels, h.sum() / NANOS_PER_SECOND);
+        sample(sb, name + "_count", labels, cumulative);
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+}
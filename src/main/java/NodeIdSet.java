@@ -0,0 +1,52 @@
+import java.util.Arrays;
+
+/**
+ * A set of node ids held as one sorted array of primitive longs, eight bytes an id with no
+ * per-entry objects. Ids are added in any order, duplicates included, then sealed; after
+ * that the set is read only, so any number of threads can query it, each query a binary
+ * search.
+ */
+public class NodeIdSet {
+    private long[] ids = new long[1024];
+    private int size;
+    private boolean sealed;
+
+    /** Adds an id. Not allowed once the set is sealed. */
+    void add(long id) {
+        if (sealed) {
+            throw new IllegalStateException("Set is sealed");
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, 2 * size);
+        }
+        ids[size++] = id;
+    }
+
+    /** Sorts the ids, drops duplicates and the spare capacity, and makes the set read only. */
+    NodeIdSet seal() {
+        Arrays.sort(ids, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i += 1) {
+            if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        ids = Arrays.copyOf(ids, distinct);
+        size = distinct;
+        sealed = true;
+        return this;
+    }
+
+    /** Returns whether the set holds id. Only once the set is sealed. */
+    boolean contains(long id) {
+        if (!sealed) {
+            throw new IllegalStateException("Set is not sealed");
+        }
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /** Returns the number of ids, counting duplicates until the set is sealed. */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,82 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Locations of nodes by id, {lon, lat}, held as sorted arrays of primitives: 24 bytes a
+ * node, with no per-entry objects. Read only once made, so any number of threads can read
+ * it. Each lookup is a binary search and returns a new array.
+ */
+public class NodeLocations extends AbstractMap<Long, double[]> {
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+
+    /** Copies the locations of a map. */
+    NodeLocations(Map<Long, double[]> locations) {
+        ids = locations.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        lons = new double[ids.length];
+        lats = new double[ids.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            double[] coord = locations.get(ids[i]);
+            lons[i] = coord[0];
+            lats[i] = coord[1];
+        }
+    }
+
+    private int indexOf(Object key) {
+        return key instanceof Long ? Arrays.binarySearch(ids, (Long) key) : -1;
+    }
+
+    @Override
+    public double[] get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : new double[] {lons[i], lats[i]};
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public Set<Map.Entry<Long, double[]>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, double[]>>() {
+            @Override
+            public int size() {
+                return ids.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<Long, double[]>> iterator() {
+                return new Iterator<Map.Entry<Long, double[]>>() {
+                    private int i;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < ids.length;
+                    }
+
+                    @Override
+                    public Map.Entry<Long, double[]> next() {
+                        if (i == ids.length) {
+                            throw new NoSuchElementException();
+                        }
+                        i += 1;
+                        return new AbstractMap.SimpleImmutableEntry<>(ids[i - 1],
+                                new double[] {lons[i - 1], lats[i - 1]});
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The nodes and ways an OSM change file (.osc) creates, modifies and deletes, read with a
+ * pull parser. A change file lists whole elements, so each node and way is kept as the file
+ * leaves it: the last entry for an id wins, and a deletion is kept as a null. Ways are kept
+ * whatever their tags, since a way that stops being a road has to leave the graph.
+ */
+public class OsmChange {
+    /** A node as the change leaves it. */
+    static final class Node {
+        final double lon;
+        final double lat;
+        /** Null if it has no name. */
+        final String name;
+
+        Node(double lon, double lat, String name) {
+            this.lon = lon;
+            this.lat = lat;
+            this.name = name;
+        }
+    }
+
+    /** A way as the change leaves it. */
+    static final class Way {
+        final long[] refs;
+        /** Null if it has no highway tag. */
+        final String highway;
+        /** Null if it has no name. */
+        final String name;
+
+        Way(long[] refs, String highway, String name) {
+            this.refs = refs;
+            this.highway = highway;
+            this.name = name;
+        }
+
+        /** Returns whether the way is one of the roads the graph is built from. */
+        boolean isRoad() {
+            return refs.length > 1 && GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway);
+        }
+    }
+
+    /** Changed nodes in file order, by id; null where a node is deleted. */
+    final Map<Long, Node> nodes = new LinkedHashMap<>();
+    /** Changed ways in file order, by id; null where a way is deleted. */
+    final Map<Long, Way> ways = new LinkedHashMap<>();
+
+    private OsmChange() {
+    }
+
+    /**
+     * Reads a whole osmChange document. Relations are skipped.
+     * @param in The document.
+     * @return Its changes.
+     */
+    static OsmChange read(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader r = factory.createXMLStreamReader(in);
+        OsmChange change = new OsmChange();
+        boolean deleting = false;
+        long id = 0;
+        double lon = 0;
+        double lat = 0;
+        boolean inNode = false;
+        boolean inWay = false;
+        List<Long> refs = new ArrayList<>();
+        String highway = null;
+        String name = null;
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "create":
+                        case "modify":
+                            deleting = false;
+                            break;
+                        case "delete":
+                            deleting = true;
+                            break;
+                        case "node":
+                            inNode = true;
+                            id = Long.parseLong(r.getAttributeValue(null, "id"));
+                            if (!deleting) {
+                                lon = Double.parseDouble(r.getAttributeValue(null, "lon"));
+                                lat = Double.parseDouble(r.getAttributeValue(null, "lat"));
+                            }
+                            name = null;
+                            break;
+                        case "way":
+                            inWay = true;
+                            id = Long.parseLong(r.getAttributeValue(null, "id"));
+                            refs.clear();
+                            highway = null;
+                            name = null;
+                            break;
+                        case "nd":
+                            if (inWay) {
+                                refs.add(Long.parseLong(r.getAttributeValue(null, "ref")));
+                            }
+                            break;
+                        case "tag":
+                            String k = r.getAttributeValue(null, "k");
+                            if ((inNode || inWay) && "name".equals(k)) {
+                                name = r.getAttributeValue(null, "v");
+                            } else if (inWay && "highway".equals(k)) {
+                                highway = r.getAttributeValue(null, "v");
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            inNode = false;
+                            change.nodes.put(id, deleting ? null : new Node(lon, lat, name));
+                            break;
+                        case "way":
+                            inWay = false;
+                            long[] wayRefs = new long[refs.size()];
+                            for (int i = 0; i < wayRefs.length; i += 1) {
+                                wayRefs[i] = refs.get(i);
+                            }
+                            change.ways.put(id, deleting ? null
+                                    : new Way(wayRefs, highway, name));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return change;
+    }
+}
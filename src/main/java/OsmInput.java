@@ -0,0 +1,196 @@
+import io.airlift.compress.bzip2.BZip2HadoopStreams;
+import io.airlift.compress.zstd.ZstdInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens OSM files, plain or compressed with gzip, bzip2 or zstd. The format is told by the
+ * file's first bytes or by its extension. A compressed file is decompressed on a thread of
+ * its own, which hands the parser chunks of plain bytes through a bounded pipe, so that
+ * decompressing one chunk overlaps with parsing the one before.
+ */
+public class OsmInput {
+    /** Bytes read from the file at a time. */
+    private static final int FILE_BUFFER = 1 << 16;
+    /** Bytes of decompressed data passed through the pipe at a time. */
+    private static final int CHUNK = 1 << 18;
+    /** Chunks that the decompressing thread may get ahead of the parser. */
+    private static final int CHUNKS_AHEAD = 8;
+
+    private static final byte[] GZIP_MAGIC = {0x1f, (byte) 0x8b};
+    private static final byte[] BZIP2_MAGIC = {'B', 'Z', 'h'};
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+    /** A PBF file's first blob header, after its length: field 1, "OSMHeader". */
+    private static final byte[] PBF_MAGIC = {0x0a, 0x09, 'O', 'S', 'M', 'H', 'e', 'a', 'd', 'e',
+        'r'};
+
+    private OsmInput() {
+    }
+
+    /**
+     * Opens a file for reading, decompressing it if need be.
+     * @param path The file, such as map.osm.xml, map.osm.xml.gz, .bz2 or .zst.
+     * @return Its plain contents, buffered.
+     */
+    static InputStream open(String path) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(path),
+                FILE_BUFFER);
+        try {
+            byte[] head = new byte[4];
+            in.mark(head.length);
+            int n = in.readNBytes(head, 0, head.length);
+            in.reset();
+            if (startsWith(head, n, GZIP_MAGIC) || path.endsWith(".gz")) {
+                return pipe(new GZIPInputStream(in, FILE_BUFFER));
+            } else if (startsWith(head, n, BZIP2_MAGIC) || path.endsWith(".bz2")) {
+                return pipe(new BZip2HadoopStreams().createInputStream(in));
+            } else if (startsWith(head, n, ZSTD_MAGIC) || path.endsWith(".zst")) {
+                return pipe(new ZstdInputStream(in));
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether a file is in the OSM PBF format rather than XML: whether its name ends
+     * in .pbf, or it starts with the header of a PBF file's first blob.
+     */
+    static boolean isPbf(String path) throws IOException {
+        if (path.endsWith(".pbf")) {
+            return true;
+        }
+        try (InputStream in = open(path)) {
+            byte[] head = in.readNBytes(PBF_MAGIC.length + 4);
+            return head.length == PBF_MAGIC.length + 4
+                    && Arrays.equals(head, 4, head.length, PBF_MAGIC, 0, PBF_MAGIC.length);
+        }
+    }
+
+    private static boolean startsWith(byte[] head, int n, byte[] magic) {
+        if (n < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i += 1) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static InputStream pipe(InputStream decompressed) {
+        Pipe pipe = new Pipe(decompressed);
+        Thread t = new Thread(pipe::fill, "osm-decompress");
+        t.setDaemon(true);
+        pipe.filler = t;
+        t.start();
+        return pipe;
+    }
+
+    /**
+     * Chunks of decompressed bytes, filled by their own thread and read by the parser. A
+     * failure to decompress reaches the parser as an IOException once it has read every
+     * chunk before it, rather than as an early end of the file.
+     */
+    private static final class Pipe extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final InputStream source;
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(CHUNKS_AHEAD);
+        private volatile IOException failure;
+        private volatile Thread filler;
+        private byte[] chunk = new byte[0];
+        private int pos;
+        private boolean ended;
+
+        Pipe(InputStream source) {
+            this.source = source;
+        }
+
+        /** Runs on the decompressing thread until the source ends or the pipe is closed. */
+        void fill() {
+            try (InputStream in = source) {
+                while (true) {
+                    byte[] buf = in.readNBytes(CHUNK);
+                    if (buf.length == 0) {
+                        break;
+                    }
+                    chunks.put(buf);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                /* Some decoders report corrupt input with unchecked exceptions. */
+                failure = new IOException("Corrupt compressed input", e);
+            } catch (InterruptedException e) {
+                /* The pipe was closed; nobody reads any more. */
+                return;
+            }
+            try {
+                chunks.put(END);
+            } catch (InterruptedException e) {
+                /* Closed at the very end. */
+            }
+        }
+
+        /** Makes chunk the next one with bytes left, returning false at the end. */
+        private boolean next() throws IOException {
+            while (pos == chunk.length) {
+                if (ended) {
+                    return false;
+                }
+                try {
+                    chunk = chunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while decompressing", e);
+                }
+                pos = 0;
+                if (chunk == END) {
+                    ended = true;
+                    if (failure != null) {
+                        throw failure;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return next() ? chunk[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!next()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            ended = true;
+            pos = chunk.length;
+            filler.interrupt();
+            chunks.clear();
+        }
+    }
+}
@@ -0,0 +1,430 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Builds a GraphDB from a stream of OSM records on several threads. A reader, on its own
+ * thread, hands over nodes and highway ways as they are parsed; they are collected into
+ * batches and passed through a bounded queue to worker threads, so the reader never gets
+ * more than a few batches ahead of them. An XML reader's ids and coordinates stay text until
+ * a worker gets them, so number parsing happens off the reader's thread as well.
+ *
+ * Workers add nodes to the graph directly, and turn ways into edges. Each worker keeps its
+ * edges in its own segment, split into one shard per worker by vertex id, so building never
+ * touches shared state. Once the input ends, worker w merges shard w of every segment into
+ * the adjacency lists: no two workers ever touch the same vertex.
+ *
+ * Given the set of nodes that roads go through, workers skip every other node unless it
+ * is named, so memory grows with the road network rather than with the whole extract.
+ */
+public class OsmLoader {
+    /** Nodes plus way node references in a batch. */
+    private static final int BATCH_RECORDS = 8192;
+    /** Tells a worker that there are no more batches. */
+    private static final Batch END = new Batch(0);
+
+    private final GraphDB g;
+    /** The nodes to keep besides named ones, or null to keep all. */
+    private final NodeIdSet keep;
+    private final int batchRecords;
+    private final BlockingQueue<Batch> queue;
+    private final Thread[] workers;
+    private final Segment[] segments;
+    /** Counts down as workers run out of batches; merging waits for all of them. */
+    private final CountDownLatch built;
+    /** The first failure of any worker, a RuntimeException or an Error. */
+    private volatile Throwable failure;
+    private Batch batch;
+
+    /**
+     * Starts the workers.
+     * @param g The graph to add nodes, ways and location names to.
+     * @param threads Number of worker threads.
+     */
+    public OsmLoader(GraphDB g, int threads) {
+        this(g, threads, null, BATCH_RECORDS);
+    }
+
+    /**
+     * Starts the workers, to load only the named nodes and the nodes in keep.
+     * @param g The graph to add nodes, ways and location names to.
+     * @param threads Number of worker threads.
+     * @param keep Nodes to load even when they have no name, such as those on roads.
+     */
+    public OsmLoader(GraphDB g, int threads, NodeIdSet keep) {
+        this(g, threads, keep, BATCH_RECORDS);
+    }
+
+    OsmLoader(GraphDB g, int threads, NodeIdSet keep, int batchRecords) {
+        this.g = g;
+        this.keep = keep;
+        this.batchRecords = batchRecords;
+        int n = Math.max(1, threads);
+        queue = new ArrayBlockingQueue<>(2 * n);
+        workers = new Thread[n];
+        segments = new Segment[n];
+        built = new CountDownLatch(n);
+        batch = Batch.ofText(batchRecords);
+        for (int w = 0; w < n; w += 1) {
+            segments[w] = new Segment(n);
+            int worker = w;
+            workers[w] = new Thread(() -> work(worker), "osm-loader-" + w);
+            workers[w].setDaemon(true);
+            workers[w].start();
+        }
+    }
+
+    /**
+     * Adds a node, given as the text of its attributes.
+     * @param name The node's name, or null if it has none.
+     */
+    void node(String id, String lon, String lat, String name) throws InterruptedException {
+        if (batch.full(batchRecords)) {
+            flush();
+        }
+        batch.addNode(id, lon, lat, name);
+    }
+
+    /**
+     * Adds a way that is a road, connecting each node to the next.
+     * @param id The way's id, as text.
+     * @param refs Ids of the way's nodes, in order, as text.
+     * @param name The road's name, or null if it has none.
+     */
+    void way(String id, List<String> refs, String name) throws InterruptedException {
+        if (batch.full(batchRecords)) {
+            flush();
+        }
+        batch.addWay(id, refs, name);
+    }
+
+    /**
+     * Hands over a batch the reader filled itself, such as one decoded from a binary block.
+     * Like the other methods that hand records over, only for the reader's thread.
+     */
+    void put(Batch b) throws InterruptedException {
+        if (b.nodes + b.ways > 0) {
+            queue.put(b);
+        }
+    }
+
+    private void flush() throws InterruptedException {
+        put(batch);
+        batch = Batch.ofText(batchRecords);
+    }
+
+    /**
+     * Waits for the workers to build everything handed over so far and to merge it into the
+     * graph, then adds the location names. The loader cannot be used afterwards.
+     * @throws RuntimeException Whatever a worker failed with, such as a malformed number; a
+     * worker's Error, such as running out of memory, is rethrown as it is.
+     */
+    void finish() throws InterruptedException {
+        flush();
+        for (int w = 0; w < workers.length; w += 1) {
+            queue.put(END);
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        for (Segment s : segments) {
+            for (Map.Entry<Long, String> e : s.names.entrySet()) {
+                g.addNodeName(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Stops the workers without merging anything, for when the input cannot be read to its
+     * end. Whatever they added to the graph so far stays; no failure of theirs is raised, so
+     * that the reader's own is not masked. The loader cannot be used afterwards.
+     */
+    void abandon() {
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        try {
+            for (Thread t : workers) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work(int w) {
+        try {
+            try {
+                /* After a failure, keep taking batches so that the reader is never stuck. */
+                for (Batch b = queue.take(); b != END; b = queue.take()) {
+                    try {
+                        if (failure == null) {
+                            build(b, segments[w]);
+                        }
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    }
+                }
+            } finally {
+                built.countDown();
+            }
+            built.await();
+            if (failure == null) {
+                merge(w);
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        } catch (InterruptedException e) {
+            failure = new IllegalStateException("Interrupted while loading", e);
+        }
+    }
+
+    /** Adds the nodes of a batch to the graph and the edges of its ways to a segment. */
+    private void build(Batch b, Segment s) {
+        b.parse();
+        for (int i = 0; i < b.nodes; i += 1) {
+            long v = b.nodeIds[i];
+            if (keep != null && b.nodeNames[i] == null && !keep.contains(v)) {
+                continue;
+            }
+            g.addNode(v, b.lons[i], b.lats[i]);
+            if (b.nodeNames[i] != null) {
+                s.names.put(v, b.nodeNames[i]);
+            }
+        }
+        for (int way = 0; way < b.ways; way += 1) {
+            int start = b.wayStart[way];
+            int end = b.wayStart[way + 1];
+            if (end - start < 2) {
+                continue;
+            }
+            GraphDB.edge[] edges = new GraphDB.edge[end - start - 1];
+            for (int p = start + 1; p < end; p += 1) {
+                GraphDB.edge e = g.newEdge(b.refs[p - 1], b.refs[p], b.wayNames[way]);
+                s.add(b.refs[p - 1], e);
+                s.add(b.refs[p], e);
+                edges[p - start - 1] = e;
+            }
+            g.addWayEdges(b.wayIds[way], edges);
+        }
+    }
+
+    /** Adds shard w of every segment to the adjacency lists. */
+    private void merge(int w) {
+        for (Segment s : segments) {
+            Shard shard = s.shards[w];
+            for (int i = 0; i < shard.size; i += 1) {
+                g.addEdgeAt(shard.vertices[i], shard.edges[i]);
+            }
+        }
+    }
+
+    /**
+     * Nodes and ways handed to the workers together. A reader of text passes ids and
+     * coordinates as text, for a worker to parse; a reader of binary data passes numbers.
+     * Arrays grow as needed.
+     */
+    static final class Batch {
+        /** Text as the reader passed it, or null in a batch of numbers. */
+        String[] nodeIdText;
+        String[] lonText;
+        String[] latText;
+        String[] refText;
+        String[] wayIdText;
+        long[] nodeIds;
+        double[] lons;
+        double[] lats;
+        String[] nodeNames;
+        int nodes;
+        long[] refs;
+        int refCount;
+        /** The references of way i are at wayStart[i] up to wayStart[i + 1] in refs. */
+        int[] wayStart;
+        long[] wayIds;
+        String[] wayNames;
+        int ways;
+
+        /** Creates an empty batch of numbers. */
+        Batch(int capacity) {
+            this(capacity, false);
+        }
+
+        private Batch(int capacity, boolean text) {
+            nodeIds = new long[capacity];
+            lons = new double[capacity];
+            lats = new double[capacity];
+            nodeNames = new String[capacity];
+            refs = new long[capacity];
+            wayStart = new int[capacity + 1];
+            wayIds = new long[capacity];
+            wayNames = new String[capacity];
+            if (text) {
+                nodeIdText = new String[capacity];
+                lonText = new String[capacity];
+                latText = new String[capacity];
+                refText = new String[capacity];
+                wayIdText = new String[capacity];
+            }
+        }
+
+        /** Creates an empty batch of text. */
+        static Batch ofText(int capacity) {
+            return new Batch(capacity, true);
+        }
+
+        boolean full(int records) {
+            return nodes + refCount >= records || ways >= records;
+        }
+
+        private void growNodes() {
+            if (nodes == nodeIds.length) {
+                int n = Math.max(16, 2 * nodes);
+                nodeIds = Arrays.copyOf(nodeIds, n);
+                lons = Arrays.copyOf(lons, n);
+                lats = Arrays.copyOf(lats, n);
+                nodeNames = Arrays.copyOf(nodeNames, n);
+                if (nodeIdText != null) {
+                    nodeIdText = Arrays.copyOf(nodeIdText, n);
+                    lonText = Arrays.copyOf(lonText, n);
+                    latText = Arrays.copyOf(latText, n);
+                }
+            }
+        }
+
+        private void growRefs(int more) {
+            if (refCount + more > refs.length) {
+                int n = Math.max(Math.max(16, 2 * refs.length), refCount + more);
+                refs = Arrays.copyOf(refs, n);
+                if (refText != null) {
+                    refText = Arrays.copyOf(refText, n);
+                }
+            }
+        }
+
+        void addNode(String id, String lon, String lat, String name) {
+            growNodes();
+            nodeIdText[nodes] = id;
+            lonText[nodes] = lon;
+            latText[nodes] = lat;
+            nodeNames[nodes] = name;
+            nodes += 1;
+        }
+
+        void addNode(long id, double lon, double lat, String name) {
+            growNodes();
+            nodeIds[nodes] = id;
+            lons[nodes] = lon;
+            lats[nodes] = lat;
+            nodeNames[nodes] = name;
+            nodes += 1;
+        }
+
+        void addWay(String id, List<String> wayRefs, String name) {
+            growRefs(wayRefs.size());
+            for (String ref : wayRefs) {
+                refText[refCount++] = ref;
+            }
+            growWays();
+            wayIdText[ways] = id;
+            endWay(0, name);
+        }
+
+        /** Adds the next node of the way being added. */
+        void addRef(long ref) {
+            growRefs(1);
+            refs[refCount++] = ref;
+        }
+
+        private void growWays() {
+            if (ways == wayNames.length) {
+                int n = Math.max(16, 2 * ways);
+                wayIds = Arrays.copyOf(wayIds, n);
+                wayNames = Arrays.copyOf(wayNames, n);
+                wayStart = Arrays.copyOf(wayStart, n + 1);
+                if (wayIdText != null) {
+                    wayIdText = Arrays.copyOf(wayIdText, n);
+                }
+            }
+        }
+
+        /**
+         * Ends a way whose nodes were added with addRef.
+         * @param id The way's id.
+         * @param name The road's name, or null if it has none.
+         */
+        void endWay(long id, String name) {
+            growWays();
+            wayIds[ways] = id;
+            wayNames[ways] = name == null ? GraphDB.ur : name;
+            ways += 1;
+            wayStart[ways] = refCount;
+        }
+
+        /** Turns the text, if any, into numbers. */
+        void parse() {
+            if (nodeIdText == null) {
+                return;
+            }
+            for (int i = 0; i < nodes; i += 1) {
+                nodeIds[i] = Long.parseLong(nodeIdText[i]);
+                lons[i] = Double.parseDouble(lonText[i]);
+                lats[i] = Double.parseDouble(latText[i]);
+            }
+            for (int p = 0; p < refCount; p += 1) {
+                refs[p] = Long.parseLong(refText[p]);
+            }
+            for (int i = 0; i < ways; i += 1) {
+                wayIds[i] = Long.parseLong(wayIdText[i]);
+            }
+            nodeIdText = null;
+            lonText = null;
+            latText = null;
+            refText = null;
+            wayIdText = null;
+        }
+    }
+
+    /** The edges one worker has built, split by which worker will merge them. */
+    private static final class Segment {
+        final Shard[] shards;
+        final Map<Long, String> names = new HashMap<>();
+
+        Segment(int n) {
+            shards = new Shard[n];
+            for (int i = 0; i < n; i += 1) {
+                shards[i] = new Shard();
+            }
+        }
+
+        /** Records that edge e is at vertex v. */
+        void add(long v, GraphDB.edge e) {
+            shards[(int) Math.floorMod(v, (long) shards.length)].add(v, e);
+        }
+    }
+
+    /** Pairs of a vertex and an edge at it. */
+    private static final class Shard {
+        long[] vertices = new long[16];
+        GraphDB.edge[] edges = new GraphDB.edge[16];
+        int size;
+
+        void add(long v, GraphDB.edge e) {
+            if (size == vertices.length) {
+                vertices = Arrays.copyOf(vertices, 2 * size);
+                edges = Arrays.copyOf(edges, 2 * size);
+            }
+            vertices[size] = v;
+            edges[size] = e;
+            size += 1;
+        }
+    }
+}
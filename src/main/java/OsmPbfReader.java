@@ -0,0 +1,495 @@
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM PBF files and hands their nodes and roads to an OsmLoader, as XML files are by
+ * OsmXmlReader. A PBF file is a sequence of blobs, each a block of a few thousand entities,
+ * usually compressed. This thread only reads the blobs off the input; decompressing and
+ * decoding them runs on a fork-join pool, several blobs at once, with results handed to the
+ * loader in file order. Decoding works on the protocol buffer bytes directly: dense nodes'
+ * delta-coded ids and coordinates are summed straight into the primitive arrays of a
+ * loader batch, and strings are only made for names and highway types.
+ *
+ * See <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ */
+public class OsmPbfReader {
+    /** Largest sizes the format allows for a blob header and for a blob. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    /** Features a file may require that this reader supports. */
+    private static final Set<String> SUPPORTED_FEATURES = new HashSet<>(Arrays.asList(
+            "OsmSchema-V0.6", "DenseNodes"));
+    private static final byte[] HIGHWAY = "highway".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NAME = "name".getBytes(StandardCharsets.UTF_8);
+
+    private OsmPbfReader() {
+    }
+
+    /** Decodes one block of data, on a pool thread. */
+    private interface Decoder<T> {
+        T decode(Block block) throws IOException;
+    }
+
+    /** Takes decoded blocks, in file order, on the reading thread. */
+    private interface Sink<T> {
+        void accept(T decoded) throws InterruptedException;
+    }
+
+    /**
+     * Reads a whole PBF file. Call the loader's finish() afterwards.
+     * @param in The file.
+     * @param loader Where nodes, location names and roads go.
+     * @param threads Blocks decoded at the same time.
+     */
+    static void read(InputStream in, OsmLoader loader, int threads)
+            throws IOException, InterruptedException {
+        readBlocks(in, threads, b -> b.batch(true), loader::put);
+    }
+
+    /**
+     * Collects the ids of the nodes that roads go through, decoding nothing but ways.
+     * @param in The file.
+     * @param threads Blocks decoded at the same time.
+     * @return The ids, sealed.
+     */
+    static NodeIdSet roadNodes(InputStream in, int threads)
+            throws IOException, InterruptedException {
+        NodeIdSet ids = new NodeIdSet();
+        readBlocks(in, threads, b -> b.batch(false), batch -> {
+            for (int p = 0; p < batch.refCount; p += 1) {
+                ids.add(batch.refs[p]);
+            }
+        });
+        return ids.seal();
+    }
+
+    private static <T> void readBlocks(InputStream in, int threads, Decoder<T> decoder,
+                                       Sink<T> sink) throws IOException, InterruptedException {
+        DataInputStream data = new DataInputStream(in);
+        int parallelism = Math.max(1, threads);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+        try {
+            int first;
+            while ((first = data.read()) != -1) {
+                int headerSize = first << 24 | data.readUnsignedByte() << 16
+                        | data.readUnsignedByte() << 8 | data.readUnsignedByte();
+                if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                    throw new IOException("Bad blob header size " + headerSize);
+                }
+                byte[] header = new byte[headerSize];
+                data.readFully(header);
+                String type = null;
+                int blobSize = -1;
+                ProtobufReader h = new ProtobufReader(header);
+                while (h.next()) {
+                    if (h.field() == 1) {
+                        type = h.string();
+                    } else if (h.field() == 3) {
+                        blobSize = h.int32();
+                    } else {
+                        h.skip();
+                    }
+                }
+                if (blobSize < 0 || blobSize > MAX_BLOB_SIZE) {
+                    throw new IOException("Bad blob size " + blobSize);
+                }
+                byte[] blob = new byte[blobSize];
+                data.readFully(blob);
+                if ("OSMHeader".equals(type)) {
+                    checkHeader(unpack(blob));
+                } else if ("OSMData".equals(type)) {
+                    inFlight.add(pool.submit(() -> decoder.decode(new Block(unpack(blob)))));
+                    /* Bound the blobs in memory: hand over the oldest once enough are out. */
+                    if (inFlight.size() > 2 * parallelism) {
+                        sink.accept(result(inFlight.poll()));
+                    }
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                sink.accept(result(inFlight.poll()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T result(Future<T> f) throws IOException, InterruptedException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            /* Fork-join tasks wrap checked exceptions, and may wrap them twice. */
+            for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static void checkHeader(ProtobufReader r) throws IOException {
+        while (r.next()) {
+            if (r.field() == 4) {
+                String feature = r.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported required feature " + feature);
+                }
+            } else {
+                r.skip();
+            }
+        }
+    }
+
+    /** Returns a reader over a blob's contents, decompressed. */
+    private static ProtobufReader unpack(byte[] blob) throws IOException {
+        ProtobufReader r = new ProtobufReader(blob);
+        int rawSize = -1;
+        int codec = 0;
+        ProtobufReader packed = null;
+        while (r.next()) {
+            switch (r.field()) {
+                case 1:
+                    return r.message();
+                case 2:
+                    rawSize = r.int32();
+                    break;
+                case 3: case 6: case 7:
+                    codec = r.field();
+                    packed = r.message();
+                    break;
+                case 4: case 5:
+                    throw new IOException("Unsupported blob compression, field " + r.field());
+                default:
+                    r.skip();
+                    break;
+            }
+        }
+        if (packed == null) {
+            throw new IOException("Blob has no data");
+        }
+        if (rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("Bad raw blob size " + rawSize);
+        }
+        byte[] out = new byte[rawSize];
+        int n;
+        try {
+            if (codec == 3) {
+                n = inflate(packed, out);
+            } else if (codec == 6) {
+                n = new Lz4Decompressor().decompress(packed.array(), packed.position(),
+                        packed.remaining(), out, 0, rawSize);
+            } else {
+                n = new ZstdDecompressor().decompress(packed.array(), packed.position(),
+                        packed.remaining(), out, 0, rawSize);
+            }
+        } catch (MalformedInputException e) {
+            throw new IOException("Corrupt blob", e);
+        }
+        if (n != rawSize) {
+            throw new IOException("Blob is " + n + " bytes, not " + rawSize);
+        }
+        return new ProtobufReader(out);
+    }
+
+    private static int inflate(ProtobufReader packed, byte[] out) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed.array(), packed.position(), packed.remaining());
+            int n = 0;
+            while (n < out.length && !inflater.finished()) {
+                int k = inflater.inflate(out, n, out.length - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated zlib data");
+                }
+                n += k;
+            }
+            return n;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A primitive block: its string table, how its coordinates are scaled, and its groups
+     * of entities, not yet decoded.
+     */
+    private static final class Block {
+        private final List<ProtobufReader> groups = new ArrayList<>();
+        private byte[] table;
+        private int[] stringStart = new int[0];
+        private int[] stringLength = new int[0];
+        private String[] strings;
+        private int strs;
+        /** Nanodegrees per coordinate unit, and the offsets, in nanodegrees. */
+        private long granularity = 100;
+        private long latOffset;
+        private long lonOffset;
+        /** Which strings in the table are the keys looked for; tables may repeat strings. */
+        private boolean[] highwayKey = new boolean[0];
+        private boolean[] nameKey = new boolean[0];
+
+        Block(ProtobufReader r) throws IOException {
+            while (r.next()) {
+                switch (r.field()) {
+                    case 1:
+                        stringTable(r.message());
+                        break;
+                    case 2:
+                        groups.add(r.message());
+                        break;
+                    case 17:
+                        granularity = r.int32();
+                        break;
+                    case 19:
+                        latOffset = r.varint();
+                        break;
+                    case 20:
+                        lonOffset = r.varint();
+                        break;
+                    default:
+                        r.skip();
+                        break;
+                }
+            }
+        }
+
+        private void stringTable(ProtobufReader r) throws IOException {
+            while (r.next()) {
+                if (r.field() != 1) {
+                    r.skip();
+                    continue;
+                }
+                ProtobufReader s = r.message();
+                table = s.array();
+                if (strs == stringStart.length) {
+                    stringStart = Arrays.copyOf(stringStart, Math.max(64, 2 * strs));
+                    stringLength = Arrays.copyOf(stringLength, stringStart.length);
+                }
+                stringStart[strs] = s.position();
+                stringLength[strs] = s.remaining();
+                strs += 1;
+            }
+            strings = new String[strs];
+            highwayKey = new boolean[strs];
+            nameKey = new boolean[strs];
+            for (int i = 0; i < strs; i += 1) {
+                highwayKey[i] = is(i, HIGHWAY);
+                nameKey[i] = is(i, NAME);
+            }
+        }
+
+        private boolean is(int i, byte[] key) {
+            return Arrays.equals(table, stringStart[i], stringStart[i] + stringLength[i],
+                    key, 0, key.length);
+        }
+
+        private String string(int i) throws IOException {
+            if (i < 0 || i >= strs) {
+                throw new IOException("String index " + i + " is not in the table");
+            }
+            if (strings[i] == null) {
+                strings[i] = new String(table, stringStart[i], stringLength[i],
+                        StandardCharsets.UTF_8);
+            }
+            return strings[i];
+        }
+
+        private boolean isName(int k) {
+            return k >= 0 && k < strs && nameKey[k];
+        }
+
+        private boolean isHighway(int k) {
+            return k >= 0 && k < strs && highwayKey[k];
+        }
+
+        private double lat(long raw) {
+            return (latOffset + granularity * raw) / 1e9;
+        }
+
+        private double lon(long raw) {
+            return (lonOffset + granularity * raw) / 1e9;
+        }
+
+        /**
+         * Decodes the block into a loader batch.
+         * @param nodes Whether to decode nodes, or only roads.
+         */
+        OsmLoader.Batch batch(boolean nodes) throws IOException {
+            OsmLoader.Batch out = new OsmLoader.Batch(0);
+            for (ProtobufReader group : groups) {
+                while (group.next()) {
+                    if (group.field() == 1 && nodes) {
+                        node(group.message(), out);
+                    } else if (group.field() == 2 && nodes) {
+                        denseNodes(group.message(), out);
+                    } else if (group.field() == 3) {
+                        way(group.message(), out);
+                    } else {
+                        group.skip();
+                    }
+                }
+            }
+            return out;
+        }
+
+        private void node(ProtobufReader r, OsmLoader.Batch out) throws IOException {
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            ProtobufReader keys = null;
+            ProtobufReader vals = null;
+            while (r.next()) {
+                switch (r.field()) {
+                    case 1:
+                        id = r.sint64();
+                        break;
+                    case 2:
+                        keys = r.message();
+                        break;
+                    case 3:
+                        vals = r.message();
+                        break;
+                    case 8:
+                        lat = r.sint64();
+                        break;
+                    case 9:
+                        lon = r.sint64();
+                        break;
+                    default:
+                        r.skip();
+                        break;
+                }
+            }
+            String name = null;
+            while (keys != null && vals != null && keys.hasNext() && vals.hasNext()) {
+                int k = keys.int32();
+                int v = vals.int32();
+                if (isName(k)) {
+                    name = string(v);
+                }
+            }
+            out.addNode(id, lon(lon), lat(lat), name);
+        }
+
+        private void denseNodes(ProtobufReader r, OsmLoader.Batch out) throws IOException {
+            ProtobufReader ids = null;
+            ProtobufReader lats = null;
+            ProtobufReader lons = null;
+            ProtobufReader keysVals = null;
+            while (r.next()) {
+                switch (r.field()) {
+                    case 1:
+                        ids = r.message();
+                        break;
+                    case 8:
+                        lats = r.message();
+                        break;
+                    case 9:
+                        lons = r.message();
+                        break;
+                    case 10:
+                        keysVals = r.message();
+                        break;
+                    default:
+                        r.skip();
+                        break;
+                }
+            }
+            if (ids == null || lats == null || lons == null) {
+                return;
+            }
+            long id = 0;
+            long lat = 0;
+            long lon = 0;
+            while (ids.hasNext()) {
+                id += ids.sint64();
+                lat += lats.sint64();
+                lon += lons.sint64();
+                String name = null;
+                /* Each node's keys and values, then a 0; absent if no node has tags. */
+                if (keysVals != null && keysVals.hasNext()) {
+                    for (int k = keysVals.int32(); k != 0; k = keysVals.int32()) {
+                        int v = keysVals.int32();
+                        if (isName(k)) {
+                            name = string(v);
+                        }
+                    }
+                }
+                out.addNode(id, lon(lon), lat(lat), name);
+            }
+        }
+
+        private void way(ProtobufReader r, OsmLoader.Batch out) throws IOException {
+            long id = 0;
+            ProtobufReader keys = null;
+            ProtobufReader vals = null;
+            ProtobufReader refs = null;
+            while (r.next()) {
+                switch (r.field()) {
+                    case 1:
+                        id = r.varint();
+                        break;
+                    case 2:
+                        keys = r.message();
+                        break;
+                    case 3:
+                        vals = r.message();
+                        break;
+                    case 8:
+                        refs = r.message();
+                        break;
+                    default:
+                        r.skip();
+                        break;
+                }
+            }
+            String highway = null;
+            String name = null;
+            while (keys != null && vals != null && keys.hasNext() && vals.hasNext()) {
+                int k = keys.int32();
+                int v = vals.int32();
+                if (isHighway(k)) {
+                    highway = string(v);
+                } else if (isName(k)) {
+                    name = string(v);
+                }
+            }
+            if (refs == null || !GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                return;
+            }
+            long ref = 0;
+            while (refs.hasNext()) {
+                ref += refs.sint64();
+                out.addRef(ref);
+            }
+            out.endWay(id, name);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads OSM XML with a pull parser and hands its nodes and roads to an OsmLoader. Only the
+ * elements the graph needs are looked at: nodes with their name tags, and ways with their
+ * node references and their highway and name tags. Nodes and ways are passed on when they
+ * end, once their tags are known; a way only if its highway type is one
+ * GraphBuildingHandler allows.
+ */
+public class OsmXmlReader {
+    private OsmXmlReader() {
+    }
+
+    private static XMLStreamReader open(InputStream in) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory.createXMLStreamReader(in);
+    }
+
+    /**
+     * Collects the ids of the nodes that roads go through, looking at nothing but ways.
+     * @param in The document.
+     * @return The ids, sealed.
+     */
+    static NodeIdSet roadNodes(InputStream in) throws XMLStreamException {
+        XMLStreamReader r = open(in);
+        NodeIdSet ids = new NodeIdSet();
+        boolean inWay = false;
+        List<String> refs = new ArrayList<>();
+        String highway = null;
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "way":
+                            inWay = true;
+                            refs.clear();
+                            highway = null;
+                            break;
+                        case "nd":
+                            if (inWay) {
+                                refs.add(r.getAttributeValue(null, "ref"));
+                            }
+                            break;
+                        case "tag":
+                            if (inWay && "highway".equals(r.getAttributeValue(null, "k"))) {
+                                highway = r.getAttributeValue(null, "v");
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && r.getLocalName().equals("way")) {
+                    inWay = false;
+                    if (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                        for (String ref : refs) {
+                            ids.add(Long.parseLong(ref));
+                        }
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return ids.seal();
+    }
+
+    /**
+     * Reads a whole OSM XML document. Call the loader's finish() afterwards.
+     * @param in The document.
+     * @param loader Where nodes, location names and roads go.
+     */
+    static void read(InputStream in, OsmLoader loader)
+            throws XMLStreamException, InterruptedException {
+        XMLStreamReader r = open(in);
+        String nodeId = null;
+        String lon = null;
+        String lat = null;
+        String nodeName = null;
+        boolean inNode = false;
+        boolean inWay = false;
+        String wayId = null;
+        List<String> refs = new ArrayList<>();
+        String highway = null;
+        String wayName = null;
+        try {
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            inNode = true;
+                            nodeId = r.getAttributeValue(null, "id");
+                            lon = r.getAttributeValue(null, "lon");
+                            lat = r.getAttributeValue(null, "lat");
+                            nodeName = null;
+                            break;
+                        case "way":
+                            inWay = true;
+                            wayId = r.getAttributeValue(null, "id");
+                            refs.clear();
+                            highway = null;
+                            wayName = null;
+                            break;
+                        case "nd":
+                            if (inWay) {
+                                refs.add(r.getAttributeValue(null, "ref"));
+                            }
+                            break;
+                        case "tag":
+                            String k = r.getAttributeValue(null, "k");
+                            if (inNode && "name".equals(k)) {
+                                nodeName = r.getAttributeValue(null, "v");
+                            } else if (inWay && "highway".equals(k)) {
+                                highway = r.getAttributeValue(null, "v");
+                            } else if (inWay && "name".equals(k)) {
+                                wayName = r.getAttributeValue(null, "v");
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    switch (r.getLocalName()) {
+                        case "node":
+                            inNode = false;
+                            loader.node(nodeId, lon, lat, nodeName);
+                            break;
+                        case "way":
+                            inWay = false;
+                            if (GraphBuildingHandler.ALLOWED_HIGHWAY_TYPES.contains(highway)) {
+                                loader.way(wayId, refs, wayName);
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map by id that reads through to a base map it never changes, and keeps its own changes
+ * on top in a persistent hash trie. A copy of an overlay shares the base and the whole trie
+ * with it; changing either copies only the trie nodes on the way to the changed key, a few
+ * small arrays, so a changed copy costs in proportion to the change, however large the base.
+ * Copies of copies stay one level deep: they share the first base, and their changes
+ * accumulate in the trie. The base must not change while an overlay reads through to it.
+ *
+ * The trie branches on six bits of a mixed key a level. The mix is one to one, so two keys
+ * always part within the eleven levels the 64 bits make, and a leaf is only ever the one
+ * key it holds. Keys removed from the base are kept as leaves marked removed.
+ */
+public class OverlayMap<V> extends AbstractMap<Long, V> {
+    private static final int BITS = 6;
+    /** Marks a leaf whose key is removed. */
+    private static final Object REMOVED = new Object();
+
+    /** An inner node of the trie: one slot, a Node or a Leaf, per set bit of bitmap. */
+    private static final class Node {
+        final long bitmap;
+        final Object[] slots;
+
+        Node(long bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private static final class Leaf {
+        final long key;
+        /** The value, or REMOVED. */
+        final Object value;
+
+        Leaf(long key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final Node EMPTY = new Node(0, new Object[0]);
+
+    private final Map<Long, V> base;
+    private Node root;
+    private int size;
+
+    private OverlayMap(Map<Long, V> base, Node root, int size) {
+        this.base = base;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns a map to change that starts out equal to map: a copy of it if it is an
+     * overlay, or else an overlay over it, which map must then outlive unchanged.
+     */
+    static <V> OverlayMap<V> over(Map<Long, V> map) {
+        if (map instanceof OverlayMap) {
+            OverlayMap<V> o = (OverlayMap<V>) map;
+            return new OverlayMap<>(o.base, o.root, o.size);
+        }
+        return new OverlayMap<>(map, EMPTY, map.size());
+    }
+
+    /** Mixes a key one to one, so that nearby ids spread over the trie. */
+    private static long hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    /** Returns the trie's leaf for key, or null if the key is not changed. */
+    private Leaf find(long key) {
+        long h = hash(key);
+        Node n = root;
+        for (int shift = 0; ; shift += BITS) {
+            long bit = 1L << ((h >>> shift) & 63);
+            if ((n.bitmap & bit) == 0) {
+                return null;
+            }
+            Object o = n.slots[Long.bitCount(n.bitmap & (bit - 1))];
+            if (o instanceof Leaf) {
+                Leaf leaf = (Leaf) o;
+                return leaf.key == key ? leaf : null;
+            }
+            n = (Node) o;
+        }
+    }
+
+    /** Returns a copy of n, at level shift, with leaf in place of any leaf of its key. */
+    private static Node with(Node n, int shift, Leaf leaf) {
+        long h = hash(leaf.key);
+        long bit = 1L << ((h >>> shift) & 63);
+        int i = Long.bitCount(n.bitmap & (bit - 1));
+        if ((n.bitmap & bit) == 0) {
+            Object[] slots = new Object[n.slots.length + 1];
+            System.arraycopy(n.slots, 0, slots, 0, i);
+            slots[i] = leaf;
+            System.arraycopy(n.slots, i, slots, i + 1, n.slots.length - i);
+            return new Node(n.bitmap | bit, slots);
+        }
+        Object o = n.slots[i];
+        Object replacement;
+        if (o instanceof Node) {
+            replacement = with((Node) o, shift + BITS, leaf);
+        } else if (((Leaf) o).key == leaf.key) {
+            replacement = leaf;
+        } else {
+            replacement = with(with(EMPTY, shift + BITS, (Leaf) o), shift + BITS, leaf);
+        }
+        Object[] slots = n.slots.clone();
+        slots[i] = replacement;
+        return new Node(n.bitmap, slots);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        Leaf leaf = find((Long) key);
+        if (leaf == null) {
+            return base.get(key);
+        }
+        return leaf.value == REMOVED ? null : (V) leaf.value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof Long)) {
+            return false;
+        }
+        Leaf leaf = find((Long) key);
+        return leaf == null ? base.containsKey(key) : leaf.value != REMOVED;
+    }
+
+    @Override
+    public V put(Long key, V value) {
+        boolean present = containsKey(key);
+        V old = get(key);
+        root = with(root, 0, new Leaf(key, value));
+        if (!present) {
+            size += 1;
+        }
+        return old;
+    }
+
+    @Override
+    public V remove(Object key) {
+        if (!containsKey(key)) {
+            return null;
+        }
+        V old = get(key);
+        root = with(root, 0, new Leaf((Long) key, REMOVED));
+        size -= 1;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** Read only: the changed entries first, then the base's unchanged ones. */
+    @Override
+    public Set<Map.Entry<Long, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Long, V>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<Long, V>> iterator() {
+                List<Map.Entry<Long, V>> changed = new ArrayList<>();
+                collect(root, changed);
+                Iterator<Map.Entry<Long, V>> unchanged = base.entrySet().iterator();
+                Iterator<Map.Entry<Long, V>> first = changed.iterator();
+                return new Iterator<Map.Entry<Long, V>>() {
+                    private Map.Entry<Long, V> next = advance();
+
+                    private Map.Entry<Long, V> advance() {
+                        if (first.hasNext()) {
+                            return first.next();
+                        }
+                        while (unchanged.hasNext()) {
+                            Map.Entry<Long, V> e = unchanged.next();
+                            if (find(e.getKey()) == null) {
+                                return e;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<Long, V> next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<Long, V> e = next;
+                        next = advance();
+                        return e;
+                    }
+                };
+            }
+        };
+    }
+
+    /** Adds the entries of the leaves under n that are not removed to out. */
+    @SuppressWarnings("unchecked")
+    private static <V> void collect(Node n, List<Map.Entry<Long, V>> out) {
+        for (Object o : n.slots) {
+            if (o instanceof Node) {
+                collect((Node) o, out);
+            } else if (((Leaf) o).value != REMOVED) {
+                Leaf leaf = (Leaf) o;
+                out.add(new AbstractMap.SimpleImmutableEntry<>(leaf.key, (V) leaf.value));
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads tiles from a single packed file through one memory-mapped region, so serving a tile
+ * never touches the file system. The file is laid out as follows, big-endian:
+ * <pre>
+ *   header : magic "BMTP", int version, int tile count
+ *   index  : per tile, sorted by key: long key, long offset, int length
+ *   data   : the PNG bytes of every tile, back to back
+ * </pre>
+ * A key packs (depth, x, y) as in {@link TileStore#key}; offsets are from the start of the
+ * file. Lookups binary search the index in place and allocate nothing but the returned view.
+ */
+public class PackedTileStore implements TileStore {
+    static final int MAGIC = 0x424d5450;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 12;
+    static final int ENTRY_BYTES = 20;
+    private static final Pattern TILE_NAME = Pattern.compile("d(\\d+)_x(\\d+)_y(\\d+)\\.png");
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final long lastModified;
+
+    /**
+     * Maps a packed tile file.
+     * @param path Path of the file written by {@link #pack}.
+     * @throws IOException If the file cannot be read or is not a packed tile file.
+     */
+    public PackedTileStore(String path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        FileChannel channel = file.getChannel();
+        if (channel.size() > Integer.MAX_VALUE) {
+            file.close();
+            throw new IOException("tile pack larger than 2GB: " + path);
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            file.close();
+            throw new IOException("not a tile pack: " + path);
+        }
+        count = buffer.getInt(8);
+        lastModified = new File(path).lastModified();
+    }
+
+    /** Returns the number of tiles in the pack. */
+    int size() {
+        return count;
+    }
+
+    @Override
+    public ByteBuffer tile(int depth, int x, int y) {
+        int i = find(TileStore.key(depth, x, y));
+        if (i < 0) {
+            return null;
+        }
+        int entry = HEADER_BYTES + i * ENTRY_BYTES;
+        int offset = (int) buffer.getLong(entry + 8);
+        int length = buffer.getInt(entry + 16);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /** Looks the key up in the index without touching the tile's bytes. */
+    @Override
+    public boolean has(int depth, int x, int y) {
+        return find(TileStore.key(depth, x, y)) >= 0;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /** Returns the index entry holding key, or -1. */
+    private int find(long key) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = buffer.getLong(HEADER_BYTES + mid * ENTRY_BYTES);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Packs every d{depth}_x{x}_y{y}.png file of a tile directory into a single file.
+     * @param imgDir The tile directory.
+     * @param out The packed file to write.
+     * @return The number of tiles packed.
+     */
+    static int pack(File imgDir, File out) throws IOException {
+        List<long[]> tiles = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        File[] listing = imgDir.listFiles();
+        if (listing == null) {
+            throw new IOException("not a directory: " + imgDir);
+        }
+        for (File f : listing) {
+            Matcher m = TILE_NAME.matcher(f.getName());
+            if (m.matches()) {
+                long key = TileStore.key(Integer.parseInt(m.group(1)),
+                        Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+                tiles.add(new long[] {key, files.size()});
+                files.add(f);
+            }
+        }
+        Collections.sort(tiles, (a, b) -> Long.compare(a[0], b[0]));
+
+        long offset = HEADER_BYTES + (long) tiles.size() * ENTRY_BYTES;
+        try (DataOutputStream os = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(out)))) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(tiles.size());
+            for (long[] t : tiles) {
+                long length = files.get((int) t[1]).length();
+                os.writeLong(t[0]);
+                os.writeLong(offset);
+                os.writeInt((int) length);
+                offset += length;
+            }
+            for (long[] t : tiles) {
+                os.write(Files.readAllBytes(files.get((int) t[1]).toPath()));
+            }
+        }
+        return tiles.size();
+    }
+
+    /**
+     * Packs a tile directory from the command line.
+     * Usage: java PackedTileStore &lt;tile directory&gt; &lt;output file&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java PackedTileStore <tile directory> <output file>");
+            return;
+        }
+        int n = pack(new File(args[0]), new File(args[1]));
+        System.out.println("Packed " + n + " tiles into " + args[1] + ".");
+    }
+}
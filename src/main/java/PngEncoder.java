@@ -0,0 +1,344 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder with a configurable deflate level and row filter. Large images are cut into
+ * horizontal stripes that are filtered and deflated in parallel, then stitched into a single
+ * zlib stream, so the output is an ordinary PNG that any decoder can read.
+ * Each stripe is primed with the tail of the previous stripe as its deflate dictionary,
+ * which keeps the compression ratio close to that of a single sequential stream.
+ */
+public class PngEncoder {
+    /** PNG row filter strategies. ADAPTIVE picks the best filter per row. */
+    public enum Filter {
+        NONE(0), SUB(1), UP(2), AVERAGE(3), PAETH(4), ADAPTIVE(-1);
+
+        final int type;
+
+        Filter(int type) {
+            this.type = type;
+        }
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    /** Largest dictionary deflate can use. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    /** Images with fewer rows than this are encoded as one stripe. */
+    static final int DEFAULT_STRIPE_ROWS = 128;
+    private static final LatencyHistogram ENCODE_TIME = Metrics.phase("png_encode");
+
+    private final int level;
+    private final Filter filter;
+    private final int stripeRows;
+    private final Executor executor;
+
+    /**
+     * Creates an encoder that splits images into stripes of DEFAULT_STRIPE_ROWS rows and
+     * compresses them on the common fork-join pool.
+     * @param level Deflate level, 0 (store) to 9 (best compression).
+     * @param filter The row filter strategy.
+     */
+    public PngEncoder(int level, Filter filter) {
+        this(level, filter, DEFAULT_STRIPE_ROWS, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param level Deflate level, 0 (store) to 9 (best compression).
+     * @param filter The row filter strategy.
+     * @param stripeRows Number of rows compressed by each task.
+     * @param executor Runs the stripe tasks.
+     */
+    public PngEncoder(int level, Filter filter, int stripeRows, Executor executor) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("deflate level not valid");
+        }
+        if (stripeRows < 1) {
+            throw new IllegalArgumentException("stripe rows not valid");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.stripeRows = stripeRows;
+        this.executor = executor;
+    }
+
+    /** Returns the PNG encoding of img as a byte array. */
+    byte[] encode(BufferedImage img) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try {
+            write(img, os);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Writes img to os as a PNG. Images with an alpha channel are written as RGBA,
+     * everything else as RGB.
+     */
+    void write(BufferedImage img, OutputStream os) throws IOException {
+        long start = System.nanoTime();
+        try {
+            writeImage(img, os);
+        } finally {
+            ENCODE_TIME.recordSince(start);
+        }
+    }
+
+    private void writeImage(BufferedImage img, OutputStream os) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        int bpp = alpha ? 4 : 3;
+        int[] argb = pixels(img);
+
+        int numStripes = (height + stripeRows - 1) / stripeRows;
+        List<CompletableFuture<Stripe>> futures = new ArrayList<>(numStripes);
+        for (int s = 0; s < numStripes; s += 1) {
+            int first = s * stripeRows;
+            int last = Math.min(height, first + stripeRows);
+            boolean finish = s == numStripes - 1;
+            futures.add(CompletableFuture.supplyAsync(
+                () -> compressStripe(argb, width, bpp, first, last, finish), executor));
+        }
+
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        /* zlib header: deflate with a 32K window, no preset dictionary. */
+        idat.write(0x78);
+        idat.write(0x01);
+        Adler32 adler = new Adler32();
+        for (CompletableFuture<Stripe> f : futures) {
+            Stripe stripe = f.join();
+            idat.write(stripe.deflated, 0, stripe.deflatedLength);
+            adler.update(stripe.filtered);
+        }
+        long checksum = adler.getValue();
+        idat.write((int) (checksum >>> 24));
+        idat.write((int) (checksum >>> 16));
+        idat.write((int) (checksum >>> 8));
+        idat.write((int) checksum);
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.write(SIGNATURE);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream(13);
+        DataOutputStream header = new DataOutputStream(ihdr);
+        header.writeInt(width);
+        header.writeInt(height);
+        header.writeByte(8);
+        header.writeByte(alpha ? 6 : 2);
+        header.writeByte(0);
+        header.writeByte(0);
+        header.writeByte(0);
+        writeChunk(out, "IHDR", ihdr.toByteArray(), ihdr.size());
+        byte[] data = idat.toByteArray();
+        writeChunk(out, "IDAT", data, data.length);
+        writeChunk(out, "IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    /** The filtered and deflated bytes of one stripe. */
+    private static class Stripe {
+        byte[] filtered;
+        byte[] deflated;
+        int deflatedLength;
+    }
+
+    /**
+     * Filters rows [first, last) and deflates them. The stripe ends on a byte boundary
+     * (a sync flush) unless it is the last one, so stripes can be concatenated.
+     */
+    private Stripe compressStripe(int[] argb, int width, int bpp, int first, int last,
+                                  boolean finish) {
+        Stripe stripe = new Stripe();
+        stripe.filtered = filterRows(argb, width, bpp, first, last);
+
+        Deflater deflater = new Deflater(level, true);
+        if (first > 0) {
+            /* Prime the window with the filtered bytes that precede this stripe. */
+            byte[] dict = dictionary(argb, width, bpp, first);
+            deflater.setDictionary(dict);
+        }
+        deflater.setInput(stripe.filtered);
+        if (finish) {
+            deflater.finish();
+        }
+        byte[] out = new byte[stripe.filtered.length / 2 + 64];
+        int len = 0;
+        int mode = finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+        while (true) {
+            if (len == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            int space = out.length - len;
+            int n = deflater.deflate(out, len, space, mode);
+            len += n;
+            /* A flush is complete once it leaves room in the buffer. */
+            if (finish ? deflater.finished() : n < space) {
+                break;
+            }
+        }
+        deflater.end();
+        stripe.deflated = out;
+        stripe.deflatedLength = len;
+        return stripe;
+    }
+
+    /**
+     * Returns the filtered bytes of the rows just above row first, up to the size of the
+     * deflate window. These are exactly the bytes a sequential compressor would have seen.
+     */
+    private byte[] dictionary(int[] argb, int width, int bpp, int first) {
+        int rowBytes = width * bpp;
+        int rows = Math.min(first, (DICTIONARY_SIZE + rowBytes) / (rowBytes + 1));
+        byte[] filtered = filterRows(argb, width, bpp, first - rows, first);
+        if (filtered.length <= DICTIONARY_SIZE) {
+            return filtered;
+        }
+        return Arrays.copyOfRange(filtered, filtered.length - DICTIONARY_SIZE, filtered.length);
+    }
+
+    /** Returns rows [first, last) filtered, each prefixed with its filter type byte. */
+    private byte[] filterRows(int[] argb, int width, int bpp, int first, int last) {
+        int rowBytes = width * bpp;
+        byte[] filtered = new byte[(last - first) * (rowBytes + 1)];
+        byte[] prev = new byte[rowBytes];
+        byte[] cur = new byte[rowBytes];
+        byte[] scratch = new byte[rowBytes];
+        if (first > 0) {
+            unpackRow(argb, width, bpp, first - 1, prev);
+        }
+        int pos = 0;
+        for (int y = first; y < last; y += 1) {
+            unpackRow(argb, width, bpp, y, cur);
+            int type = filter.type >= 0 ? filter.type : chooseFilter(cur, prev, bpp, scratch);
+            filtered[pos] = (byte) type;
+            applyFilter(type, cur, prev, bpp, filtered, pos + 1);
+            pos += rowBytes + 1;
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return filtered;
+    }
+
+    /** Returns the pixels of img as packed ARGB ints, without copying when possible. */
+    private static int[] pixels(BufferedImage img) {
+        int type = img.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && img.getRaster().getDataBuffer() instanceof DataBufferInt
+                && img.getRaster().getMinX() == 0 && img.getRaster().getMinY() == 0
+                && img.getRaster().getWidth() == img.getWidth()) {
+            return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        }
+        return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+    }
+
+    /** Unpacks row y of packed ARGB pixels into RGB or RGBA bytes. */
+    private static void unpackRow(int[] argb, int width, int bpp, int y, byte[] row) {
+        int p = y * width;
+        int i = 0;
+        for (int x = 0; x < width; x += 1, p += 1) {
+            int c = argb[p];
+            row[i] = (byte) (c >>> 16);
+            row[i + 1] = (byte) (c >>> 8);
+            row[i + 2] = (byte) c;
+            if (bpp == 4) {
+                row[i + 3] = (byte) (c >>> 24);
+            }
+            i += bpp;
+        }
+    }
+
+    /** Picks the filter with the smallest sum of absolute values, as libpng does. */
+    private static int chooseFilter(byte[] cur, byte[] prev, int bpp, byte[] scratch) {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type <= 4; type += 1) {
+            applyFilter(type, cur, prev, bpp, scratch, 0);
+            long sum = 0;
+            for (byte b : scratch) {
+                sum += Math.abs(b);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    /** Writes row cur filtered with the given type into out, starting at offset. */
+    private static void applyFilter(int type, byte[] cur, byte[] prev, int bpp,
+                                    byte[] out, int offset) {
+        int n = cur.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(cur, 0, out, offset, n);
+                break;
+            case 1:
+                for (int i = 0; i < n; i += 1) {
+                    int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (cur[i] - a);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < n; i += 1) {
+                    out[offset + i] = (byte) (cur[i] - prev[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < n; i += 1) {
+                    int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                    int b = prev[i] & 0xff;
+                    out[offset + i] = (byte) (cur[i] - ((a + b) >>> 1));
+                }
+                break;
+            default:
+                for (int i = 0; i < n; i += 1) {
+                    int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                    int b = prev[i] & 0xff;
+                    int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+                    out[offset + i] = (byte) (cur[i] - paeth(a, b, c));
+                }
+                break;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        } else if (pb <= pc) {
+            return b;
+        }
+        return c;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
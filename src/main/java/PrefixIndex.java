@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Autocompletion of location names. The distinct names are kept in an array sorted by their
+ * cleaned form, so the names completing a prefix are one range of it, found by binary
+ * search. Ranges with at most k names are ranked when asked for; for every prefix with more,
+ * the best k are chosen once, up front, so no keystroke ever looks at more than k names.
+ * Names rank by how many locations carry them, then shorter first, then alphabetically.
+ */
+public class PrefixIndex {
+    /** Distinct names, and their cleaned forms and location counts, by cleaned form. */
+    private final String[] names;
+    private final String[] keys;
+    private final int[] weights;
+    private final int k;
+    /** The best k names, as indices, of every prefix with more than k completions. */
+    private final Map<String, int[]> topK = new HashMap<>();
+    private final Comparator<Integer> byRank;
+
+    /**
+     * @param locationNames Names of locations, by node id.
+     * @param k Most completions returned for a prefix.
+     */
+    public PrefixIndex(Map<Long, String> locationNames, int k) {
+        this.k = k;
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : locationNames.values()) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        TreeMap<String, TreeMap<String, Integer>> byKey = new TreeMap<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            byKey.computeIfAbsent(GraphDB.cleanString(e.getKey()), c -> new TreeMap<>())
+                    .put(e.getKey(), e.getValue());
+        }
+        int n = counts.size();
+        names = new String[n];
+        keys = new String[n];
+        weights = new int[n];
+        int i = 0;
+        for (Map.Entry<String, TreeMap<String, Integer>> e : byKey.entrySet()) {
+            for (Map.Entry<String, Integer> name : e.getValue().entrySet()) {
+                names[i] = name.getKey();
+                keys[i] = e.getKey();
+                weights[i] = name.getValue();
+                i += 1;
+            }
+        }
+        byRank = Comparator.<Integer>comparingInt(j -> -weights[j])
+                .thenComparingInt(j -> keys[j].length()).thenComparingInt(j -> j);
+        if (n > k) {
+            best(0, n, 0);
+        }
+    }
+
+    /** Returns the number of distinct names. */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the best names, at most k, whose cleaned form starts with the cleaned prefix.
+     * @param prefix Any case, with or without punctuation.
+     */
+    List<String> complete(String prefix) {
+        String p = GraphDB.cleanString(prefix == null ? "" : prefix);
+        int lo = lowerBound(p);
+        /* Cleaned names are letters and spaces only, all below this character. */
+        int hi = lowerBound(p + Character.MAX_VALUE);
+        int[] ranked;
+        if (hi - lo <= k) {
+            ranked = rank(lo, hi);
+        } else {
+            ranked = topK.get(p);
+        }
+        List<String> out = new ArrayList<>(ranked.length);
+        for (int j : ranked) {
+            out.add(names[j]);
+        }
+        return out;
+    }
+
+    /** Returns the index of the first key not less than key. */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the indices lo to hi ordered by rank. */
+    private int[] rank(int lo, int hi) {
+        Integer[] order = new Integer[hi - lo];
+        for (int j = lo; j < hi; j += 1) {
+            order[j - lo] = j;
+        }
+        Arrays.sort(order, byRank);
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Returns the best k names of the range lo to hi, whose keys share their first depth
+     * characters, recording them for each of its prefixes with more than k completions.
+     * A range splits by the character at depth; names ending there sort first. Its best k
+     * are the best of those names and of the best k of each part.
+     */
+    private int[] best(int lo, int hi, int depth) {
+        if (hi - lo <= k) {
+            return rank(lo, hi);
+        }
+        List<Integer> candidates = new ArrayList<>();
+        int j = lo;
+        while (j < hi && keys[j].length() == depth) {
+            candidates.add(j);
+            j += 1;
+        }
+        while (j < hi) {
+            char c = keys[j].charAt(depth);
+            int end = j;
+            while (end < hi && keys[end].charAt(depth) == c) {
+                end += 1;
+            }
+            for (int b : best(j, end, depth + 1)) {
+                candidates.add(b);
+            }
+            j = end;
+        }
+        candidates.sort(byRank);
+        int[] top = candidates.subList(0, k).stream().mapToInt(Integer::intValue).toArray();
+        topK.put(keys[lo].substring(0, depth), top);
+        return top;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the protocol buffer wire format straight out of a byte array, with no generated
+ * classes: varints, zigzag encoded numbers and length-delimited fields, which is all that
+ * OSM PBF files use. Sub-messages and packed arrays are read by readers over a slice of
+ * the same array, so nothing is copied. Call next() to move to a field, then the method
+ * that reads its type, or skip().
+ */
+public class ProtobufReader {
+    static final int VARINT = 0;
+    static final int FIXED64 = 1;
+    static final int LENGTH_DELIMITED = 2;
+    static final int FIXED32 = 5;
+
+    private final byte[] buf;
+    private int pos;
+    private final int limit;
+    private int field;
+    private int wireType;
+
+    ProtobufReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    ProtobufReader(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    /** Moves to the next field, returning false at the end of the message. */
+    boolean next() throws IOException {
+        if (pos >= limit) {
+            return false;
+        }
+        long key = varint();
+        field = (int) (key >>> 3);
+        wireType = (int) (key & 7);
+        return true;
+    }
+
+    /** The number of the current field. */
+    int field() {
+        return field;
+    }
+
+    /** Whether there is more to read; for packed arrays, whose values have no keys. */
+    boolean hasNext() {
+        return pos < limit;
+    }
+
+    long varint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= limit) {
+                throw new IOException("Truncated varint");
+            }
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /** Reads a sint32 or sint64, which are zigzag encoded. */
+    long sint64() throws IOException {
+        long v = varint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /** Reads an int32, uint32 or enum. */
+    int int32() throws IOException {
+        return (int) varint();
+    }
+
+    private int length() throws IOException {
+        long n = varint();
+        if (n < 0 || n > limit - pos) {
+            throw new IOException("Field length " + n + " runs past its message");
+        }
+        return (int) n;
+    }
+
+    /** Returns a reader over a sub-message or a packed array, and moves past it. */
+    ProtobufReader message() throws IOException {
+        int n = length();
+        ProtobufReader r = new ProtobufReader(buf, pos, n);
+        pos += n;
+        return r;
+    }
+
+    /** The array this reader reads, for fields best used in place, such as raw bytes. */
+    byte[] array() {
+        return buf;
+    }
+
+    /** Where in the array the unread part of the message starts. */
+    int position() {
+        return pos;
+    }
+
+    /** The number of bytes of the message left to read. */
+    int remaining() {
+        return limit - pos;
+    }
+
+    String string() throws IOException {
+        int n = length();
+        String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+        pos += n;
+        return s;
+    }
+
+    /** Skips the current field. */
+    void skip() throws IOException {
+        switch (wireType) {
+            case VARINT:
+                varint();
+                break;
+            case FIXED64:
+                pos += 8;
+                break;
+            case LENGTH_DELIMITED:
+                int n = length();
+                pos += n;
+                break;
+            case FIXED32:
+                pos += 4;
+                break;
+            default:
+                throw new IOException("Unsupported wire type " + wireType);
+        }
+        if (pos > limit) {
+            throw new IOException("Field runs past its message");
+        }
+    }
+}
@@ -10,12 +10,15 @@ import java.util.Map;
  */
 
 public class Rasterer {
-    private double mapWidth;
-    private double mapHeight;
+    private final TilePyramid pyramid;
+
+    /** Creates a rasterer for the pyramid of the tiles shipped with the project. */
     public Rasterer() {
-        // YOUR CODE HERE
-        mapWidth = MapServer.ROOT_LRLON - MapServer.ROOT_ULLON;
-        mapHeight = MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT;
+        this(TilePyramid.standard());
+    }
+
+    public Rasterer(TilePyramid pyramid) {
+        this.pyramid = pyramid;
     }
 
     /**
@@ -45,76 +48,56 @@ public class Rasterer {
      * "depth"         : Number, the depth of the nodes of the rastered image <br>
      * "query_success" : Boolean, whether the query was able to successfully complete; don't
      *                    forget to set this to true on success! <br>
+     * "grid_ul_x"     : Number, the column of the upper left tile at that depth. <br>
+     * "grid_ul_y"     : Number, the row of the upper left tile at that depth. <br>
      */
     private static final String[] MapRasterKey = {"render_grid", "raster_ul_lon", "raster_ul_lat",
             "raster_lr_lon", "raster_lr_lat" , "depth" , "query_success" };
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
-        //System.out.println(params);
         Map<String, Object> results = new HashMap<>();
         double lrlon = params.get("lrlon");
         double ullon = params.get("ullon");
         double lrlat = params.get("lrlat");
         double ullat = params.get("ullat");
-        //System.out.println(lrlon + " " + ullon + " " + lrlat + " " + ullat);
-        //System.out.println(MapServer.ROOT_LRLON + " " + MapServer.ROOT_ULLON + " " + MapServer.ROOT_LRLAT + " " + MapServer.ROOT_ULLAT);
-        if (ullon < MapServer.ROOT_LRLON && ullat > MapServer.ROOT_LRLAT && lrlon > MapServer.ROOT_ULLON && lrlat < MapServer.ROOT_ULLAT  ) {
+        TilePyramid p = pyramid;
+        if (ullon < p.lrlon && ullat > p.lrlat && lrlon > p.ullon && lrlat < p.ullat) {
             results.put("query_success", true);
-            //System.out.println("true");
         } else {
             results.put("query_success", false);
-            //System.out.println("false");
             return results;
         }
         final double LonDPP = (lrlon - ullon) / (params.get("w"));
-        //System.out.println("Since you haven't implemented getMapRaster, nothing is displayed in "
-        //                  + "your browser.");
-        int depth;
-        for (depth = 0; imgLonDPP(depth) > LonDPP && depth < 7; depth++ );
+        int depth = p.depthFor(LonDPP);
         results.put("depth", depth);
-        double tilex = ullon > MapServer.ROOT_ULLON ? findTile(ullon - MapServer.ROOT_ULLON, mapWidth, depth) : 0;
-        double tiley = ullat <= MapServer.ROOT_ULLAT ? findTile(MapServer.ROOT_ULLAT - ullat, mapHeight, depth) : 0;
-        double tilexEnd = lrlon < MapServer.ROOT_LRLON ? findTile(lrlon - MapServer.ROOT_ULLON, mapWidth, depth) : Math.pow(2, depth) - 1;
-        double tileyEnd = lrlat >= MapServer.ROOT_LRLAT ? findTile(MapServer.ROOT_ULLAT - lrlat, mapHeight, depth) : Math.pow(2, depth) - 1;
-        //System.out.println (tilex + " " + tiley);
+        double tiles = p.tilesAcross(depth);
+        double tilex = ullon > p.ullon ? findTile(ullon - p.ullon, p.width(), tiles) : 0;
+        double tiley = ullat <= p.ullat ? findTile(p.ullat - ullat, p.height(), tiles) : 0;
+        double tilexEnd = lrlon < p.lrlon
+                ? findTile(lrlon - p.ullon, p.width(), tiles) : tiles - 1;
+        double tileyEnd = lrlat >= p.lrlat
+                ? findTile(p.ullat - lrlat, p.height(), tiles) : tiles - 1;
 
-        int xTileNum = (int)tilexEnd - (int)tilex + 1;
-        int yTileNum = (int)tileyEnd - (int)tiley + 1;
-        //System.out.println("depth:" + depth + " xTileNum:" + xTileNum + " yTileNum:" + yTileNum);
+        int xTileNum = (int) tilexEnd - (int) tilex + 1;
+        int yTileNum = (int) tileyEnd - (int) tiley + 1;
         String[][] grid = new String[yTileNum][xTileNum];
-        String head =  "d" + String.valueOf(depth) + "_";
         for (int j = 0; j < yTileNum; j++) {
-            String tail = "_" + "y" + String.valueOf((int)tiley + j) + ".png";
             for (int i = 0; i < xTileNum; i++) {
-                grid[j][i] = head + "x" + String.valueOf((int)tilex + i) + tail;
-                //System.out.println(grid[j][i]);
+                grid[j][i] = p.tileName(depth, (int) tilex + i, (int) tiley + j);
             }
         }
         results.put("render_grid", grid);
-        double raster_ul_lon = MapServer.ROOT_ULLON + (mapWidth/Math.pow(2, depth))*(int)(tilex);
-        double raster_ul_lat = MapServer.ROOT_ULLAT - (mapHeight/Math.pow(2, depth))*(int)(tiley);
-        //double raster_lr_lon = Math.min(MapServer.ROOT_ULLON + (mapWidth/Math.pow(2, depth))*((int)(tilex) + xTileNum), MapServer.ROOT_LRLON);
-        double raster_lr_lon = MapServer.ROOT_ULLON + (mapWidth/Math.pow(2, depth))*(int)(tilexEnd + 1);
-        //double raster_lr_lat = Math.max(MapServer.ROOT_ULLAT - (mapHeight/Math.pow(2, depth))*((int)(tiley) + yTileNum), MapServer.ROOT_LRLAT);
-        double raster_lr_lat = MapServer.ROOT_ULLAT - (mapHeight/Math.pow(2, depth))*(int)(tileyEnd + 1);
-        results.put("raster_lr_lon", raster_lr_lon);
-        results.put("raster_ul_lon", raster_ul_lon);
-        results.put("raster_lr_lat", raster_lr_lat);
-        results.put("raster_ul_lat", raster_ul_lat);
-        //System.out.println(raster_ul_lon + " " + raster_ul_lat + " " + raster_lr_lon + " " + raster_lr_lat);
+        results.put("grid_ul_x", (int) tilex);
+        results.put("grid_ul_y", (int) tiley);
+        results.put("raster_ul_lon", p.ullon + p.tileLonSpan(depth) * (int) tilex);
+        results.put("raster_ul_lat", p.ullat - p.tileLatSpan(depth) * (int) tiley);
+        results.put("raster_lr_lon", p.ullon + p.tileLonSpan(depth) * (int) (tilexEnd + 1));
+        results.put("raster_lr_lat", p.ullat - p.tileLatSpan(depth) * (int) (tileyEnd + 1));
         return results;
     }
 
-    private double imgLonDPP (int depth) {
-        if (depth < 0 || depth > 7) {
-            throw new IllegalArgumentException("depth not valid");
-        }
-        double lonDPP = mapWidth / MapServer.TILE_SIZE;
-        lonDPP = lonDPP / Math.pow(2, depth);
-        return lonDPP;
-    }
-
-    private double findTile (double coord, double limit, int depth) {
-        return (coord/limit) * Math.pow(2, depth);
+    /** Returns the fractional index of the tile coord falls in, of tiles across limit. */
+    private static double findTile(double coord, double limit, double tiles) {
+        return (coord / limit) * tiles;
     }
 
 }
@@ -0,0 +1,353 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A tile store that serves the tiles of another store where it has them, and renders the
+ * road network from the graph for the levels it does not reach. A rendered tile is made on
+ * first request and encoded once; the encoded tiles are kept in memory, least recently used
+ * first out, and tiles pushed out of memory are written to a spill directory, from which
+ * they are read back instead of rendered again. Identical renders in flight at once run
+ * once. The spill directory is emptied on opening, as it may hold tiles of another graph.
+ *
+ * A store for a graph that a change made from this one's takes over what the change leaves
+ * alone: every tile has a version, that of the latest change to segments near it, or the
+ * first store's, and tiles whose version the change leaves as it was are carried over, in
+ * memory and in the spill directory, which the stores share and name spilled tiles in by
+ * version. Once the changes add up to too many segments to check tiles against quickly, the
+ * next store starts over.
+ */
+public class RenderedTileStore implements TileStore {
+    /** Changed segments a store keeps track of before the next store has to start over. */
+    static final int MAX_CHANGED_SEGMENTS = 4096;
+    private static final LatencyHistogram RENDER_TIME = Metrics.phase("tile_render");
+    private static final String LOOKUPS = "bearmaps_tile_cache_lookups_total";
+    private static final String LOOKUPS_HELP = "Tile cache lookups by cache and result.";
+    private static final LongAdder MEMORY_HITS = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "rendered", "result", "hit");
+    private static final LongAdder SPILL_HITS = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "rendered", "result", "spill");
+    private static final LongAdder MISSES = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "rendered", "result", "miss");
+
+    /** A change since the first store, and the version of the tiles near it. */
+    private static final class Damage {
+        final long version;
+        final EdgeGrid.Change change;
+        /** The change before, or null. */
+        final Damage older;
+        /** Segments of this change and all those before. */
+        final int segments;
+
+        Damage(long version, EdgeGrid.Change change, Damage older) {
+            this.version = version;
+            this.change = change;
+            this.older = older;
+            this.segments = change.size() + (older == null ? 0 : older.segments);
+        }
+    }
+
+    /** The spill directory and the thread writing to it, shared by the stores that use it. */
+    private static final class Spill {
+        final Path dir;
+        final ExecutorService spiller = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "tile-spiller");
+            t.setDaemon(true);
+            return t;
+        });
+        /** Stores not released yet. */
+        final AtomicInteger users = new AtomicInteger(1);
+
+        Spill(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    private final TileStore base;
+    private final RoadTileRenderer renderer;
+    /** The version of the tiles no change has come near. */
+    private final long version;
+    /** The changes since the first store, latest first, or null if there are none. */
+    private final Damage damage;
+    private final PngEncoder encoder;
+    private final int fromDepth;
+    private final int maxDepth;
+    private final int maxTiles;
+    private final Spill spill;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final Map<Long, byte[]> memory;
+    private final SingleFlight<Long, byte[]> renders = new SingleFlight<>("tile_render");
+    private final long openedAt = System.currentTimeMillis();
+
+    /**
+     * @param base The store of pre-rendered tiles.
+     * @param renderer Draws the tiles base does not have.
+     * @param version Identifies what renderer draws, such as the generation of its graph.
+     *                Stores that draw different tiles must have different versions.
+     * @param encoder Encodes rendered tiles.
+     * @param fromDepth Shallowest depth to render tiles at; shallower misses stay misses.
+     * @param maxDepth Deepest depth to render tiles at.
+     * @param maxTiles Number of rendered tiles kept in memory.
+     * @param spillDir Directory rendered tiles are spilled to; created if missing.
+     */
+    public RenderedTileStore(TileStore base, RoadTileRenderer renderer, long version,
+                             PngEncoder encoder, int fromDepth, int maxDepth, int maxTiles,
+                             Path spillDir) throws IOException {
+        this.base = base;
+        this.renderer = renderer;
+        this.version = version;
+        this.damage = null;
+        this.encoder = encoder;
+        this.fromDepth = fromDepth;
+        this.maxDepth = maxDepth;
+        this.maxTiles = maxTiles;
+        this.spill = new Spill(Files.createDirectories(spillDir));
+        try (DirectoryStream<Path> old = Files.newDirectoryStream(spillDir, "*.{png,tmp}")) {
+            for (Path p : old) {
+                Files.deleteIfExists(p);
+            }
+        }
+        this.memory = lruMemory();
+    }
+
+    /** Makes the store for a changed graph, sharing previous's spill directory. */
+    private RenderedTileStore(RenderedTileStore previous, RoadTileRenderer renderer,
+                              long version, EdgeGrid.Change change) {
+        this.base = previous.base;
+        this.renderer = renderer;
+        this.version = previous.version;
+        this.damage = new Damage(version, change, previous.damage);
+        this.encoder = previous.encoder;
+        this.fromDepth = previous.fromDepth;
+        this.maxDepth = previous.maxDepth;
+        this.maxTiles = previous.maxTiles;
+        this.spill = previous.spill;
+        spill.users.incrementAndGet();
+        this.memory = lruMemory();
+        synchronized (previous.memory) {
+            for (Map.Entry<Long, byte[]> e : previous.memory.entrySet()) {
+                long key = e.getKey();
+                double[] box = renderer.reach((int) (key >>> 56),
+                        (int) ((key >>> 28) & 0xfffffff), (int) (key & 0xfffffff));
+                if (!change.touches(box[0], box[1], box[2], box[3])) {
+                    memory.put(key, e.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a store for after, which withChange made from before, the graph this store
+     * draws: it draws after's roads and takes over this store's tiles that the change
+     * leaves as they were. This store is left as it was. The new store has to be released
+     * as well, and shares its spill directory with this one until both are.
+     * @return The store, or null if the changes since the first store add up to too many
+     * segments, and a new store has to start over.
+     */
+    RenderedTileStore withChange(GraphDB before, GraphDB after) {
+        EdgeGrid.Change change = EdgeGrid.Change.between(before, after);
+        int segments = change.size() + (damage == null ? 0 : damage.segments);
+        if (segments > MAX_CHANGED_SEGMENTS || released.get()) {
+            return null;
+        }
+        RoadTileRenderer next = renderer.withEdges(renderer.edges().withChange(change, after));
+        return new RenderedTileStore(this, next, after.generation(), change);
+    }
+
+    /** Returns an empty map of tiles in memory that spills its least recently used. */
+    private Map<Long, byte[]> lruMemory() {
+        return new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                if (size() <= maxTiles) {
+                    return false;
+                }
+                long key = eldest.getKey();
+                byte[] png = eldest.getValue();
+                try {
+                    spill.spiller.execute(() -> spill(key, png));
+                } catch (RejectedExecutionException e) {
+                    /* Released; the tile is dropped, to be rendered again if need be. */
+                }
+                return true;
+            }
+        };
+    }
+
+    /** Returns the version of a tile this store renders. */
+    private long tileVersion(int depth, int x, int y) {
+        if (damage == null) {
+            return version;
+        }
+        double[] box = renderer.reach(depth, x, y);
+        for (Damage d = damage; d != null; d = d.older) {
+            if (d.change.touches(box[0], box[1], box[2], box[3])) {
+                return d.version;
+            }
+        }
+        return version;
+    }
+
+    /** Returns the file a rendered tile is spilled to, named by its version as well. */
+    Path spillPath(int depth, int x, int y) {
+        return spill.dir.resolve(Long.toHexString(tileVersion(depth, x, y)) + "_"
+                + TileStore.fileName(depth, x, y));
+    }
+
+    @Override
+    public ByteBuffer tile(int depth, int x, int y) {
+        ByteBuffer stored = base.tile(depth, x, y);
+        if (stored != null || depth < fromDepth || depth > maxDepth
+                || x < 0 || y < 0 || x >= 1 << depth || y >= 1 << depth) {
+            return stored;
+        }
+        long key = TileStore.key(depth, x, y);
+        byte[] png = cached(key);
+        if (png == null) {
+            try {
+                png = renders.run(key, () -> load(depth, x, y, key));
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return ByteBuffer.wrap(png).asReadOnlyBuffer();
+    }
+
+    private byte[] cached(long key) {
+        synchronized (memory) {
+            byte[] png = memory.get(key);
+            if (png != null) {
+                MEMORY_HITS.increment();
+            }
+            return png;
+        }
+    }
+
+    /** Reads a tile back from the spill directory, or renders it, into memory. */
+    private byte[] load(int depth, int x, int y, long key) throws IOException {
+        byte[] png;
+        synchronized (memory) {
+            png = memory.get(key);
+        }
+        if (png != null) {
+            return png;
+        }
+        try {
+            png = Files.readAllBytes(spillPath(depth, x, y));
+            SPILL_HITS.increment();
+        } catch (NoSuchFileException e) {
+            MISSES.increment();
+            long start = System.nanoTime();
+            png = encoder.encode(renderer.render(depth, x, y));
+            RENDER_TIME.recordSince(start);
+        }
+        synchronized (memory) {
+            memory.put(key, png);
+        }
+        return png;
+    }
+
+    /**
+     * Writes an evicted tile to the spill directory. The file appears under its name only
+     * once complete, so a concurrent reader never sees part of it.
+     */
+    private void spill(long key, byte[] png) {
+        int depth = (int) (key >>> 56);
+        int x = (int) ((key >>> 28) & 0xfffffff);
+        int y = (int) (key & 0xfffffff);
+        Path target = spillPath(depth, x, y);
+        if (Files.exists(target)) {
+            /* Spilled before and read back since; a version of a tile never changes. */
+            return;
+        }
+        try {
+            Path tmp = Files.createTempFile(spill.dir, "spill", ".tmp");
+            Files.write(tmp, png);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Has the base store's tiles, and renders every other tile it is asked for. */
+    @Override
+    public boolean has(int depth, int x, int y) {
+        return renders(depth, x, y) || base.has(depth, x, y);
+    }
+
+    /** Returns whether a tile is within the levels this store renders. */
+    private boolean renders(int depth, int x, int y) {
+        return depth >= fromDepth && depth <= maxDepth && TileStore.isAddressable(depth, x, y);
+    }
+
+    /**
+     * A tile this store renders is validated by the version and its position, so that
+     * validating it never renders it. The base store's tiles are left to the base, which is
+     * only asked whether it has a tile, not for the tile.
+     */
+    @Override
+    public long validator(int depth, int x, int y) {
+        if (!renders(depth, x, y) || base.has(depth, x, y)) {
+            return base.validator(depth, x, y);
+        }
+        return TileCache.mix(tileVersion(depth, x, y), TileStore.key(depth, x, y));
+    }
+
+    /** Rendered tiles are new as of opening, unless the base tiles are newer. */
+    @Override
+    public long lastModified() {
+        return Math.max(base.lastModified(), openedAt);
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        base.close();
+    }
+
+    /**
+     * Once every store sharing the spill directory is released, stops spilling and deletes
+     * the spilled tiles, and the spill directory if that leaves it empty, but leaves the base
+     * store open, for when a store over the same base takes this one's place. Tiles asked for
+     * afterwards are still served, rendered again if need be.
+     */
+    void release() throws IOException {
+        if (released.getAndSet(true) || spill.users.decrementAndGet() > 0) {
+            return;
+        }
+        spill.spiller.shutdown();
+        try {
+            spill.spiller.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try (DirectoryStream<Path> spilled = Files.newDirectoryStream(spill.dir,
+                "*.{png,tmp}")) {
+            for (Path p : spilled) {
+                Files.deleteIfExists(p);
+            }
+        }
+        try {
+            Files.deleteIfExists(spill.dir);
+        } catch (DirectoryNotEmptyException e) {
+            /* Something else is kept there. */
+        }
+    }
+}
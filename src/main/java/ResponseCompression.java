@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compresses response bodies with the best encoding the client accepts. Bodies are buffered
+ * until they outgrow a threshold, so small responses go out as they are, with a
+ * Content-Length, and only larger ones pay for compression. Content types that are
+ * compressed already, such as PNG tiles, are never compressed again.
+ * Deflaters are kept in a pool and reset between responses instead of being allocated
+ * and freed for every request.
+ */
+public class ResponseCompression {
+    /** Content encodings the server can produce, in order of preference. */
+    enum Encoding {
+        GZIP("gzip"), IDENTITY("identity");
+
+        final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final int level;
+    private final int threshold;
+    private final BlockingQueue<Deflater> deflaters;
+
+    /**
+     * @param level Deflate level, 1 (fastest) to 9 (smallest).
+     * @param threshold Bodies up to this many bytes are sent uncompressed.
+     * @param poolSize Maximum number of idle deflaters kept for reuse.
+     */
+    public ResponseCompression(int level, int threshold, int poolSize) {
+        this.level = level;
+        this.threshold = threshold;
+        this.deflaters = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * Returns a stream for the body of res, compressed if the client accepts it and the
+     * body turns out large enough. The content type must be set before calling this, and
+     * the stream must be closed to complete the response.
+     */
+    OutputStream open(HttpServletRequest req, HttpServletResponse res) throws IOException {
+        if (!isCompressible(res.getContentType())) {
+            return res.getOutputStream();
+        }
+        /* The body now depends on Accept-Encoding, so caches must key on it. */
+        res.addHeader("Vary", "Accept-Encoding");
+        Encoding encoding = negotiate(req.getHeader("Accept-Encoding"));
+        if (encoding == Encoding.IDENTITY) {
+            return res.getOutputStream();
+        }
+        return new ThresholdStream(res, encoding);
+    }
+
+    /**
+     * Whether a body of the given content type is worth compressing. Images, archives and
+     * media are compressed already; deflating them again costs time and saves nothing.
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        if (type.startsWith("image/svg")) {
+            return true;
+        }
+        return !(type.startsWith("image/") || type.startsWith("audio/")
+                || type.startsWith("video/") || type.contains("zip")
+                || type.contains("compressed") || type.contains("octet-stream"));
+    }
+
+    /**
+     * Picks the encoding for a response from the Accept-Encoding request header, honoring
+     * q-values and the * wildcard, e.g. "gzip, deflate, br" or "gzip;q=0, *;q=0.5".
+     * @param acceptEncoding The header value, or null if absent.
+     * @return The preferred acceptable encoding, or IDENTITY.
+     */
+    static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return Encoding.IDENTITY;
+        }
+        Encoding best = Encoding.IDENTITY;
+        double bestQ = 0;
+        for (Encoding e : Encoding.values()) {
+            if (e == Encoding.IDENTITY) {
+                continue;
+            }
+            double q = quality(acceptEncoding, e.token);
+            if (q > bestQ) {
+                best = e;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the ETag of a body sent in encoding, given the ETag of the plain body. A strong
+     * tag promises the very same bytes, so an encoded body gets a tag of its own: "h-gzip"
+     * for "h". Weak tags stay as they are.
+     */
+    static String encodedETag(String etag, Encoding encoding) {
+        if (encoding == Encoding.IDENTITY || etag.startsWith("W/") || !etag.endsWith("\"")) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + encoding.token + "\"";
+    }
+
+    /** Returns the ETag of the plain body, given the ETag of the body in any encoding. */
+    static String identityETag(String etag) {
+        for (Encoding e : Encoding.values()) {
+            String suffix = "-" + e.token + "\"";
+            if (e != Encoding.IDENTITY && etag.endsWith(suffix)) {
+                return etag.substring(0, etag.length() - suffix.length()) + "\"";
+            }
+        }
+        return etag;
+    }
+
+    /** Returns the q-value given to token, or to *, by an Accept-Encoding header. */
+    private static double quality(String acceptEncoding, String token) {
+        double wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.split(";");
+            String coding = fields[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < fields.length; i += 1) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(token)) {
+                return q;
+            } else if (coding.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /** Returns a stream that gzips onto out with a pooled deflater. */
+    OutputStream gzip(OutputStream out) throws IOException {
+        return new GzipStream(out, borrow());
+    }
+
+    private Deflater borrow() {
+        Deflater d = deflaters.poll();
+        return d != null ? d : new Deflater(level, true);
+    }
+
+    private void release(Deflater d) {
+        d.reset();
+        if (!deflaters.offer(d)) {
+            d.end();
+        }
+    }
+
+    /** Gzip framing around a raw deflate stream, returning the deflater to the pool. */
+    private class GzipStream extends DeflaterOutputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean closed;
+
+        GzipStream(OutputStream out, Deflater deflater) throws IOException {
+            super(out, deflater, BUFFER_SIZE);
+            /* Header: magic, CM = deflate, no flags, no mtime, XFL, OS unknown. */
+            out.write(new byte[] {(byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8),
+                Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            super.finish();
+            writeIntLE((int) crc.getValue());
+            writeIntLE((int) def.getBytesRead());
+        }
+
+        private void writeIntLE(int v) throws IOException {
+            out.write(v);
+            out.write(v >> 8);
+            out.write(v >> 16);
+            out.write(v >> 24);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                release(def);
+            }
+        }
+    }
+
+    /**
+     * Holds the start of a body back until it is known whether it outgrows the threshold.
+     * Headers stay writable until then, because nothing has reached the client.
+     */
+    private class ThresholdStream extends OutputStream {
+        private final HttpServletResponse res;
+        private final Encoding encoding;
+        private final byte[] head;
+        private int count;
+        private OutputStream target;
+        private boolean closed;
+
+        ThresholdStream(HttpServletResponse res, Encoding encoding) {
+            this.res = res;
+            this.encoding = encoding;
+            this.head = new byte[threshold];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (target == null && count + len <= head.length) {
+                System.arraycopy(b, off, head, count, len);
+                count += len;
+                return;
+            }
+            if (target == null) {
+                res.setHeader("Content-Encoding", encoding.token);
+                String etag = res.getHeader("ETag");
+                if (etag != null) {
+                    res.setHeader("ETag", encodedETag(etag, encoding));
+                }
+                target = gzip(res.getOutputStream());
+                target.write(head, 0, count);
+            }
+            target.write(b, off, len);
+        }
+
+        /** Flushing is deferred while the body may still go out uncompressed. */
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (target == null) {
+                res.setContentLength(count);
+                OutputStream out = res.getOutputStream();
+                out.write(head, 0, count);
+                out.close();
+            } else {
+                target.close();
+            }
+        }
+    }
+}
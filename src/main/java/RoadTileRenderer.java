@@ -0,0 +1,112 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+
+/**
+ * Draws tiles of the road network straight from the graph, for any depth of a tile pyramid.
+ * Only the segments near a tile are fetched, from an EdgeGrid, and drawn as one path: first
+ * a darker casing under every road, then the road itself, so crossing roads merge instead
+ * of cutting each other off. Roads widen as the tiles zoom in, within limits.
+ * Rendering keeps no state between tiles, so tiles may be rendered on many threads at once.
+ */
+public class RoadTileRenderer {
+    private static final Color LAND = new Color(0xF2EFE9);
+    private static final Color CASING = new Color(0xB8AE9F);
+    private static final Color ROAD = Color.WHITE;
+    /** How wide a road is drawn, in degrees of longitude, before the limits below. */
+    private static final double ROAD_WIDTH_DEGREES = 1.2e-5;
+    private static final float MIN_ROAD_PIXELS = 2;
+    private static final float MAX_ROAD_PIXELS = 24;
+    /** How much wider than the road its casing is, in pixels. */
+    private static final float CASING_PIXELS = 2;
+
+    private final TilePyramid pyramid;
+    private final EdgeGrid edges;
+
+    public RoadTileRenderer(TilePyramid pyramid, EdgeGrid edges) {
+        this.pyramid = pyramid;
+        this.edges = edges;
+    }
+
+    /** Returns the grid the roads are drawn from. */
+    EdgeGrid edges() {
+        return edges;
+    }
+
+    /** Returns a renderer of the same pyramid that draws the roads of another grid. */
+    RoadTileRenderer withEdges(EdgeGrid other) {
+        return new RoadTileRenderer(pyramid, other);
+    }
+
+    /** Returns the width roads are drawn with at depth, in pixels. */
+    float roadWidth(int depth) {
+        double pixels = ROAD_WIDTH_DEGREES / pyramid.lonDPP(depth);
+        return (float) Math.max(MIN_ROAD_PIXELS, Math.min(MAX_ROAD_PIXELS, pixels));
+    }
+
+    /**
+     * Returns the box of the segments a tile is drawn from, a tile's bounds widened by
+     * how far a road just outside still reaches into it: a tile changes only if a segment
+     * with a bounding box overlapping this one does.
+     * @return minLon, minLat, maxLon, maxLat.
+     */
+    double[] reach(int depth, int x, int y) {
+        int size = pyramid.tileSize;
+        double lonDPP = pyramid.lonDPP(depth);
+        double latDPP = pyramid.tileLatSpan(depth) / size;
+        double ullon = pyramid.ullon + x * pyramid.tileLonSpan(depth);
+        double ullat = pyramid.ullat - y * pyramid.tileLatSpan(depth);
+        double reach = (roadWidth(depth) + CASING_PIXELS) / 2 + 1;
+        return new double[]{ullon - reach * lonDPP, ullat - (size + reach) * latDPP,
+                ullon + (size + reach) * lonDPP, ullat + reach * latDPP};
+    }
+
+    /**
+     * Draws one tile.
+     * @param depth Depth of the tile in the pyramid.
+     * @param x Column of the tile, counted from the west edge.
+     * @param y Row of the tile, counted from the north edge.
+     * @return An image of the tile, tileSize pixels square.
+     */
+    BufferedImage render(int depth, int x, int y) {
+        int size = pyramid.tileSize;
+        double lonDPP = pyramid.lonDPP(depth);
+        double latDPP = pyramid.tileLatSpan(depth) / size;
+        double ullon = pyramid.ullon + x * pyramid.tileLonSpan(depth);
+        double ullat = pyramid.ullat - y * pyramid.tileLatSpan(depth);
+
+        float casingWidth = roadWidth(depth) + CASING_PIXELS;
+        double[] box = reach(depth, x, y);
+        Path2D.Double roads = new Path2D.Double();
+        edges.query(box[0], box[1], box[2], box[3],
+                (lon1, lat1, lon2, lat2) -> {
+                    roads.moveTo((lon1 - ullon) / lonDPP, (ullat - lat1) / latDPP);
+                    roads.lineTo((lon2 - ullon) / lonDPP, (ullat - lat2) / latDPP);
+                });
+
+        BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        try {
+            g.setColor(LAND);
+            g.fillRect(0, 0, size, size);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL,
+                    RenderingHints.VALUE_STROKE_PURE);
+            g.setColor(CASING);
+            g.setStroke(new BasicStroke(casingWidth, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND));
+            g.draw(roads);
+            g.setColor(ROAD);
+            g.setStroke(new BasicStroke(roadWidth(depth), BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND));
+            g.draw(roads);
+        } finally {
+            g.dispose();
+        }
+        return img;
+    }
+}
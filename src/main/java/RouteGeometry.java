@@ -0,0 +1,205 @@
+import java.awt.geom.Path2D;
+import java.util.List;
+
+/**
+ * The coordinates of a route, looked up once when the route is found and kept in primitive
+ * arrays for drawing. The route is split into blocks of consecutive points with their
+ * bounding boxes, so that projecting it into a raster skips whole blocks outside the view;
+ * the cost of drawing a route depends on how much of it is visible, not on its length.
+ * Instances never change, so a raster may draw one while another route replaces it.
+ */
+public class RouteGeometry {
+    /** Number of segments per block. */
+    private static final int BLOCK = 32;
+    /** Points closer than this many pixels to the last point drawn are left out. */
+    private static final double MIN_STEP_PX = 0.5;
+
+    /** The geometry of the empty route. */
+    static final RouteGeometry EMPTY = new RouteGeometry(null, null);
+
+    /** A hash of the route's vertices, in order. */
+    final long fingerprint;
+    private final double[] lon;
+    private final double[] lat;
+    /** Per block: lowest and highest longitude and latitude of its points. */
+    private final double[] blockMinLon;
+    private final double[] blockMaxLon;
+    private final double[] blockMinLat;
+    private final double[] blockMaxLat;
+
+    /**
+     * @param g The graph the route's vertices belong to.
+     * @param route The vertices of the route, in order; null for no route.
+     */
+    RouteGeometry(GraphDB g, List<Long> route) {
+        int n = route == null ? 0 : route.size();
+        lon = new double[n];
+        lat = new double[n];
+        long h = 0;
+        int i = 0;
+        if (route != null) {
+            for (long v : route) {
+                lon[i] = g.lon(v);
+                lat[i] = g.lat(v);
+                h = TileCache.mix(h, v);
+                i += 1;
+            }
+        }
+        fingerprint = h;
+        int blocks = n < 2 ? 0 : (n - 2) / BLOCK + 1;
+        blockMinLon = new double[blocks];
+        blockMaxLon = new double[blocks];
+        blockMinLat = new double[blocks];
+        blockMaxLat = new double[blocks];
+        for (int b = 0; b < blocks; b += 1) {
+            int end = Math.min((b + 1) * BLOCK, n - 1);
+            double minLon = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY;
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            for (int p = b * BLOCK; p <= end; p += 1) {
+                minLon = Math.min(minLon, lon[p]);
+                maxLon = Math.max(maxLon, lon[p]);
+                minLat = Math.min(minLat, lat[p]);
+                maxLat = Math.max(maxLat, lat[p]);
+            }
+            blockMinLon[b] = minLon;
+            blockMaxLon[b] = maxLon;
+            blockMinLat[b] = minLat;
+            blockMaxLat[b] = maxLat;
+        }
+    }
+
+    /** Returns the number of points of the route. */
+    int size() {
+        return lon.length;
+    }
+
+    /**
+     * Projects the visible part of the route into the pixels of a raster. Segments are
+     * clipped, Liang-Barsky style, to the raster grown by pad pixels on every side, and
+     * runs of points within a fraction of a pixel of each other are reduced to their ends.
+     * @param ullon Upper left longitude of the raster.
+     * @param ullat Upper left latitude of the raster.
+     * @param lrlon Lower right longitude of the raster.
+     * @param lrlat Lower right latitude of the raster.
+     * @param width Raster width in pixels.
+     * @param height Raster height in pixels.
+     * @param pad Pixels beyond the raster's edges to keep.
+     * @return The route in raster pixel coordinates; empty if none of it is visible.
+     */
+    Path2D.Double project(double ullon, double ullat, double lrlon, double lrlat,
+                          int width, int height, double pad) {
+        double pxPerLon = width / (lrlon - ullon);
+        double pxPerLat = height / (ullat - lrlat);
+        double minLon = ullon - pad / pxPerLon;
+        double maxLon = lrlon + pad / pxPerLon;
+        double minLat = lrlat - pad / pxPerLat;
+        double maxLat = ullat + pad / pxPerLat;
+        Clipper c = new Clipper(-pad, -pad, width + pad, height + pad);
+        for (int b = 0; b < blockMinLon.length; b += 1) {
+            if (blockMaxLon[b] < minLon || blockMinLon[b] > maxLon
+                    || blockMaxLat[b] < minLat || blockMinLat[b] > maxLat) {
+                c.breakRun();
+                continue;
+            }
+            int end = Math.min((b + 1) * BLOCK, lon.length - 1);
+            for (int p = b * BLOCK; p < end; p += 1) {
+                c.segment((lon[p] - ullon) * pxPerLon, (ullat - lat[p]) * pxPerLat,
+                        (lon[p + 1] - ullon) * pxPerLon, (ullat - lat[p + 1]) * pxPerLat);
+            }
+        }
+        c.breakRun();
+        return c.path;
+    }
+
+    /** Clips consecutive segments to a rectangle and adds what remains to one path. */
+    private static class Clipper {
+        final Path2D.Double path = new Path2D.Double();
+        private final double xMin, yMin, xMax, yMax;
+        /** Whether the last segment ended inside, so the next one continues its subpath. */
+        private boolean open;
+        private double lastX, lastY;
+        /** A point left out for being too close, drawn if the run ends on it. */
+        private boolean pending;
+        private double pendingX, pendingY;
+        /** The visible part of the segment being clipped, as fractions of its length. */
+        private double t0, t1;
+
+        Clipper(double xMin, double yMin, double xMax, double yMax) {
+            this.xMin = xMin;
+            this.yMin = yMin;
+            this.xMax = xMax;
+            this.yMax = yMax;
+        }
+
+        void segment(double x0, double y0, double x1, double y1) {
+            double dx = x1 - x0;
+            double dy = y1 - y0;
+            t0 = 0;
+            t1 = 1;
+            if (!clip(-dx, x0 - xMin) || !clip(dx, xMax - x0)
+                    || !clip(-dy, y0 - yMin) || !clip(dy, yMax - y0)) {
+                breakRun();
+                return;
+            }
+            if (!open || t0 > 0) {
+                breakRun();
+                lastX = x0 + t0 * dx;
+                lastY = y0 + t0 * dy;
+                path.moveTo(lastX, lastY);
+                open = true;
+            }
+            double ex = x0 + t1 * dx;
+            double ey = y0 + t1 * dy;
+            if (t1 < 1) {
+                /* The segment leaves the rectangle; the run ends at the crossing. */
+                path.lineTo(ex, ey);
+                pending = false;
+                open = false;
+            } else if (Math.abs(ex - lastX) >= MIN_STEP_PX
+                    || Math.abs(ey - lastY) >= MIN_STEP_PX) {
+                path.lineTo(ex, ey);
+                lastX = ex;
+                lastY = ey;
+                pending = false;
+            } else {
+                pending = true;
+                pendingX = ex;
+                pendingY = ey;
+            }
+        }
+
+        /** Ends the current run, drawing its last point if it was left out. */
+        void breakRun() {
+            if (pending) {
+                path.lineTo(pendingX, pendingY);
+                pending = false;
+            }
+            open = false;
+        }
+
+        /**
+         * Narrows t0 to t1, the visible part of the segment, by one edge of the rectangle.
+         * @return Whether any of the segment is still visible.
+         */
+        private boolean clip(double p, double q) {
+            if (p == 0) {
+                return q >= 0;
+            }
+            double r = q / p;
+            if (p < 0) {
+                if (r > t1) {
+                    return false;
+                }
+                t0 = Math.max(t0, r);
+            } else {
+                if (r < t0) {
+                    return false;
+                }
+                t1 = Math.min(t1, r);
+            }
+            return true;
+        }
+    }
+}
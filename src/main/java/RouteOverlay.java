@@ -0,0 +1,73 @@
+import java.awt.BasicStroke;
+import java.awt.Graphics2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A transparent image holding only the route, drawn separately from the base map so the
+ * base composite can be shared between users. The image covers just the part of the raster
+ * that the route passes through; x and y give its offset in raster pixels.
+ */
+public class RouteOverlay {
+    /** Pixel offset of the overlay's upper left corner within the raster. */
+    final int x, y;
+    /** The overlay, with a transparent background. */
+    final BufferedImage image;
+
+    private RouteOverlay(int x, int y, BufferedImage image) {
+        this.x = x;
+        this.y = y;
+        this.image = image;
+    }
+
+    /**
+     * Draws a route over a raster of the given bounds and size. Only the part of the route
+     * within the raster is projected and drawn, as a single path.
+     * @param route The geometry of the route.
+     * @param ullon Upper left longitude of the raster.
+     * @param ullat Upper left latitude of the raster.
+     * @param lrlon Lower right longitude of the raster.
+     * @param lrlat Lower right latitude of the raster.
+     * @param width Raster width in pixels.
+     * @param height Raster height in pixels.
+     * @return The overlay, or null if no part of the route is visible in the raster.
+     */
+    static RouteOverlay render(RouteGeometry route, double ullon, double ullat,
+                               double lrlon, double lrlat, int width, int height) {
+        if (route == null || route.size() < 2) {
+            return null;
+        }
+        /* Keep a stroke's width beyond the edges, so round caps there are not cut off. */
+        int pad = (int) Math.ceil(MapServer.ROUTE_STROKE_WIDTH_PX);
+        Path2D.Double path = route.project(ullon, ullat, lrlon, lrlat, width, height, pad);
+        if (path.getCurrentPoint() == null) {
+            return null;
+        }
+        Rectangle2D bounds = path.getBounds2D();
+        int x0 = Math.max(0, (int) Math.floor(bounds.getMinX()) - pad);
+        int y0 = Math.max(0, (int) Math.floor(bounds.getMinY()) - pad);
+        int x1 = Math.min(width, (int) Math.ceil(bounds.getMaxX()) + pad + 1);
+        int y1 = Math.min(height, (int) Math.ceil(bounds.getMaxY()) + pad + 1);
+        if (x0 >= x1 || y0 >= y1) {
+            return null;
+        }
+
+        BufferedImage img = new BufferedImage(x1 - x0, y1 - y0, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = img.createGraphics();
+        g2d.translate(-x0, -y0);
+        g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
+        g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
+                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g2d.draw(path);
+        g2d.dispose();
+        return new RouteOverlay(x0, y0, img);
+    }
+
+    /** Writes the overlay to os as a PNG. */
+    void writePng(PngEncoder encoder, OutputStream os) throws IOException {
+        encoder.write(image, os);
+    }
+}
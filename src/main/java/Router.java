@@ -12,6 +12,8 @@ import java.util.PriorityQueue;
  * down to the priority you use to order your vertices.
  */
 public class Router {
+    private static final LatencyHistogram CLOSEST_TIME = Metrics.phase("closest");
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
@@ -29,6 +31,50 @@ public class Router {
 
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, null);
+    }
+
+    /**
+     * Same as {@link #shortestPath(GraphDB, double, double, double, double)}, but also
+     * counts the work the search did into stats, if it is not null.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          SearchStats stats) {
+        long[] ends = snap(g, stlon, stlat, destlon, destlat, stats);
+        return shortestPath(g, ends[0], ends[1], destlon, destlat, stats);
+    }
+
+    /**
+     * Finds the vertices closest to a start and a destination location, recording in stats,
+     * if it is not null, how long that took and how far each location is from its vertex.
+     * @return The start and destination vertices.
+     */
+    static long[] snap(GraphDB g, double stlon, double stlat, double destlon, double destlat,
+                       SearchStats stats) {
+        long start = System.nanoTime();
+        long st = g.closest(stlon, stlat);
+        long snapped = System.nanoTime();
+        long goal = g.closest(destlon, destlat);
+        long end = System.nanoTime();
+        CLOSEST_TIME.record(snapped - start);
+        CLOSEST_TIME.record(end - snapped);
+        if (stats != null) {
+            stats.snapNanos = end - start;
+            stats.startSnapMiles = GraphDB.distance(stlon, stlat, g.lon(st), g.lat(st));
+            stats.goalSnapMiles = GraphDB.distance(destlon, destlat, g.lon(goal), g.lat(goal));
+        }
+        return new long[] {st, goal};
+    }
+
+    /**
+     * Returns the shortest path between two vertices, as found by an A* search guided
+     * towards the destination location, counting the work the search did into stats if it
+     * is not null. The result depends on the two vertices and the destination location.
+     */
+    static List<Long> shortestPath(GraphDB g, long st, long goal, double destlon,
+                                   double destlat, SearchStats stats) {
+        long searchStart = System.nanoTime();
         LinkedList<Long> path = new LinkedList<>();
         Set<Long> marked = new HashSet<>();
         //Best known distance from source to every vertex w, i.e.  d(s, w)
@@ -61,9 +107,10 @@ public class Router {
 
 //        double[] stcoord = {stlon, stlat};
 //       Long st = g.getNode(stcoord);
-        long st = g.closest(stlon, stlat);
         fringe.add(st);
-        long goal = g.closest(destlon, destlat);
+        if (stats != null) {
+            stats.heapPushes += 1;
+        }
 
         for (long v : g.vertices()) {
             if (v == st) {
@@ -75,31 +122,120 @@ public class Router {
 
         while(true) {
             Long head = fringe.poll();
-            marked.add(head);
             if (head == null) {
+                finish(stats, searchStart, 0);
                 return null;
             }
+            if (stats != null) {
+                stats.heapPops += 1;
+            }
+            /* A vertex is pushed again whenever its distance improves; later copies are stale. */
+            if (!marked.add(head)) {
+                if (stats != null) {
+                    stats.staleSkipped += 1;
+                }
+                continue;
+            }
+            if (stats != null) {
+                stats.nodesSettled += 1;
+            }
             if (head == goal) {
                 for (long v = head; v != st; v = edgeTo.get(v)) {
                     path.addFirst(v);
                 }
                 path.addFirst(st);
+                finish(stats, searchStart, path.size());
                 return path;
             }
             for (long v : g.adjacent(head)) {
                 if (!marked.contains(v)) {
                     double dist = best.get(head) + g.distance(head, v);
+                    if (stats != null) {
+                        stats.edgesScanned += 1;
+                    }
                     if (dist < best.get(v)) {
                         best.put(v, dist);
                         edgeTo.put(v, head);
                         //System.out.println(v + " " + head);     //for test
                         fringe.add(v);
+                        if (stats != null) {
+                            stats.edgesRelaxed += 1;
+                            stats.heapPushes += 1;
+                        }
                     }
                 }
             }
         }
     }
 
+    private static void finish(SearchStats stats, long searchStart, int pathNodes) {
+        if (stats != null) {
+            stats.totalNanos = stats.snapNanos + System.nanoTime() - searchStart;
+            stats.pathNodes = pathNodes;
+        }
+    }
+
+    /**
+     * Counters of the work done by one shortest path search, for tuning the search and
+     * spotting bad snapping of the endpoints to the graph.
+     */
+    public static class SearchStats {
+        /** Vertices taken off the fringe for the first time and expanded. */
+        long nodesSettled;
+        long heapPushes;
+        long heapPops;
+        /** Copies of already settled vertices popped and skipped. */
+        long staleSkipped;
+        /** Edges to unsettled vertices looked at. */
+        long edgesScanned;
+        /** Edges that improved the best known distance to a vertex. */
+        long edgesRelaxed;
+        /** Time spent finding the vertices closest to the start and destination. */
+        long snapNanos;
+        /** Time of the whole search, including snapping. */
+        long totalNanos;
+        /** Distances from the requested locations to the vertices they snapped to. */
+        double startSnapMiles;
+        double goalSnapMiles;
+        /** Number of vertices on the path found, or 0 if there is none. */
+        int pathNodes;
+        /**
+         * Whether the path came from an identical search another request had in flight,
+         * in which case this request did no search work of its own.
+         */
+        boolean shared;
+
+        /** Returns the counters by name, in a stable order. */
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("nodes_settled", nodesSettled);
+            m.put("heap_pushes", heapPushes);
+            m.put("heap_pops", heapPops);
+            m.put("stale_skipped", staleSkipped);
+            m.put("edges_scanned", edgesScanned);
+            m.put("edges_relaxed", edgesRelaxed);
+            m.put("snap_ms", snapNanos / 1e6);
+            m.put("total_ms", totalNanos / 1e6);
+            m.put("start_snap_miles", startSnapMiles);
+            m.put("goal_snap_miles", goalSnapMiles);
+            m.put("path_nodes", pathNodes);
+            m.put("shared", shared);
+            return m;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Object> e : toMap().entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(e.getKey()).append('=').append(e.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
 
 
 
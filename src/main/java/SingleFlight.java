@@ -0,0 +1,64 @@
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces identical computations that are in flight at the same time. The first caller
+ * for a key runs the computation; callers that arrive with the same key before it finishes
+ * wait for that result instead of computing it again, so a burst of identical requests
+ * costs one computation. Nothing is remembered once a computation finishes; caching
+ * results is left to the caller.
+ * @param <K> The key type, which identifies a computation by its normalized inputs.
+ * @param <V> The result type.
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder shared;
+
+    /**
+     * @param name Names these computations in the bearmaps_coalesced_total metric.
+     */
+    public SingleFlight(String name) {
+        this.shared = Metrics.counter("bearmaps_coalesced_total",
+                "Callers that waited for an identical computation already in flight.",
+                "flight", name);
+    }
+
+    /**
+     * Returns the result of work for key, running it only if no identical computation is
+     * in flight. If the computation fails, every caller waiting on it gets the failure.
+     */
+    V run(K key, Callable<V> work) throws Exception {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.increment();
+            return await(running);
+        }
+        try {
+            V result = work.call();
+            mine.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> running) throws Exception {
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+
+/**
+ * Shared cache for the base map. Holds decoded tile images and encoded base composites.
+ * A base composite depends only on the render grid, never on the current route, so a
+ * single cached entry serves every client looking at the same tile window.
+ * Composites are assembled one tile row per task, directly into the pixel array of the
+ * output image, and encoded with a PngEncoder.
+ */
+public class TileCache {
+    /** Default number of decoded tiles kept in memory. */
+    static final int DEFAULT_MAX_TILES = 256;
+    /** Default number of encoded composites kept in memory. */
+    static final int DEFAULT_MAX_COMPOSITES = 64;
+    /** Number of tile hashes kept; a hash takes far less room than the tile it stands for. */
+    static final int MAX_HASHES = 64 * 1024;
+    private static final LatencyHistogram LOAD_TIME = Metrics.phase("tile_load");
+    private static final LatencyHistogram RENDER_TIME = Metrics.phase("composite_render");
+    private static final String LOOKUPS = "bearmaps_tile_cache_lookups_total";
+    private static final String LOOKUPS_HELP = "Tile cache lookups by cache and result.";
+    private static final LongAdder TILE_HITS = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "tile", "result", "hit");
+    private static final LongAdder TILE_MISSES = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "tile", "result", "miss");
+    private static final LongAdder COMPOSITE_HITS = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "composite", "result", "hit");
+    private static final LongAdder COMPOSITE_MISSES = Metrics.counter(LOOKUPS, LOOKUPS_HELP,
+            "cache", "composite", "result", "miss");
+
+    private final TileStore store;
+    private final PngEncoder encoder;
+    private final Map<Long, BufferedImage> tiles;
+    private final Map<String, byte[]> composites;
+    /** Content hashes of encoded tiles. */
+    private final Map<Long, Long> hashes = lruMap(MAX_HASHES);
+    private final SingleFlight<Long, BufferedImage> tileLoads = new SingleFlight<>("tile");
+    private final SingleFlight<String, byte[]> compositeRenders =
+            new SingleFlight<>("composite");
+
+    public TileCache(TileStore store, PngEncoder encoder) {
+        this(store, encoder, DEFAULT_MAX_TILES, DEFAULT_MAX_COMPOSITES);
+    }
+
+    public TileCache(TileStore store, PngEncoder encoder, int maxTiles, int maxComposites) {
+        this.store = store;
+        this.encoder = encoder;
+        this.tiles = lruMap(maxTiles);
+        this.composites = lruMap(maxComposites);
+    }
+
+    /** Returns an access-ordered map that evicts its eldest entry beyond capacity entries. */
+    private static <K, V> Map<K, V> lruMap(int capacity) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the decoded image of a tile, loading it from the store on a miss.
+     * @return The decoded tile, or null if the store has no such tile.
+     */
+    BufferedImage tile(int depth, int x, int y) {
+        long key = TileStore.key(depth, x, y);
+        synchronized (tiles) {
+            BufferedImage img = tiles.get(key);
+            if (img != null) {
+                TILE_HITS.increment();
+                return img;
+            }
+        }
+        TILE_MISSES.increment();
+        /* The prefetcher and concurrent renders often want the same tile at once. */
+        return coalesce(tileLoads, key, () -> load(depth, x, y, key));
+    }
+
+    /** Decodes a tile from the store into the cache. */
+    private BufferedImage load(int depth, int x, int y, long key) {
+        synchronized (tiles) {
+            BufferedImage img = tiles.get(key);
+            if (img != null) {
+                return img;
+            }
+        }
+        long start = System.nanoTime();
+        ByteBuffer png = store.tile(depth, x, y);
+        if (png == null) {
+            return null;
+        }
+        byte[] bytes = new byte[png.remaining()];
+        png.get(bytes);
+        BufferedImage img = null;
+        try {
+            img = ImageIO.read(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (img != null) {
+            synchronized (tiles) {
+                tiles.put(key, img);
+            }
+        }
+        LOAD_TIME.recordSince(start);
+        return img;
+    }
+
+    /**
+     * Takes over another cache's tiles, composites and hashes shallower than depth, for a
+     * cache that replaces it with a store that only differs from depth on. Tiles and
+     * composites from depth on are taken over too where both stores validate every tile
+     * alike, so that tiles a change of the map leaves alone need not be made again.
+     * @param previous The cache being replaced.
+     * @param depth The shallowest depth at which the stores may differ.
+     */
+    void carryOver(TileCache previous, int depth) {
+        synchronized (previous.tiles) {
+            for (Map.Entry<Long, BufferedImage> e : previous.tiles.entrySet()) {
+                long key = e.getKey();
+                if (key >>> 56 < depth || sameTile(previous, (int) (key >>> 56),
+                        (int) ((key >>> 28) & 0xfffffff), (int) (key & 0xfffffff))) {
+                    synchronized (tiles) {
+                        tiles.put(key, e.getValue());
+                    }
+                }
+            }
+        }
+        synchronized (previous.composites) {
+            for (Map.Entry<String, byte[]> e : previous.composites.entrySet()) {
+                String[] window = e.getKey().split("_");
+                int d = Integer.parseInt(window[0]);
+                if (d < depth || sameWindow(previous, d, Integer.parseInt(window[1]),
+                        Integer.parseInt(window[2]), Integer.parseInt(window[3]),
+                        Integer.parseInt(window[4]))) {
+                    synchronized (composites) {
+                        composites.put(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+        synchronized (previous.hashes) {
+            for (Map.Entry<Long, Long> e : previous.hashes.entrySet()) {
+                if (e.getKey() >>> 56 < depth) {
+                    synchronized (hashes) {
+                        hashes.putIfAbsent(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns whether this cache's store and previous's validate a tile alike. */
+    private boolean sameTile(TileCache previous, int depth, int x, int y) {
+        long validator = store.validator(depth, x, y);
+        return validator != 0 && validator == previous.store.validator(depth, x, y);
+    }
+
+    private boolean sameWindow(TileCache previous, int depth, int ulx, int uly, int cols,
+                               int rows) {
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < cols; c += 1) {
+                if (!sameTile(previous, depth, ulx + c, uly + r)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the store the tiles come from. */
+    TileStore store() {
+        return store;
+    }
+
+    /**
+     * Returns a hash of the encoded bytes of a tile, computed without decoding it. Tiles the
+     * store makes on demand are hashed by the store's validator instead, so that hashing
+     * never makes them. Missing tiles hash to 0.
+     */
+    long tileHash(int depth, int x, int y) {
+        long validator = store.validator(depth, x, y);
+        if (validator != 0) {
+            return validator;
+        }
+        long key = TileStore.key(depth, x, y);
+        synchronized (hashes) {
+            Long known = hashes.get(key);
+            if (known != null) {
+                return known;
+            }
+        }
+        /* Not computed under the lock, where a slow store would block other keys too. */
+        long hash = 0;
+        ByteBuffer png = store.tile(depth, x, y);
+        if (png != null) {
+            long length = png.remaining();
+            CRC32 crc = new CRC32();
+            crc.update(png);
+            hash = (length << 32) | crc.getValue();
+        }
+        synchronized (hashes) {
+            hashes.putIfAbsent(key, hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a hash of a window of tiles that changes whenever any of its tiles does.
+     * Serves as a validator for composites of the window without rendering them.
+     */
+    long windowHash(int depth, int ulx, int uly, int cols, int rows) {
+        long h = mix(mix(mix(mix(depth, ulx), uly), cols), rows);
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < cols; c += 1) {
+                h = mix(h, tileHash(depth, ulx + c, uly + r));
+            }
+        }
+        return h;
+    }
+
+    /** Mixes v into the running hash h. */
+    static long mix(long h, long v) {
+        h = (h ^ v) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    /** Returns whether a tile is already decoded and in the cache. */
+    boolean isCached(int depth, int x, int y) {
+        synchronized (tiles) {
+            return tiles.containsKey(TileStore.key(depth, x, y));
+        }
+    }
+
+    /**
+     * Returns the PNG encoding of the base map for a window of tiles, compositing and
+     * encoding it on a miss. The returned array is shared and must not be modified.
+     * @param depth Depth of the tiles.
+     * @param ulx Column of the upper left tile.
+     * @param uly Row of the upper left tile.
+     * @param cols Number of tiles across.
+     * @param rows Number of tiles down.
+     * @return The encoded PNG bytes of the composite.
+     */
+    byte[] composite(int depth, int ulx, int uly, int cols, int rows) {
+        String key = depth + "_" + ulx + "_" + uly + "_" + cols + "_" + rows;
+        synchronized (composites) {
+            byte[] png = composites.get(key);
+            if (png != null) {
+                COMPOSITE_HITS.increment();
+                return png;
+            }
+        }
+        COMPOSITE_MISSES.increment();
+        return coalesce(compositeRenders, key, () -> {
+            synchronized (composites) {
+                byte[] png = composites.get(key);
+                if (png != null) {
+                    return png;
+                }
+            }
+            long start = System.nanoTime();
+            BufferedImage img = render(depth, ulx, uly, cols, rows);
+            RENDER_TIME.recordSince(start);
+            byte[] png = encoder.encode(img);
+            synchronized (composites) {
+                composites.put(key, png);
+            }
+            return png;
+        });
+    }
+
+    /**
+     * Runs work through flight, so that identical concurrent misses load or render once.
+     * The work itself is checked again against the cache, as a computation for the same
+     * key may have finished between the caller's miss and its joining the flight.
+     */
+    private static <K, V> V coalesce(SingleFlight<K, V> flight, K key, Callable<V> work) {
+        try {
+            return flight.run(key, work);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Draws every tile of the window into one image. Each row of tiles is copied by
+     * its own task straight into the image's shared pixel array; rows never overlap.
+     */
+    private BufferedImage render(int depth, int ulx, int uly, int cols, int rows) {
+        int width = cols * MapServer.TILE_SIZE;
+        BufferedImage img = new BufferedImage(width, rows * MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        IntStream.range(0, rows).parallel().forEach(r -> {
+            for (int c = 0; c < cols; c += 1) {
+                BufferedImage tile = tile(depth, ulx + c, uly + r);
+                if (tile == null) {
+                    System.out.println("Missing tile "
+                            + TileStore.fileName(depth, ulx + c, uly + r));
+                    continue;
+                }
+                int w = Math.min(tile.getWidth(), MapServer.TILE_SIZE);
+                int h = Math.min(tile.getHeight(), MapServer.TILE_SIZE);
+                int offset = r * MapServer.TILE_SIZE * width + c * MapServer.TILE_SIZE;
+                tile.getRGB(0, 0, w, h, pixels, offset, width);
+            }
+        });
+        return img;
+    }
+}
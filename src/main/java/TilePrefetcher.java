@@ -0,0 +1,126 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Warms the TileCache in the background with the tiles the next raster request is likely
+ * to need: the ring of neighbors around the current window at the same depth, the parent
+ * window one level up and the child window one level down.
+ * Work runs on a small pool of low priority daemon threads behind a bounded queue. Tasks
+ * that do not fit in the queue are dropped, and nothing is scheduled at all while the
+ * server is busy, so prefetching never competes with real requests.
+ */
+public class TilePrefetcher {
+    /** Number of background threads. */
+    private static final int THREADS = 1;
+    /** Maximum number of pending prefetch tasks. */
+    private static final int QUEUE_CAPACITY = 32;
+    /** Maximum number of tiles fetched after a single raster request. */
+    static final int MAX_TILES_PER_REQUEST = 48;
+
+    private final int maxDepth;
+    private final int busyThreshold;
+    private final IntSupplier activeRequests;
+    private final ThreadPoolExecutor executor;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    /**
+     * @param maxDepth The deepest level of the tile pyramid.
+     * @param busyThreshold Skip prefetching while more requests than this are in flight.
+     * @param activeRequests Reports the number of requests in flight.
+     */
+    public TilePrefetcher(int maxDepth, int busyThreshold, IntSupplier activeRequests) {
+        this.maxDepth = maxDepth;
+        this.busyThreshold = busyThreshold;
+        this.activeRequests = activeRequests;
+        this.executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                    Thread t = new Thread(r, "tile-prefetcher");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Schedules prefetching around a window of tiles that was just rastered.
+     * @param cache The cache to warm.
+     * @param depth Depth of the window.
+     * @param ulx Column of the upper left tile.
+     * @param uly Row of the upper left tile.
+     * @param cols Number of tiles across.
+     * @param rows Number of tiles down.
+     */
+    void prefetch(TileCache cache, int depth, int ulx, int uly, int cols, int rows) {
+        if (isBusy()) {
+            return;
+        }
+        executor.execute(() -> warm(cache, depth, ulx, uly, cols, rows));
+    }
+
+    /** The server is busy if many requests are in flight or the machine is overloaded. */
+    private boolean isBusy() {
+        if (activeRequests.getAsInt() > busyThreshold) {
+            return true;
+        }
+        double load = os.getSystemLoadAverage();
+        return load >= os.getAvailableProcessors();
+    }
+
+    void warm(TileCache cache, int depth, int ulx, int uly, int cols, int rows) {
+        int budget = MAX_TILES_PER_REQUEST;
+        /* Panning: the ring of tiles just outside the window. */
+        for (int y = uly - 1; y <= uly + rows && budget > 0; y += 1) {
+            for (int x = ulx - 1; x <= ulx + cols && budget > 0; x += 1) {
+                boolean inside = x >= ulx && x < ulx + cols && y >= uly && y < uly + rows;
+                if (!inside) {
+                    budget -= warmTile(cache, depth, x, y);
+                }
+            }
+        }
+        /* Zooming out: the parent window. */
+        if (depth > 0) {
+            for (int y = uly / 2; y <= (uly + rows - 1) / 2 && budget > 0; y += 1) {
+                for (int x = ulx / 2; x <= (ulx + cols - 1) / 2 && budget > 0; x += 1) {
+                    budget -= warmTile(cache, depth - 1, x, y);
+                }
+            }
+        }
+        /* Zooming in: the child window, from the center outwards being most likely. */
+        if (depth < maxDepth) {
+            int cx = 2 * ulx + cols;
+            int cy = 2 * uly + rows;
+            for (int ring = 0; ring <= Math.max(cols, rows) && budget > 0; ring += 1) {
+                for (int y = cy - ring - 1; y <= cy + ring && budget > 0; y += 1) {
+                    for (int x = cx - ring - 1; x <= cx + ring && budget > 0; x += 1) {
+                        boolean onRing = y == cy - ring - 1 || y == cy + ring
+                                || x == cx - ring - 1 || x == cx + ring;
+                        boolean inWindow = x >= 2 * ulx && x < 2 * (ulx + cols)
+                                && y >= 2 * uly && y < 2 * (uly + rows);
+                        if (onRing && inWindow) {
+                            budget -= warmTile(cache, depth + 1, x, y);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Loads a tile into the cache if it exists and is not there yet; returns 1 if loaded. */
+    private int warmTile(TileCache cache, int depth, int x, int y) {
+        int n = 1 << depth;
+        if (x < 0 || y < 0 || x >= n || y >= n || cache.isCached(depth, x, y)) {
+            return 0;
+        }
+        cache.tile(depth, x, y);
+        return 1;
+    }
+
+    /** Stops the background threads; pending tasks are dropped. */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
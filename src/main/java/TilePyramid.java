@@ -0,0 +1,154 @@
+/**
+ * The geometry of a tile pyramid: the bounds of its root tile, the tile size and its
+ * deepest level. Depth d has 2^d by 2^d tiles, each covering 1 / 2^d of the root's width
+ * and height. Everything a raster request needs per level is computed once, up front, so
+ * planning a raster does no floating point powers and builds no strings but the tile names.
+ */
+public class TilePyramid {
+    /** Deepest level TileStore keys can address: x and y get 28 bits each. */
+    static final int MAX_SUPPORTED_DEPTH = 28;
+    /** Indices below this get their decimal text from a table instead of Integer.toString. */
+    private static final int INDEX_TABLE_SIZE = 4096;
+    /**
+     * Default deepest level served. Levels below the shipped tiles are drawn from the graph
+     * by RoadTileRenderer.
+     */
+    static final int DEFAULT_MAX_DEPTH = 12;
+    private static final String[] INDEX_TEXT = new String[INDEX_TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < INDEX_TABLE_SIZE; i += 1) {
+            INDEX_TEXT[i] = Integer.toString(i);
+        }
+    }
+
+    final double ullon;
+    final double ullat;
+    final double lrlon;
+    final double lrlat;
+    final int tileSize;
+    final int maxDepth;
+
+    /** Per depth: tiles across, the longitude and latitude one tile spans, and its LonDPP. */
+    private final double[] tilesAcross;
+    private final double[] tileLonSpan;
+    private final double[] tileLatSpan;
+    private final double[] lonDPP;
+    /** Per depth, the start of every tile name, "d{depth}_x". */
+    private final String[] namePrefix;
+
+    public TilePyramid(double ullon, double ullat, double lrlon, double lrlat, int tileSize,
+                       int maxDepth) {
+        if (maxDepth < 0 || maxDepth > MAX_SUPPORTED_DEPTH) {
+            throw new IllegalArgumentException("max depth must be in [0, "
+                    + MAX_SUPPORTED_DEPTH + "]: " + maxDepth);
+        }
+        if (!(ullon < lrlon && lrlat < ullat) || tileSize <= 0) {
+            throw new IllegalArgumentException("empty pyramid bounds or tile size");
+        }
+        this.ullon = ullon;
+        this.ullat = ullat;
+        this.lrlon = lrlon;
+        this.lrlat = lrlat;
+        this.tileSize = tileSize;
+        this.maxDepth = maxDepth;
+        tilesAcross = new double[maxDepth + 1];
+        tileLonSpan = new double[maxDepth + 1];
+        tileLatSpan = new double[maxDepth + 1];
+        lonDPP = new double[maxDepth + 1];
+        namePrefix = new String[maxDepth + 1];
+        for (int d = 0; d <= maxDepth; d += 1) {
+            tilesAcross[d] = 1L << d;
+            tileLonSpan[d] = width() / tilesAcross[d];
+            tileLatSpan[d] = height() / tilesAcross[d];
+            lonDPP[d] = width() / tileSize / tilesAcross[d];
+            namePrefix[d] = "d" + d + "_x";
+        }
+    }
+
+    /** The pyramid of the tiles shipped with the project, as set in MapServer. */
+    static TilePyramid standard() {
+        return new TilePyramid(MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT,
+                MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT, MapServer.TILE_SIZE, 7);
+    }
+
+    /**
+     * The standard pyramid deepened to DEFAULT_MAX_DEPTH, with any of its bounds and depth
+     * overridden by the system properties bearmaps.pyramid.ullon, .ullat, .lrlon, .lrlat
+     * and .maxDepth.
+     */
+    static TilePyramid fromSystemProperties() {
+        TilePyramid std = standard();
+        return new TilePyramid(doubleProperty("ullon", std.ullon),
+                doubleProperty("ullat", std.ullat), doubleProperty("lrlon", std.lrlon),
+                doubleProperty("lrlat", std.lrlat), std.tileSize,
+                Integer.getInteger("bearmaps.pyramid.maxDepth", DEFAULT_MAX_DEPTH));
+    }
+
+    private static double doubleProperty(String name, double fallback) {
+        String value = System.getProperty("bearmaps.pyramid." + name);
+        return value == null ? fallback : Double.parseDouble(value);
+    }
+
+    double width() {
+        return lrlon - ullon;
+    }
+
+    double height() {
+        return ullat - lrlat;
+    }
+
+    /** Returns the number of tiles across (and down) at depth, as a double. */
+    double tilesAcross(int depth) {
+        return tilesAcross[depth];
+    }
+
+    /** Returns the longitude one tile spans at depth. */
+    double tileLonSpan(int depth) {
+        return tileLonSpan[depth];
+    }
+
+    /** Returns the latitude one tile spans at depth. */
+    double tileLatSpan(int depth) {
+        return tileLatSpan[depth];
+    }
+
+    /** Returns the longitudinal distance per pixel of the tiles at depth. */
+    double lonDPP(int depth) {
+        return lonDPP[depth];
+    }
+
+    /**
+     * Returns the shallowest depth whose tiles have at most the given longitudinal distance
+     * per pixel, or maxDepth if even its tiles have more. Each level halves the LonDPP, so
+     * the depth is the base 2 logarithm of the ratio to the root's LonDPP, rounded up; the
+     * table then settles rounding errors either way.
+     */
+    int depthFor(double queryLonDPP) {
+        if (!(queryLonDPP > 0)) {
+            return maxDepth;
+        }
+        double levels = Math.log(lonDPP[0] / queryLonDPP) / Math.log(2);
+        int d = (int) Math.max(0, Math.min(maxDepth, Math.ceil(levels)));
+        while (d > 0 && lonDPP[d - 1] <= queryLonDPP) {
+            d -= 1;
+        }
+        while (d < maxDepth && lonDPP[d] > queryLonDPP) {
+            d += 1;
+        }
+        return d;
+    }
+
+    /** Returns the file name of a tile, d{depth}_x{x}_y{y}.png. */
+    String tileName(int depth, int x, int y) {
+        String xs = indexText(x);
+        String ys = indexText(y);
+        String prefix = namePrefix[depth];
+        return new StringBuilder(prefix.length() + xs.length() + ys.length() + 6)
+                .append(prefix).append(xs).append("_y").append(ys).append(".png").toString();
+    }
+
+    private static String indexText(int i) {
+        return i >= 0 && i < INDEX_TABLE_SIZE ? INDEX_TEXT[i] : Integer.toString(i);
+    }
+}
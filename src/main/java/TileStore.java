@@ -0,0 +1,64 @@
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of encoded tile images, addressed by depth and position in the tile pyramid.
+ * The root tile is depth 0; at depth d there are 2^d by 2^d tiles, and (0, 0) is the upper
+ * left one.
+ */
+public interface TileStore extends Closeable {
+    /**
+     * Returns the encoded PNG of a tile.
+     * @param depth Depth of the tile in the pyramid.
+     * @param x Column of the tile, counted from the west edge.
+     * @param y Row of the tile, counted from the north edge.
+     * @return A read-only buffer holding the PNG, or null if the store has no such tile.
+     */
+    ByteBuffer tile(int depth, int x, int y);
+
+    /**
+     * Returns whether the store has a tile, without reading it if it can help it.
+     * @param depth Depth of the tile in the pyramid.
+     * @param x Column of the tile, counted from the west edge.
+     * @param y Row of the tile, counted from the north edge.
+     */
+    default boolean has(int depth, int x, int y) {
+        return tile(depth, x, y) != null;
+    }
+
+    /** Returns the time, in milliseconds since the epoch, the tiles were last changed. */
+    long lastModified();
+
+    /**
+     * Returns a value that changes whenever a tile's bytes could, known without making the
+     * tile, or 0 if the store has none and the tile's bytes must be hashed instead.
+     */
+    default long validator(int depth, int x, int y) {
+        return 0;
+    }
+
+    /** Returns the file name a tile has in the unpacked image directory. */
+    static String fileName(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
+    }
+
+    /**
+     * Returns whether (depth, x, y) is a tile keys can address: depth in
+     * [0, TilePyramid.MAX_SUPPORTED_DEPTH], and x and y in [0, 2^depth).
+     */
+    static boolean isAddressable(int depth, int x, int y) {
+        if (depth < 0 || depth > TilePyramid.MAX_SUPPORTED_DEPTH) {
+            return false;
+        }
+        int size = 1 << depth;
+        return x >= 0 && x < size && y >= 0 && y < size;
+    }
+
+    /**
+     * Packs depth, x and y into a single key that sorts by depth, then x, then y. Only
+     * addressable tiles are sure to get keys of their own.
+     */
+    static long key(int depth, int x, int y) {
+        return ((long) depth << 56) | ((long) x << 28) | y;
+    }
+}
@@ -0,0 +1,82 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * A Jetty thread pool that runs every job on a new virtual thread, so a request blocked
+ * reading tiles holds no platform thread and the pool never needs sizing. Virtual threads
+ * arrived in Java 21; the project still builds for older runtimes, so they are looked up
+ * reflectively and {@link #create} returns null where they do not exist.
+ * CPU-bound work should not run on virtual threads for long, or it starves the few carrier
+ * threads under them; MapServer hands it to a bounded pool of platform threads instead.
+ * The pool is a life cycle, which the Jetty server starts and stops with itself: stopping
+ * takes no new jobs and lets running ones finish, for a while, so that joining returns.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+    /** Longest time stopping waits for running jobs before interrupting them. */
+    private static final long STOP_WAIT_MILLIS = 5000;
+    private final ExecutorService executor;
+    private final AtomicInteger running = new AtomicInteger();
+
+    /** Runs jobs on executor; create() makes the pool of virtual threads. */
+    VirtualThreadPool(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** Returns a pool of virtual threads, or null if this runtime has no virtual threads. */
+    static VirtualThreadPool create() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new VirtualThreadPool((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        running.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                job.run();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    /** Waits until the pool is stopped and its last job has finished. */
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Returns the number of jobs running; each has a thread of its own. */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    /** Virtual threads are created per job, so none are ever idle. */
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+}
@@ -30,6 +30,8 @@ $(function() {
     var getInProgress = false;
     var route_params = {};
     var map;
+    var routeLayer;
+    var routeOffsetX = 0, routeOffsetY = 0;
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -42,7 +44,7 @@ $(function() {
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
     const base_move_delta = 0.03;
-    const max_level = 7;
+    const max_level = 12;
     const min_level = 2; // Level limits based on pulled data
     var wdpp = 0.00004291534423828125; // Starting wdpp for level 3
     var hdpp = 0.00003388335630702399; // Starting hdpp for level 3
@@ -117,6 +119,16 @@ $(function() {
                 if (data.query_success) {
                     $loadingStatus.hide();
                     map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
+                    /* The route is drawn on its own transparent layer over the base map. */
+                    if (data.b64_encoded_route_data) {
+                        routeLayer.src = 'data:image/png;base64,' + data.b64_encoded_route_data;
+                        routeOffsetX = data.route_overlay_x;
+                        routeOffsetY = data.route_overlay_y;
+                        routeLayer.style.visibility = 'visible';
+                    } else {
+                        routeLayer.removeAttribute('src');
+                        routeLayer.style.visibility = 'hidden';
+                    }
                     console.log('Updating map with image length: ' +
                                 data.b64_encoded_image_data.length);
                     ullon_bound = data.raster_ul_lon;
@@ -155,6 +167,8 @@ $(function() {
 
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        routeLayer.style.transform = 'translateX(' + (tx + routeOffsetX) + 'px) translateY(' +
+            (ty + routeOffsetY) + 'px)';
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -171,8 +185,8 @@ $(function() {
             async: true,
             url: route_server,
             data: route_params,
+            dataType: 'json',
             success: function(data) {
-                data = JSON.parse(data);
                 updateImg();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
@@ -313,6 +327,8 @@ $(function() {
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
     map = document.getElementById('map');
+    routeLayer = document.getElementById('route');
+    routeLayer.style.visibility = 'hidden';
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
@@ -323,16 +339,28 @@ $(function() {
     /* Hide scroll bar */
     $('body').css('overflow', 'hidden');
 
+    /* The view being looked at, so that search ranks nearby locations first. */
+    function searchView(data) {
+        data.ullat = params.ullat;
+        data.ullon = params.ullon;
+        data.lrlat = real_lrlat();
+        data.lrlon = real_lrlon();
+        return data;
+    }
+
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.getJSON(search, searchView({ term: request.term }), response)
+                  .fail(function() { response([]); });
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
                   async: true,
                   url: search,
                   dataType: 'json',
-                  data: { term: ui.item.value, full: true},
+                  data: searchView({ term: ui.item.value, full: true }),
                   success: function(data) {
                       removeMarkers();
                       for (var i = 0; i < data.length; i++) {
@@ -0,0 +1,81 @@
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the limit, the bounded queue with its deadline, and the adaptation of the limit. */
+public class TestAdmissionController {
+    private static final long FAST = 1000000;
+    private static final long SLOW = 5000000000L;
+
+    @Test
+    public void testQueueAndDeadline() throws Exception {
+        AdmissionController gate = new AdmissionController(2, 1, 2, 1, 50, 1000);
+        assertTrue(gate.acquire());
+        assertTrue(gate.acquire());
+        /* The queue has room for one, which gives up at the deadline. */
+        long start = System.nanoTime();
+        assertFalse(gate.acquire());
+        assertTrue(System.nanoTime() - start >= 50000000);
+        assertEquals(2, gate.inFlight());
+    }
+
+    @Test
+    public void testQueueFullRejectsAtOnce() throws Exception {
+        AdmissionController gate = new AdmissionController(1, 1, 1, 1, 5000, 1000);
+        assertTrue(gate.acquire());
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicBoolean admitted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                waiting.countDown();
+                admitted.set(gate.acquire());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        waiting.await();
+        while (waiter.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+        long start = System.nanoTime();
+        assertFalse(gate.acquire());
+        assertTrue(System.nanoTime() - start < 1000000000L);
+        /* Releasing the slot hands it to the waiter. */
+        gate.release(FAST);
+        waiter.join();
+        assertTrue(admitted.get());
+        assertEquals(1, gate.inFlight());
+    }
+
+    @Test
+    public void testAdaptiveLimit() throws Exception {
+        AdmissionController gate = new AdmissionController(4, 2, 8, 0, 0, 100);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(gate.acquire());
+            gate.release(SLOW);
+        }
+        /* 4 * 0.9 ^ 3 = 2.9 */
+        assertEquals(2, gate.limit());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(gate.acquire());
+            gate.release(SLOW);
+        }
+        assertEquals(2, gate.limit());
+        /* Fast requests at the limit raise it again, but never past the maximum. */
+        for (int i = 0; i < 200; i++) {
+            while (gate.acquire()) {
+                assertTrue(gate.inFlight() <= 8);
+            }
+            while (gate.inFlight() > 0) {
+                gate.release(FAST);
+            }
+        }
+        assertEquals(8, gate.limit());
+    }
+}
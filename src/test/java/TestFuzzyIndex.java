@@ -0,0 +1,98 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks typo tolerant search against scoring every name. */
+public class TestFuzzyIndex {
+    private static final int K = 6;
+
+    private static double similarity(String a, String b) {
+        int[] ga = FuzzyIndex.grams(a);
+        int[] gb = FuzzyIndex.grams(b);
+        long common = Arrays.stream(ga).filter(g -> Arrays.binarySearch(gb, g) >= 0).count();
+        return ga.length + gb.length == 0 ? 0 : 2.0 * common / (ga.length + gb.length);
+    }
+
+    /** The expected results: every name scored, ranked and cut to K. */
+    private static List<String> bruteForce(Map<Long, String> locations, String query) {
+        String q = GraphDB.cleanString(query).trim();
+        Map<String, Integer> counts = new HashMap<>();
+        TreeMap<String, List<String>> byKey = new TreeMap<>();
+        for (String name : locations.values()) {
+            if (counts.merge(name, 1, Integer::sum) == 1) {
+                byKey.computeIfAbsent(GraphDB.cleanString(name), c -> new ArrayList<>())
+                        .add(name);
+            }
+        }
+        List<String> keys = new ArrayList<>(byKey.keySet());
+        Map<String, Integer> weights = new HashMap<>();
+        for (String key : keys) {
+            weights.put(key, byKey.get(key).stream().mapToInt(counts::get).sum());
+        }
+        List<String> out = new ArrayList<>();
+        keys.stream().filter(key -> similarity(q, key) >= FuzzyIndex.MIN_SIMILARITY)
+                .sorted(Comparator.<String>comparingDouble(key -> -similarity(q, key))
+                        .thenComparingInt(key -> -weights.get(key))
+                        .thenComparing(key -> key))
+                .forEach(key -> byKey.get(key).stream().sorted().forEach(name -> {
+                    if (out.size() < K) {
+                        out.add(name);
+                    }
+                }));
+        return out;
+    }
+
+    @Test
+    public void testTypos() {
+        Map<Long, String> locations = new HashMap<>();
+        String[] names = {"Dwinelle Hall", "Doe Library", "Moffitt Library", "Sather Gate",
+            "Peet's Coffee", "Peet's Coffee", "Peets Coffee", "Wheeler Hall", "Evans Hall"};
+        for (int i = 0; i < names.length; i++) {
+            locations.put((long) i, names[i]);
+        }
+        FuzzyIndex index = new FuzzyIndex(locations, K);
+        assertEquals("Dwinelle Hall", index.search("Dwinnelle").get(0));
+        assertEquals("Moffitt Library", index.search("mofit library").get(0));
+        assertEquals(Arrays.asList("Peet's Coffee", "Peets Coffee"),
+                index.search("peets cofee").subList(0, 2));
+        assertTrue(index.search("xyzzy").isEmpty());
+        assertTrue(index.search("").isEmpty());
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random r = new Random(43);
+        String[] words = {"dwinelle", "hall", "doe", "library", "sather", "gate", "peets",
+            "coffee", "cafe", "center", "berkeley", "north", "south", "wheeler"};
+        Map<Long, String> locations = new HashMap<>();
+        for (long id = 0; id < 2000; id++) {
+            int n = 1 + r.nextInt(3);
+            locations.put(id, String.join(" ", IntStream.range(0, n)
+                    .mapToObj(w -> words[r.nextInt(words.length)]).toArray(String[]::new)));
+        }
+        FuzzyIndex index = new FuzzyIndex(locations, K);
+        for (int q = 0; q < 100; q++) {
+            /* A location's name with a letter dropped or doubled. */
+            StringBuilder query = new StringBuilder(locations.get((long) r.nextInt(2000)));
+            int at = r.nextInt(query.length());
+            if (r.nextBoolean()) {
+                query.deleteCharAt(at);
+            } else {
+                query.insert(at, query.charAt(at));
+            }
+            String s = query.toString();
+            assertEquals(s, bruteForce(locations, s), index.search(s));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/** Checks that streamed JSON reads the same as what Gson produced for the same values. */
+public class TestJsonStreamWriter {
+
+    private static String write(Object value) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JsonStreamWriter(bytes).value(value).flush();
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testMatchesGson() throws Exception {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("render_grid", new String[][] {{"d1_x0_y0.png", "d1_x1_y0.png"}});
+        params.put("raster_ul_lon", -122.2998046875);
+        params.put("depth", 1);
+        params.put("query_success", true);
+        params.put("directions", "Start on <Bancroft Way> & \"Telegraph\"\n\té   \u0001 'x'=1");
+        params.put("empty", Arrays.asList());
+        assertEquals(new Gson().toJson(params), write(params));
+    }
+
+    @Test
+    public void testBase64() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new JsonStreamWriter(bytes).beginObject()
+                .name("a").base64Value(data)
+                .name("b").base64Value(os -> os.write(data, 0, 7))
+                .endObject().flush();
+        String expected = "{\"a\":\"" + Base64.getEncoder().encodeToString(data)
+                + "\",\"b\":\"" + Base64.getEncoder().encodeToString(Arrays.copyOf(data, 7))
+                + "\"}";
+        assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.ToDoubleFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks nearby search results against scoring every location. */
+public class TestLocationGrid {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final int K = 5;
+
+    private static ToDoubleFunction<String> prefix(String p) {
+        return key -> key.startsWith(p) ? 0.5 + 0.5 * p.length() / key.length() : 0;
+    }
+
+    /** The expected results: every location scored, best per name, ranked and cut to K. */
+    private static List<String> bruteForce(GraphDB g, double lon, double lat, double scale,
+                                           ToDoubleFunction<String> textScore) {
+        Map<String, Double> scores = new HashMap<>();
+        for (Map.Entry<Long, String> e : g.locationNames().entrySet()) {
+            double text = textScore.applyAsDouble(GraphDB.cleanString(e.getValue()));
+            if (text > 0) {
+                double miles = GraphDB.distance(lon, lat, g.locationLon(e.getKey()),
+                        g.locationLat(e.getKey()));
+                scores.merge(e.getValue(), text / (1 + miles / scale), Math::max);
+            }
+        }
+        List<String> out = new ArrayList<>(scores.keySet());
+        out.sort(Comparator.<String>comparingDouble(n -> -scores.get(n))
+                .thenComparing(n -> n));
+        return out.subList(0, Math.min(K, out.size()));
+    }
+
+    @Test
+    public void testNearestFirst() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.addNode(1001, 0.11, 38.11);
+        g.addNodeName(1001, "Peet's Coffee");
+        g.addNode(1002, 0.55, 38.55);
+        g.addNodeName(1002, "Peets Coffee House");
+        g.addNode(1003, 0.50, 38.50);
+        g.addNodeName(1003, "Doe Library");
+        LocationGrid grid = new LocationGrid(g);
+        assertEquals(Arrays.asList("Peets Coffee House", "Peet's Coffee"),
+                grid.best(0.56, 38.56, 1, K, prefix("peets")));
+        assertEquals(Arrays.asList("Peet's Coffee", "Peets Coffee House"),
+                grid.best(0.12, 38.12, 1, K, prefix("peets")));
+        assertTrue(grid.best(0.12, 38.12, 1, K, prefix("xyz")).isEmpty());
+
+        g.addNode(1004, 0.52, 38.52);
+        g.addNodeName(1004, "Peet's Coffee");
+        LocationIndex index = new LocationIndex(g);
+        assertEquals(1004L, index.lookup("peets coffee", 0.56, 38.56).get(0).get("id"));
+        assertEquals(1001L, index.lookup("peets coffee", 0.12, 38.12).get(0).get("id"));
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random r = new Random(44);
+        String[] words = {"hall", "library", "gate", "peets", "coffee", "cafe", "center"};
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        for (long id = 0; id < 3000; id++) {
+            g.addNode(10000 + id, 0.1 + 0.5 * r.nextDouble(), 38.1 + 0.5 * r.nextDouble());
+            g.addNodeName(10000 + id, words[r.nextInt(words.length)] + " "
+                    + words[r.nextInt(words.length)] + " " + r.nextInt(50));
+        }
+        LocationGrid grid = new LocationGrid(g);
+        String[] prefixes = {"", "p", "peets", "hall library", "cafe cafe", "gate hall 1"};
+        for (int q = 0; q < 200; q++) {
+            /* Centers both inside and outside the area the locations cover. */
+            double lon = 0.5 * r.nextDouble() * 1.4;
+            double lat = 38 + 0.5 * r.nextDouble() * 1.4;
+            double scale = 0.5 + 20 * r.nextDouble();
+            String p = prefixes[q % prefixes.length];
+            ToDoubleFunction<String> text = prefix(p);
+            List<String> expected = bruteForce(g, lon, lat, scale, text);
+            assertEquals(expected, grid.best(lon, lat, scale, K, text));
+            /* Rare prefixes are scored directly, common ones by walking the grid. */
+            assertEquals(expected, grid.best(lon, lat, scale, K, p, text));
+        }
+    }
+}
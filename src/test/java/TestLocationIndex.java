@@ -0,0 +1,57 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks full-name location lookups. */
+public class TestLocationIndex {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testOffRoadLocation() {
+        /* The Wright Institute is on no road, so clean() drops its vertex. */
+        LocationIndex index = new LocationIndex(new GraphDB(OSM_DB_PATH_SMALL));
+        List<Map<String, Object>> found = index.lookup("the Wright Institute!");
+        assertEquals(1, found.size());
+        Map<String, Object> loc = found.get(0);
+        assertEquals("The Wright Institute", loc.get("name"));
+        assertEquals(358858264L, loc.get("id"));
+        assertEquals(37.8681537, (double) loc.get("lat"), 1e-9);
+        assertEquals(-122.2536098, (double) loc.get("lon"), 1e-9);
+    }
+
+    @Test
+    public void testSharedNames() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        g.addNode(1001, 0.11, 38.11);
+        g.addNodeName(1001, "Peet's Coffee");
+        g.addNode(1002, 0.22, 38.22);
+        g.addNodeName(1002, "Peet's Coffee");
+        g.addNode(1003, 0.33, 38.33);
+        g.addNodeName(1003, "Peets Coffee");
+        g.addNode(1004, 0.44, 38.44);
+        g.addNodeName(1004, "Peets Coffee House");
+        LocationIndex index = new LocationIndex(g);
+        assertEquals(4, index.size());
+
+        List<Map<String, Object>> found = index.lookup("PEETS COFFEE");
+        Set<Long> ids = new HashSet<>();
+        for (Map<String, Object> loc : found) {
+            long id = (long) loc.get("id");
+            ids.add(id);
+            assertEquals(0.11 * (id - 1000), (double) loc.get("lon"), 1e-9);
+            assertEquals(38 + 0.11 * (id - 1000), (double) loc.get("lat"), 1e-9);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1001L, 1002L, 1003L)), ids);
+        assertTrue(index.lookup("peets").isEmpty());
+        assertTrue(index.lookup(null).isEmpty());
+    }
+}
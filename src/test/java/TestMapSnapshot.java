@@ -0,0 +1,125 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks that map snapshots close exactly once, after the last hold on them is let go. */
+public class TestMapSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static GraphDB change(GraphDB g, String osc) throws Exception {
+        return g.withChange(OsmChange.read(
+                new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testHolds() {
+        AtomicInteger closed = new AtomicInteger();
+        MapSnapshot s = new MapSnapshot(new GraphDB(OSM_DB_PATH_TINY), null, 10, null,
+                closed::incrementAndGet);
+        assertTrue(s.acquire());
+        assertTrue(s.acquire());
+        s.release();
+        s.release();
+        assertFalse(s.isClosed());
+        s.release();
+        assertTrue(s.isClosed());
+        assertEquals(1, closed.get());
+        assertFalse(s.acquire());
+        try {
+            s.release();
+            fail("Expected an IllegalStateException");
+        } catch (IllegalStateException e) {
+            /* Expected: more releases than holds is a bug in the caller. */
+        }
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void testRouteCarriedOver() throws Exception {
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        MapSnapshot first = new MapSnapshot(tiny, null, 10, null, null);
+        assertSame(RouteGeometry.EMPTY, first.route.get());
+        RouteGeometry route = new RouteGeometry(tiny, Arrays.asList(11L, 22L));
+        first.route.set(route);
+
+        /* The next snapshot starts with the route; a route found on it stays its own. */
+        MapSnapshot next = new MapSnapshot(tiny, first, 10, null, null);
+        assertSame(route, next.route.get());
+        next.route.set(new RouteGeometry(tiny, Arrays.asList(22L, 66L)));
+        assertSame(route, first.route.get());
+        assertNotSame(route, next.route.get());
+    }
+
+    @Test
+    public void testIndexesReused() throws Exception {
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        MapSnapshot first = new MapSnapshot(tiny, null, 10, null, null);
+        MapSnapshot moved = new MapSnapshot(change(tiny, "<osmChange><modify>"
+                + "<node id=\"55\" lat=\"38.55\" lon=\"0.45\"/></modify></osmChange>"),
+                first, 10, null, null);
+        assertSame(first.prefixIndex, moved.prefixIndex);
+        assertSame(first.locationGrid, moved.locationGrid);
+
+        MapSnapshot named = new MapSnapshot(change(moved.graph, "<osmChange><create>"
+                + "<node id=\"88\" lat=\"38.8\" lon=\"0.8\"><tag k=\"name\" v=\"Library\"/>"
+                + "</node></create></osmChange>"), moved, 10, null, null);
+        assertNotSame(moved.prefixIndex, named.prefixIndex);
+        assertEquals(1, named.locationIndex.lookup("library").size());
+        assertEquals(0, moved.locationIndex.lookup("library").size());
+    }
+
+    @Test
+    public void testSwapUnderLoad() throws Exception {
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        AtomicInteger made = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+        AtomicInteger usedClosed = new AtomicInteger();
+        AtomicReference<MapSnapshot> current = new AtomicReference<>(
+                new MapSnapshot(tiny, null, 10, null, closed::incrementAndGet));
+        made.incrementAndGet();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    MapSnapshot s = current.get();
+                    if (s.acquire()) {
+                        if (s.isClosed()) {
+                            usedClosed.incrementAndGet();
+                        }
+                        s.release();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 2000; i++) {
+            MapSnapshot next = new MapSnapshot(tiny, current.get(), 10, null,
+                    closed::incrementAndGet);
+            made.incrementAndGet();
+            current.getAndSet(next).release();
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        current.get().release();
+        assertEquals(0, usedClosed.get());
+        assertEquals(made.get(), closed.get());
+    }
+}
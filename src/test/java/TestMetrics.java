@@ -0,0 +1,62 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks the histogram buckets and the Prometheus text written for them. */
+public class TestMetrics {
+
+    @Test
+    public void testBucketBounds() {
+        Random r = new Random(61);
+        for (int i = 0; i < 100000; i++) {
+            long v = r.nextLong() >>> (22 + r.nextInt(42));
+            int index = LatencyHistogram.bucketIndex(v);
+            assertTrue(LatencyHistogram.lowestValue(index) <= v);
+            assertTrue(v <= LatencyHistogram.highestValue(index));
+            /* Every bucket is at most 1/16 of its values wide. */
+            long width = LatencyHistogram.highestValue(index)
+                    - LatencyHistogram.lowestValue(index) + 1;
+            assertTrue(width * 16 <= Math.max(16, LatencyHistogram.lowestValue(index)));
+        }
+        for (int index = 1; index < 600; index++) {
+            assertEquals(LatencyHistogram.highestValue(index - 1) + 1,
+                    LatencyHistogram.lowestValue(index));
+        }
+    }
+
+    @Test
+    public void testScrape() {
+        LatencyHistogram h = Metrics.histogram("test_duration_seconds", "A test histogram.",
+                "case", "a\"b");
+        h.record(50000);
+        h.record(2000000);
+        h.record(-5);
+        Metrics.counter("test_events_total", "A test counter.").add(3);
+        Metrics.gauge("test_level", "A test gauge.", () -> 0.5);
+        String text = Metrics.scrape();
+        assertTrue(text.contains("# TYPE test_duration_seconds histogram\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{case=\"a\\\"b\",le=\"1.0E-4\"} 2\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{case=\"a\\\"b\",le=\"0.0025\"} 3\n"));
+        assertTrue(text.contains("test_duration_seconds_bucket{case=\"a\\\"b\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_duration_seconds_count{case=\"a\\\"b\"} 3\n"));
+        assertTrue(text.contains("test_duration_seconds_sum{case=\"a\\\"b\"} 0.00205\n"));
+        assertTrue(text.contains("# TYPE test_events_total counter\ntest_events_total 3\n"));
+        assertTrue(text.contains("test_level 0.5\n"));
+    }
+
+    @Test
+    public void testBoundsCountNothingAbove() {
+        LatencyHistogram h = Metrics.histogram("test_edge_duration_seconds", "Edge cases.");
+        /* 100us is in a fine bucket that straddles the 1.0E-4 bound; 100001ns is above it. */
+        int index = LatencyHistogram.bucketIndex(100001);
+        assertTrue(LatencyHistogram.lowestValue(index) <= 100000);
+        h.record(100001);
+        h.record(1000);
+        String text = Metrics.scrape();
+        assertTrue(text.contains("test_edge_duration_seconds_bucket{le=\"1.0E-4\"} 1\n"));
+        assertTrue(text.contains("test_edge_duration_seconds_bucket{le=\"2.5E-4\"} 2\n"));
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks that applying a change file gives the graph that loading the changed map would. */
+public class TestOsmChange {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /**
+     * Moves node 55, renames road 11-22, deletes road 11-41-63, makes 22-46-66 a building,
+     * and adds a road from 66 to a new named node 77, and a named node 88 off the roads.
+     */
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\">\n"
+            + "<modify>\n"
+            + "  <node id=\"55\" lat=\"38.55\" lon=\"0.45\" version=\"2\"/>\n"
+            + "  <way id=\"1122\" version=\"2\"><nd ref=\"11\"/><nd ref=\"22\"/>\n"
+            + "    <tag k=\"name\" v=\"Connector Road\"/><tag k=\"highway\" v=\"tertiary\"/>"
+            + "</way>\n"
+            + "</modify>\n"
+            + "<delete>\n"
+            + "  <way id=\"114163\" version=\"2\"/>\n"
+            + "</delete>\n"
+            + "<create>\n"
+            + "  <node id=\"77\" lat=\"38.7\" lon=\"0.7\" version=\"1\">"
+            + "<tag k=\"name\" v=\"Cafe\"/></node>\n"
+            + "  <node id=\"88\" lat=\"38.8\" lon=\"0.8\" version=\"1\">"
+            + "<tag k=\"name\" v=\"Library\"/></node>\n"
+            + "  <way id=\"7766\" version=\"1\"><nd ref=\"66\"/><nd ref=\"77\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</create>\n"
+            + "<modify>\n"
+            + "  <way id=\"224666\" version=\"2\"><nd ref=\"22\"/><nd ref=\"46\"/><nd ref=\"66\"/>"
+            + "<tag k=\"building\" v=\"yes\"/></way>\n"
+            + "</modify>\n"
+            + "</osmChange>\n";
+
+    /** The tiny map with the change above made to it. */
+    private static final String CHANGED = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\">\n"
+            + "  <node id=\"11\" lat=\"38.1\" lon=\"0.1\"/>\n"
+            + "  <node id=\"22\" lat=\"38.2\" lon=\"0.2\"/>\n"
+            + "  <node id=\"41\" lat=\"38.1\" lon=\"0.4\"/>\n"
+            + "  <node id=\"63\" lat=\"38.3\" lon=\"0.6\"/>\n"
+            + "  <node id=\"55\" lat=\"38.55\" lon=\"0.45\"/>\n"
+            + "  <node id=\"46\" lat=\"38.6\" lon=\"0.4\"/>\n"
+            + "  <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + "  <node id=\"77\" lat=\"38.7\" lon=\"0.7\"><tag k=\"name\" v=\"Cafe\"/></node>\n"
+            + "  <node id=\"88\" lat=\"38.8\" lon=\"0.8\"><tag k=\"name\" v=\"Library\"/></node>\n"
+            + "  <way id=\"1122\"><nd ref=\"11\"/><nd ref=\"22\"/>"
+            + "<tag k=\"name\" v=\"Connector Road\"/><tag k=\"highway\" v=\"tertiary\"/></way>\n"
+            + "  <way id=\"224666\"><nd ref=\"22\"/><nd ref=\"46\"/><nd ref=\"66\"/>"
+            + "<tag k=\"building\" v=\"yes\"/></way>\n"
+            + "  <way id=\"22556366\"><nd ref=\"22\"/><nd ref=\"55\"/><nd ref=\"63\"/>"
+            + "<nd ref=\"66\"/><tag k=\"name\" v=\"scenic 22/55/63/66 highway\"/>"
+            + "<tag k=\"highway\" v=\"tertiary\"/></way>\n"
+            + "  <way id=\"7766\"><nd ref=\"66\"/><nd ref=\"77\"/>"
+            + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+            + "</osm>\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static OsmChange parse(String osc) throws Exception {
+        try (InputStream in = new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8))) {
+            return OsmChange.read(in);
+        }
+    }
+
+    @Test
+    public void testMatchesReload() throws Exception {
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB changed = tiny.withChange(parse(CHANGE));
+
+        File expected = tmp.newFile("changed.osm.xml");
+        Files.write(expected.toPath(), CHANGED.getBytes(StandardCharsets.UTF_8));
+        TestOsmLoader.assertSameGraph(new GraphDB(expected.getPath()), changed);
+        assertFalse(changed.sameLocations(tiny));
+
+        /* The graph the change was applied to is as it was. */
+        TestOsmLoader.assertSameGraph(new GraphDB(OSM_DB_PATH_TINY), tiny);
+    }
+
+    @Test
+    public void testChainedChanges() throws Exception {
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB changed = tiny.withChange(parse(CHANGE));
+
+        /* Taking the new road out again leaves Cafe a location off the roads. */
+        GraphDB undone = changed.withChange(parse("<osmChange version=\"0.6\"><delete>"
+                + "<way id=\"7766\"/></delete></osmChange>"));
+        assertTrue(undone.sameLocations(changed));
+        assertEquals("Cafe", undone.locationNames().get(77L));
+        for (long v : undone.vertices()) {
+            assertTrue(v != 77 && v != 46 && v != 41);
+        }
+
+        /* A road through a node the graph does not know gets no edges there. */
+        GraphDB unknown = undone.withChange(parse("<osmChange version=\"0.6\"><create>"
+                + "<way id=\"9\"><nd ref=\"99\"/><nd ref=\"11\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create></osmChange>"));
+        TestOsmLoader.assertSameGraph(undone, unknown);
+
+        /* Each graph still reads as it did when it was made. */
+        assertEquals(1, undone.getEdge(66L).size());
+        assertEquals(2, changed.getEdge(66L).size());
+        assertEquals(2, tiny.getEdge(66L).size());
+        assertEquals(0.45, changed.lon(55L), 0);
+        assertEquals(0.5, tiny.lon(55L), 0);
+    }
+
+    private static String map(String wayRefs) {
+        return "<?xml version='1.0' encoding='UTF-8'?>\n<osm version=\"0.6\">\n"
+                + "  <node id=\"1\" lat=\"38.1\" lon=\"0.1\"/>\n"
+                + "  <node id=\"2\" lat=\"38.2\" lon=\"0.2\"/>\n"
+                + "  <node id=\"3\" lat=\"38.3\" lon=\"0.3\"/>\n"
+                + "  <way id=\"12\">" + wayRefs + "<tag k=\"highway\" v=\"residential\"/></way>\n"
+                + "</osm>\n";
+    }
+
+    @Test
+    public void testRoadsThroughNodesOffTheRoads() throws Exception {
+        /* Node 3 is on no road, so loading takes it off the graph. */
+        File before = tmp.newFile("before.osm.xml");
+        Files.write(before.toPath(), map("<nd ref=\"1\"/><nd ref=\"2\"/>")
+                .getBytes(StandardCharsets.UTF_8));
+        File after = tmp.newFile("after.osm.xml");
+        Files.write(after.toPath(), map("<nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>")
+                .getBytes(StandardCharsets.UTF_8));
+        GraphDB g = new GraphDB(before.getPath());
+        for (long v : g.vertices()) {
+            assertTrue(v != 3);
+        }
+        GraphDB extended = g.withChange(parse("<osmChange version=\"0.6\"><modify>"
+                + "<way id=\"12\"><nd ref=\"1\"/><nd ref=\"2\"/><nd ref=\"3\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></modify></osmChange>"));
+        TestOsmLoader.assertSameGraph(new GraphDB(after.getPath()), extended);
+        assertEquals(0.3, extended.lon(3L), 0);
+
+        /* Nodes a change takes off the roads can carry a road again later. */
+        GraphDB tiny = new GraphDB(OSM_DB_PATH_TINY);
+        GraphDB changed = tiny.withChange(parse(CHANGE));
+        GraphDB rejoined = changed.withChange(parse("<osmChange version=\"0.6\"><create>"
+                + "<way id=\"4641\"><nd ref=\"46\"/><nd ref=\"41\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create></osmChange>"));
+        assertEquals(1, rejoined.getEdge(46L).size());
+        assertEquals(tiny.lon(41L), rejoined.lon(41L), 0);
+        assertEquals(tiny.lat(46L), rejoined.lat(46L), 0);
+    }
+}
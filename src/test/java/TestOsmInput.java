@@ -0,0 +1,105 @@
+import io.airlift.compress.bzip2.BZip2HadoopStreams;
+import io.airlift.compress.zstd.ZstdOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Reads files back through each codec, named by extension or not. */
+public class TestOsmInput {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private interface Codec {
+        OutputStream wrap(OutputStream out) throws IOException;
+    }
+
+    private static final Codec GZIP = GZIPOutputStream::new;
+    private static final Codec BZIP2 = out -> new BZip2HadoopStreams().createOutputStream(out);
+    private static final Codec ZSTD = ZstdOutputStream::new;
+
+    private File compress(byte[] data, String name, Codec codec) throws IOException {
+        File f = tmp.newFile(name);
+        try (OutputStream out = codec.wrap(new FileOutputStream(f))) {
+            out.write(data);
+        }
+        return f;
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        try (InputStream in = OsmInput.open(f.getPath())) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        /* Several chunks' worth, so the pipe fills and drains. */
+        byte[] data = new byte[1_200_000];
+        new Random(47).nextBytes(data);
+        Codec[] codecs = {GZIP, BZIP2, ZSTD};
+        String[] extensions = {".gz", ".bz2", ".zst"};
+        for (int i = 0; i < codecs.length; i++) {
+            assertArrayEquals(extensions[i], data,
+                    readAll(compress(data, "named" + extensions[i], codecs[i])));
+            assertArrayEquals(extensions[i], data,
+                    readAll(compress(data, "unnamed" + i, codecs[i])));
+        }
+        File plain = tmp.newFile("plain.osm.xml");
+        Files.write(plain.toPath(), data);
+        assertArrayEquals(data, readAll(plain));
+    }
+
+    @Test
+    public void testLoadCompressedGraph() throws Exception {
+        byte[] xml = Files.readAllBytes(Paths.get(OSM_DB_PATH_SMALL));
+        GraphDB plain = new GraphDB(OSM_DB_PATH_SMALL);
+        GraphDB zipped = new GraphDB(compress(xml, "small.osm.xml.zst", ZSTD).getPath());
+        int vertices = 0;
+        for (long v : plain.vertices()) {
+            assertEquals(plain.lon(v), zipped.lon(v), 0);
+            vertices += 1;
+        }
+        int zippedVertices = 0;
+        for (long v : zipped.vertices()) {
+            zippedVertices += 1;
+        }
+        assertEquals(vertices, zippedVertices);
+        assertEquals(plain.locationNames(), zipped.locationNames());
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        byte[] data = new byte[400_000];
+        new Random(48).nextBytes(data);
+        for (Codec codec : new Codec[]{GZIP, BZIP2, ZSTD}) {
+            File f = compress(data, "whole" + codec.hashCode(), codec);
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            File cut = tmp.newFile("cut" + codec.hashCode());
+            Files.write(cut.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+            try {
+                readAll(cut);
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                /* Expected: a cut file is not silently a short one. */
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Checks the multi-threaded loader against the single-threaded SAX handler. */
+public class TestOsmLoader {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    static GraphDB withHandler(String path) throws Exception {
+        GraphDB g = new GraphDB();
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(new File(path), new GraphBuildingHandler(g));
+        g.clean();
+        return g;
+    }
+
+    private static GraphDB withLoader(InputStream in, int threads, int batch)
+            throws Exception {
+        return withLoader(in, threads, null, batch);
+    }
+
+    private static GraphDB withLoader(InputStream in, int threads, NodeIdSet keep, int batch)
+            throws Exception {
+        GraphDB g = new GraphDB();
+        OsmLoader loader = new OsmLoader(g, threads, keep, batch);
+        try {
+            OsmXmlReader.read(in, loader);
+        } catch (Throwable e) {
+            /* Raise the reader's failure rather than any of the workers'. */
+            loader.abandon();
+            throw e;
+        }
+        loader.finish();
+        g.clean();
+        return g;
+    }
+
+    /** Each neighbor of v with the name of the road to it, sorted. */
+    private static List<String> neighbors(GraphDB g, long v) {
+        List<String> out = new ArrayList<>();
+        for (GraphDB.edge e : g.getEdge(v)) {
+            out.add((e.v1 == v ? e.v2 : e.v1) + " " + e.name);
+        }
+        Collections.sort(out);
+        return out;
+    }
+
+    static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        HashSet<Long> vertices = new HashSet<>();
+        expected.vertices().forEach(vertices::add);
+        HashSet<Long> actualVertices = new HashSet<>();
+        actual.vertices().forEach(actualVertices::add);
+        assertEquals(vertices, actualVertices);
+        for (long v : vertices) {
+            assertEquals(expected.lon(v), actual.lon(v), 0);
+            assertEquals(expected.lat(v), actual.lat(v), 0);
+            assertEquals(neighbors(expected, v), neighbors(actual, v));
+        }
+        assertEquals(expected.locationNames(), actual.locationNames());
+    }
+
+    @Test
+    public void testMatchesHandler() throws Exception {
+        for (String path : new String[]{OSM_DB_PATH_TINY, OSM_DB_PATH_SMALL}) {
+            GraphDB expected = withHandler(path);
+            assertSameGraph(expected, new GraphDB(path));
+            for (int threads : new int[]{1, 3}) {
+                try (InputStream in = new FileInputStream(path)) {
+                    /* Tiny batches, so that records are spread over many of them. */
+                    assertSameGraph(expected, withLoader(in, threads, 7));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTwoPass() throws Exception {
+        for (String path : new String[]{OSM_DB_PATH_TINY, OSM_DB_PATH_SMALL}) {
+            NodeIdSet roads;
+            try (InputStream in = new FileInputStream(path)) {
+                roads = OsmXmlReader.roadNodes(in);
+            }
+            GraphDB twoPass;
+            try (InputStream in = new FileInputStream(path)) {
+                twoPass = withLoader(in, 2, roads, 7);
+            }
+            assertSameGraph(withHandler(path), twoPass);
+        }
+
+        /* Before cleaning, only road nodes and the one named node are there. */
+        NodeIdSet roads;
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_SMALL)) {
+            roads = OsmXmlReader.roadNodes(in);
+        }
+        GraphDB unclean = new GraphDB();
+        OsmLoader loader = new OsmLoader(unclean, 2, roads);
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_SMALL)) {
+            OsmXmlReader.read(in, loader);
+        } finally {
+            loader.finish();
+        }
+        int loaded = 0;
+        for (long v : unclean.vertices()) {
+            assertTrue(roads.contains(v) || unclean.locationNames().containsKey(v));
+            loaded += 1;
+        }
+        GraphDB all = new GraphDB();
+        SAXParserFactory.newInstance().newSAXParser()
+                .parse(new File(OSM_DB_PATH_SMALL), new GraphBuildingHandler(all));
+        int allNodes = 0;
+        for (long v : all.vertices()) {
+            allNodes += 1;
+        }
+        assertTrue(loaded + " of " + allNodes, loaded < allNodes);
+
+        NodeIdSet tiny;
+        try (InputStream in = new FileInputStream(OSM_DB_PATH_TINY)) {
+            tiny = OsmXmlReader.roadNodes(in);
+        }
+        /* Nodes 11, 22 and 63 are on two or three roads each, but are kept once. */
+        assertEquals(7, tiny.size());
+        assertTrue(tiny.contains(63));
+        assertFalse(tiny.contains(64));
+    }
+
+    @Test
+    public void testMalformedNumber() throws Exception {
+        String xml = "<osm><node id=\"1\" lat=\"38.1\" lon=\"0.1\"/>"
+                + "<node id=\"2\" lat=\"north\" lon=\"0.2\"/></osm>";
+        try {
+            withLoader(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), 2, 1);
+            fail("Expected a NumberFormatException");
+        } catch (NumberFormatException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testReaderFailureNotMasked() throws Exception {
+        /* A worker fails on the malformed node, and then the reader on the cut off input. */
+        String xml = "<osm><node id=\"2\" lat=\"north\" lon=\"0.2\"/><node id=\"3\"";
+        File file = File.createTempFile("truncated", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+        try {
+            GraphDB.read(file.getPath());
+            fail("Expected an XMLStreamException");
+        } catch (XMLStreamException e) {
+            /* Expected. */
+        }
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertFalse(t.getName().startsWith("osm-loader-"));
+        }
+    }
+}
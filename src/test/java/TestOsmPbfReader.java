@@ -0,0 +1,324 @@
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Converts the small XML file to PBF and checks both load to the same graph. */
+public class TestOsmPbfReader {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final int NODES_PER_BLOCK = 40;
+    private static final int WAYS_PER_BLOCK = 12;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** Just enough of the protocol buffer encoding to write test files. */
+    private static final class Proto {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Proto varint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) (v & 0x7f | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+            return this;
+        }
+
+        Proto uint(int field, long v) {
+            return varint((long) field << 3).varint(v);
+        }
+
+        Proto sint(int field, long v) {
+            return uint(field, v << 1 ^ v >> 63);
+        }
+
+        Proto bytes(int field, byte[] b) {
+            varint((long) field << 3 | 2).varint(b.length);
+            out.write(b, 0, b.length);
+            return this;
+        }
+
+        Proto string(int field, String s) {
+            return bytes(field, s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Proto message(int field, Proto m) {
+            return bytes(field, m.toBytes());
+        }
+
+        byte[] toBytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Element {
+        long id;
+        long lat;
+        long lon;
+        List<Long> refs = new ArrayList<>();
+        Map<String, String> tags = new LinkedHashMap<>();
+    }
+
+    /** The string table of a block being written. */
+    private static final class Strings {
+        final Map<String, Integer> index = new LinkedHashMap<>();
+
+        Strings() {
+            index.put("", 0);
+        }
+
+        int of(String s) {
+            return index.computeIfAbsent(s, k -> index.size());
+        }
+
+        Proto table() {
+            Proto t = new Proto();
+            for (String s : index.keySet()) {
+                t.string(1, s);
+            }
+            return t;
+        }
+    }
+
+    private static List<List<Element>> readXml(String path) throws Exception {
+        List<Element> nodes = new ArrayList<>();
+        List<Element> ways = new ArrayList<>();
+        Element current = null;
+        try (InputStream in = new FileInputStream(path)) {
+            XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            while (r.hasNext()) {
+                if (r.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                switch (r.getLocalName()) {
+                    case "node":
+                        current = new Element();
+                        current.id = Long.parseLong(r.getAttributeValue(null, "id"));
+                        /* In units of 100 nanodegrees, as the XML has 7 decimals at most. */
+                        current.lat = Math.round(
+                                Double.parseDouble(r.getAttributeValue(null, "lat")) * 1e7);
+                        current.lon = Math.round(
+                                Double.parseDouble(r.getAttributeValue(null, "lon")) * 1e7);
+                        nodes.add(current);
+                        break;
+                    case "way":
+                        current = new Element();
+                        current.id = Long.parseLong(r.getAttributeValue(null, "id"));
+                        ways.add(current);
+                        break;
+                    case "nd":
+                        current.refs.add(Long.parseLong(r.getAttributeValue(null, "ref")));
+                        break;
+                    case "tag":
+                        if (current != null) {
+                            current.tags.put(r.getAttributeValue(null, "k"),
+                                    r.getAttributeValue(null, "v"));
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return Arrays.asList(nodes, ways);
+    }
+
+    /** Wraps a block in a blob, compressed one of four ways. */
+    private static byte[] blob(byte[] raw, int how) {
+        Proto blob = new Proto();
+        if (how == 0) {
+            return blob.bytes(1, raw).toBytes();
+        }
+        blob.uint(2, raw.length);
+        byte[] packed;
+        int n;
+        if (how == 1) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            packed = new byte[raw.length + 64];
+            n = deflater.deflate(packed);
+            deflater.end();
+        } else if (how == 2) {
+            ZstdCompressor zstd = new ZstdCompressor();
+            packed = new byte[zstd.maxCompressedLength(raw.length)];
+            n = zstd.compress(raw, 0, raw.length, packed, 0, packed.length);
+        } else {
+            Lz4Compressor lz4 = new Lz4Compressor();
+            packed = new byte[lz4.maxCompressedLength(raw.length)];
+            n = lz4.compress(raw, 0, raw.length, packed, 0, packed.length);
+        }
+        int field = how == 1 ? 3 : how == 2 ? 7 : 6;
+        return blob.bytes(field, Arrays.copyOf(packed, n)).toBytes();
+    }
+
+    private static void writeBlob(ByteArrayOutputStream file, String type, byte[] blob) {
+        byte[] header = new Proto().string(1, type).uint(3, blob.length).toBytes();
+        file.write(header.length >>> 24);
+        file.write(header.length >>> 16);
+        file.write(header.length >>> 8);
+        file.write(header.length);
+        file.write(header, 0, header.length);
+        file.write(blob, 0, blob.length);
+    }
+
+    private static Proto packedKeysVals(Element e, Strings strings, int keysField,
+                                        int valsField) {
+        Proto keys = new Proto();
+        Proto vals = new Proto();
+        for (Map.Entry<String, String> t : e.tags.entrySet()) {
+            keys.varint(strings.of(t.getKey()));
+            vals.varint(strings.of(t.getValue()));
+        }
+        return new Proto().message(keysField, keys).message(valsField, vals);
+    }
+
+    /**
+     * Writes nodes alternately as dense and plain nodes, and the coordinates of every other
+     * block relative to an offset.
+     */
+    private static byte[] toPbf(List<Element> nodes, List<Element> ways, String feature) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        Proto header = new Proto().string(4, "OsmSchema-V0.6").string(4, feature);
+        writeBlob(file, "OSMHeader", blob(header.toBytes(), 1));
+        int blocks = 0;
+        for (int from = 0; from < nodes.size(); from += NODES_PER_BLOCK, blocks++) {
+            List<Element> part = nodes.subList(from, Math.min(nodes.size(),
+                    from + NODES_PER_BLOCK));
+            Strings strings = new Strings();
+            long offset = blocks % 2 == 0 ? 0 : 30_000_000_000L;
+            Proto group = new Proto();
+            if (blocks % 2 == 0) {
+                Proto ids = new Proto();
+                Proto lats = new Proto();
+                Proto lons = new Proto();
+                Proto keysVals = new Proto();
+                long id = 0;
+                long lat = 0;
+                long lon = 0;
+                for (Element e : part) {
+                    ids.varint(e.id - id << 1 ^ e.id - id >> 63);
+                    lats.varint(e.lat - lat << 1 ^ e.lat - lat >> 63);
+                    lons.varint(e.lon - lon << 1 ^ e.lon - lon >> 63);
+                    id = e.id;
+                    lat = e.lat;
+                    lon = e.lon;
+                    for (Map.Entry<String, String> t : e.tags.entrySet()) {
+                        keysVals.varint(strings.of(t.getKey()));
+                        keysVals.varint(strings.of(t.getValue()));
+                    }
+                    keysVals.varint(0);
+                }
+                group.message(2, new Proto().message(1, ids).message(8, lats)
+                        .message(9, lons).message(10, keysVals));
+            } else {
+                for (Element e : part) {
+                    Proto node = new Proto().sint(1, e.id);
+                    byte[] kv = packedKeysVals(e, strings, 2, 3).toBytes();
+                    node.out.write(kv, 0, kv.length);
+                    node.sint(8, e.lat - offset / 100).sint(9, e.lon - offset / 100);
+                    group.message(1, node);
+                }
+            }
+            Proto block = new Proto().message(1, strings.table()).message(2, group)
+                    .uint(17, 100).uint(19, offset).uint(20, offset);
+            writeBlob(file, "OSMData", blob(block.toBytes(), blocks % 4));
+        }
+        for (int from = 0; from < ways.size(); from += WAYS_PER_BLOCK, blocks++) {
+            Strings strings = new Strings();
+            Proto group = new Proto();
+            for (Element e : ways.subList(from, Math.min(ways.size(), from + WAYS_PER_BLOCK))) {
+                Proto refs = new Proto();
+                long prev = 0;
+                for (long ref : e.refs) {
+                    refs.varint(ref - prev << 1 ^ ref - prev >> 63);
+                    prev = ref;
+                }
+                Proto way = new Proto().uint(1, e.id);
+                byte[] kv = packedKeysVals(e, strings, 2, 3).toBytes();
+                way.out.write(kv, 0, kv.length);
+                group.message(3, way.message(8, refs));
+            }
+            Proto block = new Proto().message(1, strings.table()).message(2, group);
+            writeBlob(file, "OSMData", blob(block.toBytes(), blocks % 4));
+        }
+        return file.toByteArray();
+    }
+
+    private File smallPbf(String name, String feature) throws Exception {
+        List<List<Element>> xml = readXml(OSM_DB_PATH_SMALL);
+        File f = tmp.newFile(name);
+        Files.write(f.toPath(), toPbf(xml.get(0), xml.get(1), feature));
+        return f;
+    }
+
+    @Test
+    public void testMatchesXml() throws Exception {
+        File pbf = smallPbf("small.osm.pbf", "DenseNodes");
+        GraphDB expected = TestOsmLoader.withHandler(OSM_DB_PATH_SMALL);
+        TestOsmLoader.assertSameGraph(expected, new GraphDB(pbf.getPath()));
+
+        /* Two passes, and a name that does not say the format. */
+        File unnamed = smallPbf("small", "DenseNodes");
+        assertTrue(OsmInput.isPbf(unnamed.getPath()));
+        assertFalse(OsmInput.isPbf(OSM_DB_PATH_SMALL));
+        NodeIdSet fromPbf;
+        try (InputStream in = OsmInput.open(unnamed.getPath())) {
+            fromPbf = OsmPbfReader.roadNodes(in, 2);
+        }
+        NodeIdSet fromXml;
+        try (InputStream in = OsmInput.open(OSM_DB_PATH_SMALL)) {
+            fromXml = OsmXmlReader.roadNodes(in);
+        }
+        assertEquals(fromXml.size(), fromPbf.size());
+        GraphDB twoPass = new GraphDB();
+        OsmLoader loader = new OsmLoader(twoPass, 3, fromPbf);
+        try (InputStream in = OsmInput.open(unnamed.getPath())) {
+            OsmPbfReader.read(in, loader, 3);
+        } finally {
+            loader.finish();
+        }
+        twoPass.clean();
+        TestOsmLoader.assertSameGraph(expected, twoPass);
+    }
+
+    @Test
+    public void testUnsupportedFeature() throws Exception {
+        File pbf = smallPbf("history.osm.pbf", "HistoricalInformation");
+        GraphDB g = new GraphDB();
+        OsmLoader loader = new OsmLoader(g, 1);
+        try (InputStream in = OsmInput.open(pbf.getPath())) {
+            OsmPbfReader.read(in, loader, 1);
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("HistoricalInformation"));
+        } finally {
+            loader.finish();
+        }
+    }
+}
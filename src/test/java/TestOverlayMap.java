@@ -0,0 +1,50 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/** Checks overlays, and copies of them, against plain maps given the same changes. */
+public class TestOverlayMap {
+
+    @Test
+    public void testMatchesHashMap() {
+        Random r = new Random(49);
+        Map<Long, Integer> base = new HashMap<>();
+        for (long k = 0; k < 2000; k++) {
+            base.put(k * 3, r.nextInt());
+        }
+        Map<Long, Integer> baseBefore = new HashMap<>(base);
+        Map<Long, Integer> expected = new HashMap<>(base);
+        OverlayMap<Integer> overlay = OverlayMap.over(base);
+        Map<Long, Integer> copyExpected = null;
+        OverlayMap<Integer> copy = null;
+        for (int i = 0; i < 20000; i++) {
+            /* Small keys collide with the base, large ones part only deep in the trie. */
+            long key = r.nextBoolean() ? r.nextInt(8000) : r.nextLong();
+            if (r.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), overlay.remove(key));
+            } else {
+                int value = r.nextInt();
+                assertEquals(expected.put(key, value), overlay.put(key, value));
+            }
+            if (i == 10000) {
+                copy = OverlayMap.over(overlay);
+                copyExpected = new HashMap<>(expected);
+            }
+        }
+        for (long key = -10; key < 8000; key++) {
+            assertEquals(expected.get(key), overlay.get(key));
+            assertEquals(expected.containsKey(key), overlay.containsKey(key));
+        }
+        assertEquals(expected, overlay);
+        assertEquals(expected.size(), overlay.size());
+        assertEquals(expected.size(), overlay.entrySet().size());
+
+        /* Neither the base nor a copy sees changes made after it was taken. */
+        assertEquals(baseBefore, base);
+        assertEquals(copyExpected, copy);
+    }
+}
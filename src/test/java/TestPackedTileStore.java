@@ -0,0 +1,66 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/** Packs the tile directory and checks every tile reads back byte for byte. */
+public class TestPackedTileStore {
+    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    @Test
+    public void testPackAndRead() throws Exception {
+        File pack = tmp.newFile("tiles.bmtp");
+        int n = PackedTileStore.pack(new File(IMG_ROOT), pack);
+        int expected = 0;
+        try (PackedTileStore store = new PackedTileStore(pack.getPath());
+             DirectoryTileStore dir = new DirectoryTileStore(IMG_ROOT)) {
+            assertEquals(n, store.size());
+            for (int depth = 0; depth <= 4; depth++) {
+                for (int x = 0; x < (1 << depth); x++) {
+                    for (int y = 0; y < (1 << depth); y++) {
+                        File f = new File(IMG_ROOT + TileStore.fileName(depth, x, y));
+                        ByteBuffer packed = store.tile(depth, x, y);
+                        assertEquals(f.exists(), store.has(depth, x, y));
+                        assertEquals(f.exists(), dir.has(depth, x, y));
+                        if (!f.exists()) {
+                            assertNull(packed);
+                            continue;
+                        }
+                        expected++;
+                        byte[] onDisk = Files.readAllBytes(f.toPath());
+                        assertArrayEquals(onDisk, bytes(packed));
+                        assertArrayEquals(onDisk, bytes(dir.tile(depth, x, y)));
+                    }
+                }
+            }
+            assertNull(store.tile(9, 0, 0));
+            assertFalse(store.has(9, 0, 0));
+            assertFalse(dir.has(9, 0, 0));
+        }
+        assertEquals(expected, n);
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testRejectsOtherFiles() throws Exception {
+        File notAPack = tmp.newFile("tiles.txt");
+        Files.write(notAPack.toPath(), "not tiles at all".getBytes());
+        new PackedTileStore(notAPack.getPath());
+    }
+}
@@ -0,0 +1,70 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+
+/** Checks that every filter and level produces a PNG that decodes to the original pixels. */
+public class TestPngEncoder {
+
+    private static BufferedImage randomImage(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        Random r = new Random(61);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                /* Blocks of color with some noise, roughly like map tiles. */
+                int c = ((x / 16) * 40 + (y / 16) * 70) & 0xffffff;
+                img.setRGB(x, y, (r.nextInt(256) << 24) | (c ^ r.nextInt(4)));
+            }
+        }
+        return img;
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual,
+                                         boolean alpha) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int mask = alpha ? 0xffffffff : 0xffffff;
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("pixel " + x + ", " + y,
+                        expected.getRGB(x, y) & mask, actual.getRGB(x, y) & mask);
+            }
+        }
+    }
+
+    @Test
+    public void testAllFiltersRoundTrip() throws Exception {
+        BufferedImage img = randomImage(300, 350, BufferedImage.TYPE_INT_RGB);
+        for (PngEncoder.Filter f : PngEncoder.Filter.values()) {
+            for (int level : new int[] {0, 1, 6, 9}) {
+                PngEncoder encoder = new PngEncoder(level, f, 64,
+                        ForkJoinPool.commonPool());
+                BufferedImage decoded = ImageIO.read(
+                        new ByteArrayInputStream(encoder.encode(img)));
+                assertSamePixels(img, decoded, false);
+            }
+        }
+    }
+
+    @Test
+    public void testAlphaRoundTrip() throws Exception {
+        BufferedImage img = randomImage(129, 257, BufferedImage.TYPE_INT_ARGB);
+        PngEncoder encoder = new PngEncoder(6, PngEncoder.Filter.ADAPTIVE, 16,
+                ForkJoinPool.commonPool());
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoder.encode(img)));
+        assertSamePixels(img, decoded, true);
+    }
+
+    @Test
+    public void testSingleStripe() throws Exception {
+        BufferedImage img = randomImage(40, 3, BufferedImage.TYPE_INT_RGB);
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.PAETH);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoder.encode(img)));
+        assertSamePixels(img, decoded, false);
+    }
+}
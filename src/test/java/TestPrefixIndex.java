@@ -0,0 +1,76 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks autocompletion against ranking every matching name. */
+public class TestPrefixIndex {
+    private static final String OSM_DB_PATH_SMALL =
+            "../library-sp18/data/berkeley-2018-small.osm.xml";
+    private static final int K = 5;
+
+    /** The expected completions: every matching name, ranked, cut to K. */
+    private static List<String> bruteForce(Map<Long, String> locations, String prefix) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String name : locations.values()) {
+            counts.merge(name, 1, Integer::sum);
+        }
+        String p = GraphDB.cleanString(prefix);
+        return counts.keySet().stream()
+                .filter(n -> GraphDB.cleanString(n).startsWith(p))
+                .sorted(Comparator.<String>comparingInt(n -> -counts.get(n))
+                        .thenComparingInt(n -> GraphDB.cleanString(n).length())
+                        .thenComparing(GraphDB::cleanString)
+                        .thenComparing(n -> n))
+                .limit(K).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random r = new Random(41);
+        String[] words = {"peet's", "peets", "coffee", "cafe", "Caf\u00e9", "hall", "Hall",
+            "dwinelle", "doe", "library", "li", "la", "a", "b"};
+        Map<Long, String> locations = new HashMap<>();
+        for (long id = 0; id < 3000; id++) {
+            StringBuilder name = new StringBuilder();
+            int n = 1 + r.nextInt(3);
+            for (int w = 0; w < n; w++) {
+                name.append(w > 0 ? " " : "").append(words[r.nextInt(words.length)]);
+            }
+            locations.put(id, name.toString());
+        }
+        PrefixIndex index = new PrefixIndex(locations, K);
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add("");
+        prefixes.add("zzz");
+        prefixes.add("PEETS");
+        for (int q = 0; q < 300; q++) {
+            String name = locations.get((long) r.nextInt(3000));
+            prefixes.add(name.substring(0, r.nextInt(name.length() + 1)));
+        }
+        for (String p : prefixes) {
+            assertEquals(p, bruteForce(locations, p), index.complete(p));
+        }
+    }
+
+    @Test
+    public void testLoadsLocationNames() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_SMALL);
+        /* The one named node of the small graph, which is not on any road. */
+        assertEquals(1, g.locationNames().size());
+        assertEquals("The Wright Institute", g.locationNames().get(358858264L));
+        PrefixIndex index = new PrefixIndex(g.locationNames(), K);
+        assertEquals(Collections.singletonList("The Wright Institute"),
+                index.complete("the wri"));
+        assertTrue(index.complete("wright").isEmpty());
+    }
+}
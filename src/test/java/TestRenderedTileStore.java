@@ -0,0 +1,332 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders tiles of the tiny graph and checks the edge grid against a scan of every edge,
+ * and a changed graph's grid and tiles against those made from scratch.
+ */
+public class TestRenderedTileStore {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /** The tiny graph lies within lon 0.1 to 0.6 and lat 38.1 to 38.6. */
+    private static final TilePyramid PYRAMID = new TilePyramid(0, 39, 1, 38, 256, 10);
+    private static final int LAND = 0xF2EFE9;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /** A store with no tiles at all, so that every tile is rendered. */
+    private static class EmptyStore implements TileStore {
+        @Override
+        public ByteBuffer tile(int depth, int x, int y) {
+            return null;
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** A store with one tile, which counts how often tiles are read from it. */
+    private static class OneTileStore extends EmptyStore {
+        static final byte[] PNG = {1, 2, 3};
+        int reads;
+
+        @Override
+        public ByteBuffer tile(int depth, int x, int y) {
+            reads++;
+            return has(depth, x, y) ? ByteBuffer.wrap(PNG).asReadOnlyBuffer() : null;
+        }
+
+        @Override
+        public boolean has(int depth, int x, int y) {
+            return depth == 3 && x == 0 && y == 5;
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    private static BufferedImage decode(byte[] png) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(png));
+    }
+
+    @Test
+    public void testGridQueryMatchesScan() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        EdgeGrid grid = new EdgeGrid(g);
+        List<double[]> all = new ArrayList<>();
+        grid.query(-180, -90, 180, 90, (lon1, lat1, lon2, lat2) ->
+                all.add(new double[]{lon1, lat1, lon2, lat2}));
+        assertEquals(g.edges().size(), grid.size());
+        assertEquals(grid.size(), all.size());
+
+        Random r = new Random(39);
+        for (int q = 0; q < 200; q++) {
+            double lon0 = r.nextDouble() * 0.8;
+            double lat0 = 38 + r.nextDouble() * 0.8;
+            double lon1 = lon0 + r.nextDouble() * 0.3;
+            double lat1 = lat0 + r.nextDouble() * 0.3;
+            int expected = 0;
+            for (double[] s : all) {
+                if (Math.max(s[0], s[2]) >= lon0 && Math.min(s[0], s[2]) <= lon1
+                        && Math.max(s[1], s[3]) >= lat0 && Math.min(s[1], s[3]) <= lat1) {
+                    expected++;
+                }
+            }
+            int[] found = new int[1];
+            grid.query(lon0, lat0, lon1, lat1, (a, b, c, d) -> found[0]++);
+            assertEquals(expected, found[0]);
+        }
+    }
+
+    private static GraphDB change(GraphDB g, String osc) throws Exception {
+        return g.withChange(OsmChange.read(
+                new ByteArrayInputStream(osc.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /** Returns the segments a query finds, each as text, sorted. */
+    private static List<String> found(EdgeGrid grid, double lon0, double lat0, double lon1,
+                                      double lat1) {
+        List<String> out = new ArrayList<>();
+        grid.query(lon0, lat0, lon1, lat1, (a, b, c, d) ->
+                out.add(a + " " + b + " " + c + " " + d));
+        Collections.sort(out);
+        return out;
+    }
+
+    @Test
+    public void testGridWithChangeMatchesRebuild() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        EdgeGrid grid = new EdgeGrid(g);
+        /* Move a node, add a road out of the grid's extent, then take a road out again. */
+        String[] changes = {
+            "<osmChange><modify><node id=\"55\" lat=\"38.55\" lon=\"0.45\"/></modify>"
+                    + "</osmChange>",
+            "<osmChange><create><node id=\"77\" lat=\"38.9\" lon=\"0.9\"/>"
+                    + "<way id=\"7766\"><nd ref=\"66\"/><nd ref=\"77\"/>"
+                    + "<tag k=\"highway\" v=\"residential\"/></way></create></osmChange>",
+            "<osmChange><delete><way id=\"114163\"/><way id=\"7766\"/></delete>"
+                    + "</osmChange>"};
+        Random r = new Random(49);
+        for (String osc : changes) {
+            GraphDB next = change(g, osc);
+            EdgeGrid before = grid;
+            List<String> beforeAll = found(before, -180, -90, 180, 90);
+            grid = grid.withChange(EdgeGrid.Change.between(g, next), next);
+            EdgeGrid rebuilt = new EdgeGrid(next);
+            assertEquals(rebuilt.size(), grid.size());
+            assertEquals(found(rebuilt, -180, -90, 180, 90), found(grid, -180, -90, 180, 90));
+            for (int q = 0; q < 200; q++) {
+                double lon0 = r.nextDouble();
+                double lat0 = 38 + r.nextDouble();
+                double lon1 = lon0 + r.nextDouble() * 0.3;
+                double lat1 = lat0 + r.nextDouble() * 0.3;
+                assertEquals(found(rebuilt, lon0, lat0, lon1, lat1),
+                        found(grid, lon0, lat0, lon1, lat1));
+            }
+            /* The grid of the graph before is as it was. */
+            assertEquals(beforeAll, found(before, -180, -90, 180, 90));
+            g = next;
+        }
+    }
+
+    @Test
+    public void testChangeCarriesOverTiles() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        int[] renders = new int[1];
+        RoadTileRenderer renderer = new RoadTileRenderer(PYRAMID, new EdgeGrid(g)) {
+            @Override
+            BufferedImage render(int depth, int x, int y) {
+                renders[0]++;
+                return super.render(depth, x, y);
+            }
+        };
+        File spill = tmp.newFolder("changed");
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.NONE);
+        RenderedTileStore store = new RenderedTileStore(new EmptyStore(), renderer,
+                g.generation(), encoder, 1, PYRAMID.maxDepth, 1, spill.toPath());
+        /* Tile (0, 7) at depth 3 holds node 11, far from node 55 in tile (3, 4). */
+        byte[] far = bytes(store.tile(3, 0, 7));
+        byte[] near = bytes(store.tile(3, 3, 4));
+        store.tile(3, 7, 0);
+        GraphDB moved = change(g, "<osmChange><modify>"
+                + "<node id=\"55\" lat=\"38.55\" lon=\"0.45\"/></modify></osmChange>");
+        RenderedTileStore next = store.withChange(g, moved);
+        assertEquals(store.validator(3, 0, 7), next.validator(3, 0, 7));
+        assertNotEquals(store.validator(3, 3, 4), next.validator(3, 3, 4));
+
+        /* The far tile is read back from the shared spill; the near one is drawn anew. */
+        File spilled = next.spillPath(3, 0, 7).toFile();
+        for (int i = 0; i < 100 && !spilled.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(spilled.exists());
+        int rendered = renders[0];
+        assertArrayEquals(far, bytes(next.tile(3, 0, 7)));
+        assertEquals(rendered, renders[0]);
+        byte[] redrawn = bytes(next.tile(3, 3, 4));
+        assertFalse(Arrays.equals(near, redrawn));
+        try (RenderedTileStore fresh = new RenderedTileStore(new EmptyStore(),
+                new RoadTileRenderer(PYRAMID, new EdgeGrid(moved)), moved.generation(),
+                encoder, 1, PYRAMID.maxDepth, 1, tmp.newFolder("fresh").toPath())) {
+            assertArrayEquals(bytes(fresh.tile(3, 3, 4)), redrawn);
+            assertArrayEquals(bytes(fresh.tile(3, 0, 7)), far);
+        }
+
+        /* A cache over the new store keeps the decoded tiles the change left alone. */
+        TileCache tiles = new TileCache(store, encoder);
+        tiles.tile(3, 0, 7);
+        tiles.tile(3, 3, 4);
+        TileCache nextTiles = new TileCache(next, encoder);
+        nextTiles.carryOver(tiles, 1);
+        assertTrue(nextTiles.isCached(3, 0, 7));
+        assertFalse(nextTiles.isCached(3, 3, 4));
+
+        /* The spill directory stays until both stores are released. */
+        store.release();
+        assertTrue(spill.exists());
+        assertArrayEquals(far, bytes(store.tile(3, 0, 7)));
+        next.release();
+        assertFalse(spill.exists());
+    }
+
+    @Test
+    public void testRendersCachesAndSpills() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        RoadTileRenderer renderer = new RoadTileRenderer(PYRAMID, new EdgeGrid(g));
+        File spill = tmp.newFolder("spill");
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.NONE);
+        try (RenderedTileStore store = new RenderedTileStore(new EmptyStore(), renderer,
+                g.generation(), encoder, 1, PYRAMID.maxDepth, 1, spill.toPath())) {
+            /* Node 22 at (0.2, 38.2) is on a road; at depth 3 it is in tile (1, 6). */
+            byte[] first = bytes(store.tile(3, 1, 6));
+            BufferedImage img = decode(first);
+            assertEquals(256, img.getWidth());
+            assertEquals(256, img.getHeight());
+            boolean drawn = false;
+            for (int y = 0; y < 256 && !drawn; y++) {
+                for (int x = 0; x < 256 && !drawn; x++) {
+                    drawn = (img.getRGB(x, y) & 0xffffff) != LAND;
+                }
+            }
+            assertTrue(drawn);
+            assertArrayEquals(first, bytes(store.tile(3, 1, 6)));
+
+            /* Memory holds one tile, so this pushes the first out to the spill directory. */
+            byte[] empty = bytes(store.tile(3, 7, 0));
+            assertNotEquals(first.length, empty.length);
+            File spilled = store.spillPath(3, 1, 6).toFile();
+            assertEquals(spill, spilled.getParentFile());
+            for (int i = 0; i < 100 && !spilled.exists(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(spilled.exists());
+            assertArrayEquals(first, bytes(store.tile(3, 1, 6)));
+
+            assertNull(store.tile(0, 0, 0));
+            assertNull(store.tile(11, 0, 0));
+            assertNull(store.tile(3, 8, 0));
+        }
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        RoadTileRenderer renderer = new RoadTileRenderer(PYRAMID, new EdgeGrid(g));
+        File spill = tmp.newFolder("released");
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.NONE);
+        RenderedTileStore store = new RenderedTileStore(new EmptyStore(), renderer,
+                g.generation(), encoder, 1, PYRAMID.maxDepth, 1, spill.toPath());
+        byte[] first = bytes(store.tile(3, 1, 6));
+        store.tile(3, 7, 0);
+        store.release();
+        assertFalse(spill.exists());
+
+        /* Still served, rendered again, though nothing is spilled any more. */
+        assertArrayEquals(first, bytes(store.tile(3, 1, 6)));
+        store.tile(3, 7, 0);
+        assertFalse(spill.exists());
+    }
+
+    @Test
+    public void testHashesWithoutRendering() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        int[] renders = new int[1];
+        RoadTileRenderer renderer = new RoadTileRenderer(PYRAMID, new EdgeGrid(g)) {
+            @Override
+            BufferedImage render(int depth, int x, int y) {
+                renders[0]++;
+                return super.render(depth, x, y);
+            }
+        };
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.NONE);
+        try (RenderedTileStore store = new RenderedTileStore(new EmptyStore(), renderer,
+                g.generation(), encoder, 1, PYRAMID.maxDepth, 4,
+                tmp.newFolder("hashed").toPath());
+             RenderedTileStore other = new RenderedTileStore(new EmptyStore(), renderer,
+                g.generation() + 1, encoder, 1, PYRAMID.maxDepth, 4,
+                tmp.newFolder("other").toPath())) {
+            TileCache tiles = new TileCache(store, encoder);
+            long hash = tiles.tileHash(3, 1, 6);
+            long window = tiles.windowHash(3, 0, 5, 3, 3);
+            assertEquals(0, renders[0]);
+            assertNotEquals(0, hash);
+            assertNotEquals(hash, tiles.tileHash(3, 1, 7));
+            assertNotEquals(hash, new TileCache(other, encoder).tileHash(3, 1, 6));
+            assertNotEquals(window, new TileCache(other, encoder).windowHash(3, 0, 5, 3, 3));
+
+            /* Making the tile leaves its hash as it was. */
+            store.tile(3, 1, 6);
+            assertEquals(1, renders[0]);
+            assertEquals(hash, tiles.tileHash(3, 1, 6));
+            assertEquals(0, tiles.tileHash(0, 0, 0));
+        }
+    }
+
+    @Test
+    public void testValidatesWithoutReadingTheBase() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        OneTileStore base = new OneTileStore();
+        PngEncoder encoder = new PngEncoder(4, PngEncoder.Filter.NONE);
+        try (RenderedTileStore store = new RenderedTileStore(base,
+                new RoadTileRenderer(PYRAMID, new EdgeGrid(g)), g.generation(), encoder, 1,
+                PYRAMID.maxDepth, 4, tmp.newFolder("validated").toPath())) {
+            /* The base's own tile is left to the base to validate, and the rest validated. */
+            assertEquals(0, store.validator(3, 0, 5));
+            assertNotEquals(0, store.validator(3, 1, 5));
+            assertTrue(store.has(3, 0, 5));
+            assertTrue(store.has(3, 1, 5));
+            assertFalse(store.has(0, 0, 0));
+            assertEquals(0, base.reads);
+            assertArrayEquals(OneTileStore.PNG, bytes(store.tile(3, 0, 5)));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks Accept-Encoding negotiation and that the pooled gzip streams are valid gzip. */
+public class TestResponseCompression {
+
+    @Test
+    public void testNegotiate() {
+        assertEquals(ResponseCompression.Encoding.IDENTITY, ResponseCompression.negotiate(null));
+        assertEquals(ResponseCompression.Encoding.IDENTITY, ResponseCompression.negotiate(""));
+        assertEquals(ResponseCompression.Encoding.GZIP,
+                ResponseCompression.negotiate("gzip, deflate, br"));
+        assertEquals(ResponseCompression.Encoding.GZIP,
+                ResponseCompression.negotiate("br;q=1.0, GZIP;q=0.8"));
+        assertEquals(ResponseCompression.Encoding.GZIP, ResponseCompression.negotiate("*"));
+        assertEquals(ResponseCompression.Encoding.IDENTITY,
+                ResponseCompression.negotiate("gzip;q=0, *;q=0.5"));
+        assertEquals(ResponseCompression.Encoding.IDENTITY,
+                ResponseCompression.negotiate("deflate, br"));
+    }
+
+    @Test
+    public void testCompressibleTypes() {
+        assertTrue(ResponseCompression.isCompressible("application/json"));
+        assertTrue(ResponseCompression.isCompressible("text/html;charset=utf-8"));
+        assertTrue(ResponseCompression.isCompressible("image/svg+xml"));
+        assertFalse(ResponseCompression.isCompressible("image/png"));
+        assertFalse(ResponseCompression.isCompressible("application/gzip"));
+        assertFalse(ResponseCompression.isCompressible(null));
+    }
+
+    @Test
+    public void testEncodedETag() {
+        ResponseCompression.Encoding gzip = ResponseCompression.Encoding.GZIP;
+        assertEquals("\"1f-gzip\"", ResponseCompression.encodedETag("\"1f\"", gzip));
+        assertEquals("\"1f\"", ResponseCompression.encodedETag("\"1f\"",
+                ResponseCompression.Encoding.IDENTITY));
+        assertEquals("W/\"1f\"", ResponseCompression.encodedETag("W/\"1f\"", gzip));
+        assertEquals("\"1f\"", ResponseCompression.identityETag("\"1f-gzip\""));
+        assertEquals("\"1f\"", ResponseCompression.identityETag("\"1f\""));
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws Exception {
+        ResponseCompression compression = new ResponseCompression(1, 1024, 1);
+        Random r = new Random(61);
+        /* More streams than the pool holds, so deflaters are both reused and discarded. */
+        for (int i = 0; i < 4; i++) {
+            byte[] data = new byte[1000 + r.nextInt(200000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) ('a' + r.nextInt(1 + j % 26));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream os = compression.gzip(bytes)) {
+                os.write(data, 0, 10);
+                os.write(data[10]);
+                os.write(data, 11, data.length - 11);
+            }
+            byte[] decoded = new byte[data.length];
+            try (GZIPInputStream in = new GZIPInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray()))) {
+                int n = 0;
+                while (n < decoded.length) {
+                    n += in.read(decoded, n, decoded.length - n);
+                }
+                assertEquals(-1, in.read());
+            }
+            assertArrayEquals(data, decoded);
+        }
+    }
+}
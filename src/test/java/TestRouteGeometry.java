@@ -0,0 +1,81 @@
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Checks clipping and simplification of route geometry on the tiny graph. */
+public class TestRouteGeometry {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /** Returns the points of a path, as x, y pairs. */
+    private static List<double[]> points(Path2D path) {
+        List<double[]> out = new ArrayList<>();
+        double[] c = new double[6];
+        for (PathIterator it = path.getPathIterator(null); !it.isDone(); it.next()) {
+            it.currentSegment(c);
+            out.add(new double[]{c[0], c[1]});
+        }
+        return out;
+    }
+
+    @Test
+    public void testClipsToView() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        List<Long> route = Router.shortestPath(g, 0.2, 38.2, 0.6, 38.6);
+        RouteGeometry geometry = new RouteGeometry(g, route);
+        assertEquals(route.size(), geometry.size());
+
+        /* The whole graph, 0 to 1 by 38 to 39, at 1000 pixels per degree. */
+        Rectangle2D all = geometry.project(0, 39, 1, 38, 1000, 1000, 5).getBounds2D();
+        assertEquals(200, all.getMinX(), 1e-6);
+        assertEquals(400, all.getMinY(), 1e-6);
+        assertEquals(600, all.getMaxX(), 1e-6);
+        assertEquals(800, all.getMaxY(), 1e-6);
+
+        /* Only the middle of the route: every point lies within the padded view. */
+        Path2D part = geometry.project(0.3, 38.5, 0.5, 38.3, 200, 200, 5);
+        assertNotNull(part.getCurrentPoint());
+        for (double[] p : points(part)) {
+            assertTrue(p[0] >= -5 - 1e-9 && p[0] <= 205 + 1e-9);
+            assertTrue(p[1] >= -5 - 1e-9 && p[1] <= 205 + 1e-9);
+        }
+
+        assertNull(geometry.project(0.8, 38.1, 0.9, 38.0, 100, 100, 5).getCurrentPoint());
+        assertNull(RouteOverlay.render(geometry, 0.8, 38.1, 0.9, 38.0, 100, 100));
+        assertNull(RouteOverlay.render(RouteGeometry.EMPTY, 0, 39, 1, 38, 100, 100));
+        assertNotNull(RouteOverlay.render(geometry, 0, 39, 1, 38, 100, 100));
+    }
+
+    @Test
+    public void testSimplifiesToPixels() {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        /* A long zigzag with its points a thousandth of a degree apart. */
+        List<Long> route = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            long v = 1000000 + i;
+            g.addNode(v, 0.1 + i * 0.0004, 38.1 + (i % 2) * 0.001);
+            route.add(v);
+        }
+        RouteGeometry geometry = new RouteGeometry(g, route);
+
+        /* At 100 pixels per degree, the whole route is about 40 pixels long. */
+        Path2D far = geometry.project(0, 39, 1, 38, 100, 100, 5);
+        assertTrue(points(far).size() < 200);
+        Rectangle2D bounds = far.getBounds2D();
+        assertEquals(10, bounds.getMinX(), 1e-6);
+        assertEquals(0.1 + 999 * 0.0004, bounds.getMaxX() / 100, 0.01);
+
+        /* Up close, only the points in view are drawn, and all of them. */
+        Path2D near = geometry.project(0.2, 38.2, 0.204, 38.0, 4000, 800, 5);
+        int n = points(near).size();
+        assertTrue(n >= 10 && n <= 14);
+    }
+}
@@ -0,0 +1,121 @@
+import org.junit.Test;
+
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Draws two routes over one window of the tiny graph and checks that the base composite is
+ * shared by both and that the overlays hold nothing but their routes.
+ */
+public class TestRouteOverlay {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /** The window: the whole tiny graph, 0 to 1 by 38 to 39, four tiles of 256 pixels. */
+    private static final double ULLON = 0, ULLAT = 39, LRLON = 1, LRLAT = 38;
+    private static final int SIZE = 512;
+
+    /** A store with every tile, all the same image, that counts the tiles read. */
+    private static class CountingStore implements TileStore {
+        private final byte[] png;
+        int reads;
+
+        CountingStore() throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "png", out);
+            png = out.toByteArray();
+        }
+
+        @Override
+        public synchronized ByteBuffer tile(int depth, int x, int y) {
+            reads++;
+            return ByteBuffer.wrap(png).asReadOnlyBuffer();
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Returns the distance in raster pixels from (px, py) to the nearest part of route. */
+    private static double distance(GraphDB g, List<Long> route, double px, double py) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < route.size(); i++) {
+            best = Math.min(best, Line2D.ptSegDist(
+                    x(g.lon(route.get(i - 1))), y(g.lat(route.get(i - 1))),
+                    x(g.lon(route.get(i))), y(g.lat(route.get(i))), px, py));
+        }
+        return best;
+    }
+
+    private static double x(double lon) {
+        return (lon - ULLON) / (LRLON - ULLON) * SIZE;
+    }
+
+    private static double y(double lat) {
+        return (ULLAT - lat) / (ULLAT - LRLAT) * SIZE;
+    }
+
+    /** Checks that the overlay of route is transparent away from it, and drawn on it. */
+    private static void assertOnlyRoute(GraphDB g, List<Long> route, RouteOverlay overlay) {
+        assertNotNull(overlay);
+        /* The stroke reaches half its width from the route, and antialiasing a pixel more. */
+        double reach = MapServer.ROUTE_STROKE_WIDTH_PX / 2 + 1.5;
+        BufferedImage img = overlay.image;
+        int drawn = 0;
+        for (int py = 0; py < img.getHeight(); py++) {
+            for (int px = 0; px < img.getWidth(); px++) {
+                int alpha = img.getRGB(px, py) >>> 24;
+                double d = distance(g, route, overlay.x + px + 0.5, overlay.y + py + 0.5);
+                if (d > reach) {
+                    assertEquals(0, alpha);
+                } else if (alpha > 0) {
+                    drawn++;
+                }
+            }
+        }
+        assertTrue(drawn > 0);
+        long start = route.get(0);
+        int alpha = img.getRGB((int) x(g.lon(start)) - overlay.x,
+                (int) y(g.lat(start)) - overlay.y) >>> 24;
+        assertTrue(alpha > 0);
+    }
+
+    @Test
+    public void testBaseSharedAndOverlayTransparent() throws Exception {
+        GraphDB g = new GraphDB(OSM_DB_PATH_TINY);
+        List<Long> first = Router.shortestPath(g, 0.2, 38.2, 0.6, 38.6);
+        List<Long> second = Router.shortestPath(g, 0.1, 38.1, 0.6, 38.3);
+        assertFalse(first.equals(second));
+
+        CountingStore store = new CountingStore();
+        TileCache tiles = new TileCache(store, new PngEncoder(4, PngEncoder.Filter.NONE));
+        byte[] base = tiles.composite(1, 0, 0, 2, 2);
+        assertEquals(4, store.reads);
+        RouteOverlay firstOverlay = RouteOverlay.render(new RouteGeometry(g, first),
+                ULLON, ULLAT, LRLON, LRLAT, SIZE, SIZE);
+
+        /* Another route over the same window gets the very same base, made once. */
+        byte[] again = tiles.composite(1, 0, 0, 2, 2);
+        RouteOverlay secondOverlay = RouteOverlay.render(new RouteGeometry(g, second),
+                ULLON, ULLAT, LRLON, LRLAT, SIZE, SIZE);
+        assertSame(base, again);
+        assertEquals(4, store.reads);
+
+        assertOnlyRoute(g, first, firstOverlay);
+        assertOnlyRoute(g, second, secondOverlay);
+    }
+}
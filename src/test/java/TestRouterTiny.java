@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by hug, 4/9/2018. Basic tests for A* on the tiny graph.
@@ -63,4 +64,36 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testSearchStats() {
+        Router.SearchStats stats = new Router.SearchStats();
+        List<Long> actual = Router.shortestPath(graphTiny, 0.21, 38.2, 0.6, 38.6, stats);
+        assertEquals(Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6), actual);
+        assertEquals(3, stats.pathNodes);
+        assertEquals(stats.heapPops, stats.nodesSettled + stats.staleSkipped);
+        assertTrue(stats.heapPushes >= stats.heapPops);
+        assertTrue(stats.edgesScanned >= stats.edgesRelaxed);
+        assertEquals(stats.heapPushes, stats.edgesRelaxed + 1);
+        assertTrue(stats.startSnapMiles > 0.5 && stats.startSnapMiles < 0.6);
+        assertEquals(0.0, stats.goalSnapMiles, 1e-9);
+        assertTrue(stats.totalNanos >= stats.snapNanos);
+    }
+
+    @Test
+    public void testSearchAimsAtDestination() {
+        /* Destinations off the vertices, so aiming at them differs from aiming at 66 or 55. */
+        double[][] ends = {{0.2, 38.2, 0.65, 38.45}, {0.1, 38.1, 0.35, 38.55},
+            {0.6, 38.6, 0.58, 38.42}};
+        for (double[] e : ends) {
+            Router.SearchStats direct = new Router.SearchStats();
+            List<Long> expected = Router.shortestPath(graphTiny, e[0], e[1], e[2], e[3], direct);
+            Router.SearchStats snapped = new Router.SearchStats();
+            long[] v = Router.snap(graphTiny, e[0], e[1], e[2], e[3], snapped);
+            assertEquals(expected, Router.shortestPath(graphTiny, v[0], v[1], e[2], e[3],
+                    snapped));
+            assertEquals(direct.nodesSettled, snapped.nodesSettled);
+            assertEquals(direct.heapPushes, snapped.heapPushes);
+        }
+    }
 }
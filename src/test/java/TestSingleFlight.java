@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/** Checks that identical concurrent computations run once and share result and failure. */
+public class TestSingleFlight {
+    private static final int CALLERS = 8;
+
+    @Test
+    public void testBurstRunsOnce() throws Exception {
+        SingleFlight<String, Object> flight = new SingleFlight<>("test");
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Object result = new Object();
+        ExecutorService pool = Executors.newFixedThreadPool(CALLERS);
+        List<Future<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(pool.submit(() -> flight.run("key", () -> {
+                runs.incrementAndGet();
+                release.await();
+                return result;
+            })));
+        }
+        /* Give every caller time to join before the computation finishes. */
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<Object> f : futures) {
+            assertSame(result, f.get());
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.SECONDS);
+        assertEquals(1, runs.get());
+
+        /* Once finished, nothing is remembered. */
+        flight.run("key", runs::incrementAndGet);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testFailureIsShared() throws Exception {
+        SingleFlight<Integer, Object> flight = new SingleFlight<>("test");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        Future<Object> leader = pool.submit(() -> flight.run(1, () -> {
+            started.countDown();
+            release.await();
+            throw new IllegalStateException("boom");
+        }));
+        started.await();
+        Thread follower = new Thread(() -> {
+            try {
+                flight.run(1, () -> "not run");
+                fail("expected the leader's failure");
+            } catch (IllegalStateException e) {
+                assertEquals("boom", e.getMessage());
+            } catch (Exception e) {
+                fail(e.toString());
+            }
+        });
+        follower.start();
+        while (follower.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        follower.join();
+        try {
+            leader.get();
+            fail("expected the failure");
+        } catch (java.util.concurrent.ExecutionException e) {
+            assertEquals("boom", e.getCause().getMessage());
+        }
+        pool.shutdown();
+    }
+}
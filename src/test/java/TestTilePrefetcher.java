@@ -0,0 +1,105 @@
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Checks which tiles the prefetcher loads around a window, against a store that records them. */
+public class TestTilePrefetcher {
+    /** A store with every tile, all the same small image, that records the tiles read. */
+    private static class RecordingStore implements TileStore {
+        private final byte[] png;
+        final Set<String> loaded = new HashSet<>();
+
+        RecordingStore() throws Exception {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), "png", out);
+            png = out.toByteArray();
+        }
+
+        @Override
+        public synchronized ByteBuffer tile(int depth, int x, int y) {
+            loaded.add(depth + "/" + x + "/" + y);
+            return ByteBuffer.wrap(png).asReadOnlyBuffer();
+        }
+
+        @Override
+        public long lastModified() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static Set<String> tiles(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    @Test
+    public void testNeighborsParentAndChildren() throws Exception {
+        RecordingStore store = new RecordingStore();
+        TileCache cache = new TileCache(store, new PngEncoder(4, PngEncoder.Filter.NONE));
+        TilePrefetcher prefetcher = new TilePrefetcher(3, 4, () -> 0);
+        /* Already cached, so not loaded again. */
+        cache.tile(2, 2, 0);
+        store.loaded.clear();
+
+        /* The window is tiles (0, 0) and (1, 0) at depth 2, in the pyramid's corner. */
+        prefetcher.warm(cache, 2, 0, 0, 2, 1);
+        Set<String> expected = tiles(
+                /* The ring around the window, where it is on the pyramid. */
+                "2/0/1", "2/1/1", "2/2/1",
+                /* The parent window. */
+                "1/0/0",
+                /* The child window. */
+                "3/0/0", "3/1/0", "3/2/0", "3/3/0", "3/0/1", "3/1/1", "3/2/1", "3/3/1");
+        assertEquals(expected, store.loaded);
+        for (String key : expected) {
+            String[] dxy = key.split("/");
+            assertTrue(cache.isCached(Integer.parseInt(dxy[0]), Integer.parseInt(dxy[1]),
+                    Integer.parseInt(dxy[2])));
+        }
+
+        /* Nothing is loaded twice. */
+        store.loaded.clear();
+        prefetcher.warm(cache, 2, 0, 0, 2, 1);
+        assertEquals(tiles(), store.loaded);
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void testDeepestLevelAndBudget() throws Exception {
+        RecordingStore store = new RecordingStore();
+        TileCache cache = new TileCache(store, new PngEncoder(4, PngEncoder.Filter.NONE),
+                1024, 4);
+        TilePrefetcher prefetcher = new TilePrefetcher(4, 4, () -> 0);
+        /* At the deepest level there are no children to load. */
+        prefetcher.warm(cache, 4, 15, 15, 1, 1);
+        assertEquals(tiles("4/14/14", "4/15/14", "4/14/15", "3/7/7"), store.loaded);
+
+        /* A large window loads no more than the budget. */
+        store.loaded.clear();
+        prefetcher.warm(cache, 3, 1, 1, 6, 6);
+        assertEquals(TilePrefetcher.MAX_TILES_PER_REQUEST, store.loaded.size());
+        prefetcher.shutdown();
+    }
+
+    @Test
+    public void testNothingWhileBusy() throws Exception {
+        RecordingStore store = new RecordingStore();
+        TileCache cache = new TileCache(store, new PngEncoder(4, PngEncoder.Filter.NONE));
+        TilePrefetcher prefetcher = new TilePrefetcher(3, 4, () -> 5);
+        prefetcher.prefetch(cache, 2, 0, 0, 2, 1);
+        prefetcher.shutdown();
+        assertEquals(tiles(), store.loaded);
+    }
+}
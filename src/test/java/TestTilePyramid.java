@@ -0,0 +1,89 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Checks level selection and tile names against the straightforward computations. */
+public class TestTilePyramid {
+    private static final TilePyramid DEEP = new TilePyramid(MapServer.ROOT_ULLON,
+            MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT,
+            MapServer.TILE_SIZE, 20);
+
+    /** The shallowest depth with at most lonDPP, found by trying every depth in turn. */
+    private static int linearDepth(TilePyramid p, double lonDPP) {
+        int depth = 0;
+        while (depth < p.maxDepth
+                && p.width() / p.tileSize / Math.pow(2, depth) > lonDPP) {
+            depth++;
+        }
+        return depth;
+    }
+
+    @Test
+    public void testDepthFor() {
+        Random r = new Random(61);
+        for (int i = 0; i < 100000; i++) {
+            double lonDPP = DEEP.lonDPP(0) * Math.pow(2, -24 * r.nextDouble());
+            assertEquals(linearDepth(DEEP, lonDPP), DEEP.depthFor(lonDPP));
+        }
+        /* Exactly on a level, and beyond either end. */
+        for (int d = 0; d <= DEEP.maxDepth; d++) {
+            assertEquals(d, DEEP.depthFor(DEEP.lonDPP(d)));
+        }
+        assertEquals(0, DEEP.depthFor(1));
+        assertEquals(20, DEEP.depthFor(1e-12));
+        assertEquals(20, DEEP.depthFor(-1));
+    }
+
+    @Test
+    public void testTileName() {
+        assertEquals("d0_x0_y0.png", DEEP.tileName(0, 0, 0));
+        assertEquals("d7_x127_y64.png", DEEP.tileName(7, 127, 64));
+        assertEquals("d20_x1048575_y4096.png", DEEP.tileName(20, 1048575, 4096));
+        assertEquals(TileStore.fileName(3, 4, 5), DEEP.tileName(3, 4, 5));
+    }
+
+    @Test
+    public void testAddressable() {
+        int max = TilePyramid.MAX_SUPPORTED_DEPTH;
+        assertTrue(TileStore.isAddressable(0, 0, 0));
+        assertTrue(TileStore.isAddressable(max, (1 << max) - 1, (1 << max) - 1));
+        assertFalse(TileStore.isAddressable(-1, 0, 0));
+        assertFalse(TileStore.isAddressable(max + 1, 0, 0));
+        assertFalse(TileStore.isAddressable(3, 8, 0));
+        assertFalse(TileStore.isAddressable(3, 0, -1));
+        assertFalse(TileStore.isAddressable(2, 1 << 28, 0));
+        /* Keys of addressable tiles sort by depth, then x, then y, so never collide. */
+        assertTrue(TileStore.key(max, 0, 0) > TileStore.key(max - 1, (1 << max - 1) - 1,
+                (1 << max - 1) - 1));
+        assertTrue(TileStore.key(3, 1, 0) > TileStore.key(3, 0, 7));
+    }
+
+    @Test
+    public void testDeepRaster() {
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", -122.2605);
+        params.put("ullat", 37.8692);
+        params.put("lrlon", -122.2600);
+        params.put("lrlat", 37.8689);
+        params.put("w", 1000.0);
+        params.put("h", 600.0);
+        Map<String, Object> raster = new Rasterer(DEEP).getMapRaster(params);
+        int depth = (int) raster.get("depth");
+        assertEquals(linearDepth(DEEP, 0.0005 / 1000), depth);
+        assertTrue(depth > 7);
+        String[][] grid = (String[][]) raster.get("render_grid");
+        int x = (int) raster.get("grid_ul_x");
+        int y = (int) raster.get("grid_ul_y");
+        assertEquals(DEEP.tileName(depth, x, y), grid[0][0]);
+        assertTrue((double) raster.get("raster_ul_lon") <= -122.2605);
+        assertTrue((double) raster.get("raster_lr_lon") >= -122.2600);
+        assertEquals((double) raster.get("raster_ul_lon") + grid[0].length
+                * DEEP.tileLonSpan(depth), (double) raster.get("raster_lr_lon"), 1e-9);
+    }
+}
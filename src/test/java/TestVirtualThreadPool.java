@@ -0,0 +1,53 @@
+import org.eclipse.jetty.server.Server;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that stopping the server stops the pool, so that joining the server returns. The
+ * pool runs on platform threads here, as the tests may run where there are no virtual ones.
+ */
+public class TestVirtualThreadPool {
+
+    @Test(timeout = 10000)
+    public void testStopEndsJoin() throws Exception {
+        VirtualThreadPool pool = new VirtualThreadPool(Executors.newCachedThreadPool());
+        Server server = new Server(pool);
+        server.start();
+        assertTrue(pool.isStarted());
+
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        pool.execute(() -> {
+            running.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        });
+        running.await();
+        Thread joiner = new Thread(() -> {
+            try {
+                server.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        joiner.start();
+        joiner.join(100);
+        assertTrue(joiner.isAlive());
+
+        server.stop();
+        joiner.join();
+        assertTrue(pool.isStopped());
+        /* The running job was let finish rather than cut short. */
+        assertEquals(0, finished.getCount());
+        assertEquals(0, pool.getThreads());
+    }
+}